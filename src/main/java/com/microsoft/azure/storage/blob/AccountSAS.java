@@ -83,8 +83,8 @@ public final class AccountSAS extends BaseSAS {
                         resourceTypesString,
                         Utility.getUTCTimeOrEmpty(super.startTime),
                         Utility.getUTCTimeOrEmpty(super.expiryTime),
-                        super.ipRange.toString(),
-                        super.protocol.toString(),
+                        super.getIPRangeAsString(),
+                        super.getProtocolAsString(),
                         super.version,
                         Constants.EMPTY_STRING // Account SAS requires an additional newline character
                 },
@@ -95,8 +95,9 @@ public final class AccountSAS extends BaseSAS {
 
         SASQueryParameters sasParams = new SASQueryParameters();
         sasParams.version = super.version;
+        sasParams.services = servicesString;
         sasParams.resourceTypes = resourceTypesString;
-        sasParams.protocol = super.protocol.toString();
+        sasParams.protocol = super.protocol == null ? null : super.protocol.toString();
         sasParams.startTime = super.startTime;
         sasParams.expiryTime = super.expiryTime;
         sasParams.ipRange = super.ipRange;
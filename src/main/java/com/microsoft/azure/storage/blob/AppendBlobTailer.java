@@ -0,0 +1,221 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows an append blob as it grows, like {@code tail -f}. Each poll is a ranged GET from the last offset read. Once
+ * a read has reached the end of the blob, the next poll is conditioned on If-None-Match with its ETag, so a poll of a
+ * blob that has not changed returns 304 with no body. Polls back off exponentially while the blob is quiet and resume
+ * immediately once data arrives.
+ *
+ * The stream only requests more data when the subscriber does, and never holds more than one read window ahead of
+ * it.
+ */
+public final class AppendBlobTailer {
+
+    /**
+     * The default amount of data requested by a single GET.
+     */
+    public static final int DEFAULT_READ_WINDOW_BYTES = 4 * Constants.MB;
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final AppendBlobURL blobURL;
+
+    private final long startOffset;
+
+    private final long minPollIntervalInMs;
+
+    private final long maxPollIntervalInMs;
+
+    private final int readWindowBytes;
+
+    /**
+     * Creates an {@link AppendBlobTailer} using {@link #DEFAULT_READ_WINDOW_BYTES}.
+     * @param blobURL
+     *      The {@link AppendBlobURL} to follow.
+     * @param startOffset
+     *      The offset of the first byte to emit.
+     * @param minPollIntervalInMs
+     *      The delay before the first poll after the blob is found to be quiet.
+     * @param maxPollIntervalInMs
+     *      The longest delay between polls of a quiet blob.
+     */
+    public AppendBlobTailer(AppendBlobURL blobURL, long startOffset, long minPollIntervalInMs,
+                            long maxPollIntervalInMs) {
+        this(blobURL, startOffset, minPollIntervalInMs, maxPollIntervalInMs, DEFAULT_READ_WINDOW_BYTES);
+    }
+
+    /**
+     * Creates an {@link AppendBlobTailer}.
+     * @param blobURL
+     *      The {@link AppendBlobURL} to follow.
+     * @param startOffset
+     *      The offset of the first byte to emit.
+     * @param minPollIntervalInMs
+     *      The delay before the first poll after the blob is found to be quiet.
+     * @param maxPollIntervalInMs
+     *      The longest delay between polls of a quiet blob.
+     * @param readWindowBytes
+     *      The most data requested by, and emitted for, a single GET.
+     */
+    public AppendBlobTailer(AppendBlobURL blobURL, long startOffset, long minPollIntervalInMs,
+                            long maxPollIntervalInMs, int readWindowBytes) {
+        if (blobURL == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    "blobURL"));
+        }
+        Utility.assertInBounds("startOffset", startOffset, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("minPollIntervalInMs", minPollIntervalInMs, 1, Long.MAX_VALUE);
+        Utility.assertInBounds("maxPollIntervalInMs", maxPollIntervalInMs, minPollIntervalInMs, Long.MAX_VALUE);
+        Utility.assertInBounds("readWindowBytes", readWindowBytes, 1, Integer.MAX_VALUE);
+
+        this.blobURL = blobURL;
+        this.startOffset = startOffset;
+        this.minPollIntervalInMs = minPollIntervalInMs;
+        this.maxPollIntervalInMs = maxPollIntervalInMs;
+        this.readWindowBytes = readWindowBytes;
+    }
+
+    /**
+     * Returns a stream of the blob's data from the start offset onwards. The stream never completes on its own;
+     * cancel the subscription to stop following the blob. Each subscription starts again from the start offset.
+     * @return
+     *      A {@link Flowable} which emits the blob's new data as it is committed.
+     */
+    public Flowable<ByteBuffer> tail() {
+        return Flowable.defer(new Callable<Publisher<ByteBuffer>>() {
+            @Override
+            public Publisher<ByteBuffer> call() {
+                final TailState state = new TailState(startOffset);
+                return Maybe.defer(new Callable<MaybeSource<ByteBuffer>>() {
+                    @Override
+                    public MaybeSource<ByteBuffer> call() {
+                        return pollAsync(state);
+                    }
+                }).toFlowable().repeat();
+            }
+        });
+    }
+
+    private Maybe<ByteBuffer> pollAsync(final TailState state) {
+        BlobRange range = new BlobRange();
+        range.offset = state.offset;
+        range.count = (long) this.readWindowBytes;
+
+        BlobAccessConditions conditions = new BlobAccessConditions(
+                new HttpAccessConditions(null, null, ETag.getDefault(),
+                        state.eTag == null ? ETag.getDefault() : new ETag(state.eTag)),
+                LeaseAccessConditions.getDefault(), AppendBlobAccessConditions.getDefault(),
+                PageBlobAccessConditions.getDefault());
+
+        Single<RestResponse<BlobsGetHeaders, InputStream>> get =
+                this.blobURL.getBlobAsync(null, range, conditions, false, null);
+        if (state.delayInMs > 0) {
+            get = get.delaySubscription(state.delayInMs, TimeUnit.MILLISECONDS);
+        }
+
+        return get
+                .observeOn(Schedulers.io())
+                .map(new Function<RestResponse<BlobsGetHeaders, InputStream>, ByteBuffer>() {
+                    @Override
+                    public ByteBuffer apply(RestResponse<BlobsGetHeaders, InputStream> response) throws IOException {
+                        Long contentLength = response.headers().contentLength();
+                        byte[] data = Utility.readFully(response.body(), contentLength == null ? -1 : contentLength);
+                        state.offset += data.length;
+
+                        // Only a read which reached the end of the blob may make the next poll conditional; a 304
+                        // would otherwise hide the rest of a backlog longer than one window.
+                        long[] extent = Utility.parseContentRange(contentLength, response.headers().contentRange());
+                        boolean caughtUp = extent != null ? extent[2] <= state.offset : data.length < readWindowBytes;
+                        state.eTag = caughtUp ? response.headers().eTag() : null;
+                        if (data.length == 0) {
+                            backOff(state);
+                        }
+                        else {
+                            // More data may already be waiting; poll again without delay.
+                            state.delayInMs = 0;
+                        }
+                        return ByteBuffer.wrap(data);
+                    }
+                })
+                .toMaybe()
+                .filter(new Predicate<ByteBuffer>() {
+                    @Override
+                    public boolean test(ByteBuffer buffer) {
+                        return buffer.hasRemaining();
+                    }
+                })
+                .onErrorResumeNext(new Function<Throwable, MaybeSource<ByteBuffer>>() {
+                    @Override
+                    public MaybeSource<ByteBuffer> apply(Throwable throwable) {
+                        if (!isIdle(throwable)) {
+                            return Maybe.error(throwable);
+                        }
+
+                        // Nothing new: 304 if the blob is unchanged, 416 if it changed without growing.
+                        backOff(state);
+                        return Maybe.empty();
+                    }
+                });
+    }
+
+    private void backOff(TailState state) {
+        state.delayInMs = state.delayInMs == 0
+                ? this.minPollIntervalInMs : Math.min(this.maxPollIntervalInMs, state.delayInMs * 2);
+    }
+
+    private static boolean isIdle(Throwable throwable) {
+        if (!(throwable instanceof RestException) || ((RestException) throwable).response() == null) {
+            return false;
+        }
+
+        int statusCode = ((RestException) throwable).response().statusCode();
+        return statusCode == HTTP_NOT_MODIFIED || statusCode == HTTP_RANGE_NOT_SATISFIABLE;
+    }
+
+    // Per-subscription position. Polls are strictly sequential, so no synchronization is needed.
+    private static final class TailState {
+        long offset;
+
+        String eTag;
+
+        long delayInMs;
+
+        TailState(long offset) {
+            this.offset = offset;
+        }
+    }
+}
@@ -15,7 +15,12 @@
 package com.microsoft.azure.storage.blob;
 
 import com.microsoft.azure.storage.implementation.StorageClientImpl;
+import com.microsoft.azure.storage.models.AppendBlobsAppendBlockHeaders;
+import com.microsoft.azure.storage.models.BlobType;
+import com.microsoft.azure.storage.models.BlobsPutHeaders;
+import com.microsoft.rest.v2.RestResponse;
 import com.microsoft.rest.v2.http.HttpPipeline;
+import io.reactivex.Single;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -37,6 +42,10 @@ public final class AppendBlobURL extends BlobURL {
         super(url, pipeline);
     }
 
+    AppendBlobURL(StructuredURL url, StorageClientImpl storageClient) {
+        super(url, storageClient);
+    }
+
     /**
      * Creates a new {@link AppendBlobURL} with the given pipeline.
      * @param pipeline
@@ -56,8 +65,86 @@ public final class AppendBlobURL extends BlobURL {
      *      A {@link BlobURL} object with the given pipeline.
      */
     public AppendBlobURL withSnapshot(Date snapshot) throws MalformedURLException, UnsupportedEncodingException {
-        BlobURLParts blobURLParts = URLParser.ParseURL(super.url);
-        blobURLParts.setSnapshot(snapshot);
-        return new AppendBlobURL(blobURLParts.toURL(), super.storageClient.httpPipeline());
+        return new AppendBlobURL(super.structuredURL.withSnapshot(
+                snapshot == null ? null : Utility.getUTCTimeWithMillis(snapshot)), super.storageClient);
+    }
+
+    /**
+     * Create creates a 0-length append blob. Call AppendBlock to append data to an append blob.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/put-blob.
+     * @param blobHttpHeaders
+     *      A {@link BlobHttpHeaders} object representing the headers to set on the blob or {@code null}.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that represents the access conditions for the blob.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<BlobsPutHeaders, Void>> createAsync(BlobHttpHeaders blobHttpHeaders,
+                                                                   BlobAccessConditions blobAccessConditions,
+                                                                   Integer timeout) {
+        if (blobHttpHeaders == null) {
+            blobHttpHeaders = new BlobHttpHeaders(null, null, null, null, null, null);
+        }
+
+        if (blobAccessConditions == null) {
+            blobAccessConditions = BlobAccessConditions.getDefault();
+        }
+
+        return this.storageClient.blobs().putWithRestResponseAsync(super.url, BlobType.APPEND_BLOB, null, timeout,
+                null, blobHttpHeaders.getContentType(), blobHttpHeaders.getContentEncoding(),
+                blobHttpHeaders.getContentLanguage(), blobHttpHeaders.getContentMD5(),
+                blobHttpHeaders.getCacheControl(), null,
+                blobAccessConditions.getLeaseAccessConditions().toString(),
+                blobHttpHeaders.getContentDisposition(),
+                blobAccessConditions.getHttpAccessConditions().getIfModifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfUnmodifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfMatch().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfNoneMatch().toString(),
+                null, null, null);
+    }
+
+    /**
+     * AppendBlock commits a new block of data to the end of the existing append blob.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/append-block.
+     * @param data
+     *      The bytes to append. At most {@link Constants#MAX_APPEND_BLOCK_SIZE} bytes may be appended per call.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that represents the access conditions for the blob. Use the
+     *      {@link AppendBlobAccessConditions} to place the block at an exact offset.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<AppendBlobsAppendBlockHeaders, Void>> appendBlockAsync(byte[] data,
+                                                                                     BlobAccessConditions blobAccessConditions,
+                                                                                     Integer timeout) {
+        if (blobAccessConditions == null) {
+            blobAccessConditions = BlobAccessConditions.getDefault();
+        }
+
+        AppendBlobAccessConditions appendBlobAccessConditions = blobAccessConditions.getAppendBlobAccessConditions();
+        if (appendBlobAccessConditions == null) {
+            appendBlobAccessConditions = AppendBlobAccessConditions.getDefault();
+        }
+
+        return this.storageClient.appendBlobs().appendBlockWithRestResponseAsync(super.url, data, timeout,
+                blobAccessConditions.getLeaseAccessConditions().toString(),
+                toIntegerCondition("ifMaxSizeLessThanOrEqual",
+                        appendBlobAccessConditions.getIfMaxSizeLessThanOrEqual()),
+                toIntegerCondition("ifAppendPositionEquals", appendBlobAccessConditions.getIfAppendPositionEquals()),
+                blobAccessConditions.getHttpAccessConditions().getIfModifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfUnmodifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfMatch().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfNoneMatch().toString(),
+                null);
+    }
+
+    // The generated client types the append conditions as Integer.
+    private static Integer toIntegerCondition(String name, Long value) {
+        if (value == null) {
+            return null;
+        }
+
+        Utility.assertInBounds(name, value, 0, Integer.MAX_VALUE);
+        return value.intValue();
     }
 }
@@ -0,0 +1,447 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.AppendBlobsAppendBlockHeaders;
+import com.microsoft.azure.storage.models.BlobsGetPropertiesHeaders;
+import com.microsoft.azure.storage.models.BlobsPutHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.CompletableSubject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes small records to a sequence of append blobs, grouping concurrent writes into as few AppendBlock calls as
+ * possible. At most one AppendBlock is in flight at a time; records which arrive while it is outstanding are
+ * committed together by the next one. A batch is sent once it reaches {@code maxBatchBytes}, once the oldest
+ * pending record has waited {@code maxLatencyInMs}, or as soon as the previous batch completes.
+ *
+ * Every block is placed with the append position condition, so a batch is written exactly once even if the
+ * response to a successful append is lost. When a segment approaches the committed block limit the writer rolls
+ * over to the next blob, named {@code <prefix>-<segment>}. The writer assumes it is the only one appending to
+ * blobs with its prefix.
+ */
+public final class AppendBlobWriter {
+
+    /**
+     * The default number of blocks after which the writer moves to a new segment. This is kept below
+     * {@link Constants#MAX_APPEND_BLOB_BLOCK_COUNT}, so that a segment rolls over well before the service would
+     * reject an append to it.
+     */
+    public static final int DEFAULT_MAX_BLOCKS_PER_BLOB = 49000;
+
+    private static final int HTTP_CONFLICT = 409;
+
+    private final ContainerURL containerURL;
+
+    private final String blobNamePrefix;
+
+    private final int maxBatchBytes;
+
+    private final long maxLatencyInMs;
+
+    private final int maxBlocksPerBlob;
+
+    // Guards the fields below it.
+    private final Object lock = new Object();
+
+    private final ArrayDeque<PendingRecord> pending = new ArrayDeque<>();
+
+    private int pendingBytes;
+
+    private boolean flushInProgress;
+
+    private Disposable flushTimer;
+
+    private CompletableSubject lastRecord;
+
+    // Only touched by the single in-flight flush. Handoff between flushes happens under the lock.
+    private int segment;
+
+    private AppendBlobURL currentBlob;
+
+    private boolean segmentOpen;
+
+    private long appendOffset;
+
+    private int committedBlocks;
+
+    /**
+     * Creates an {@link AppendBlobWriter} starting at segment 0.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the segments.
+     * @param blobNamePrefix
+     *      A {@code String} prefix for the segment blob names.
+     * @param maxBatchBytes
+     *      The maximum size of a single AppendBlock, at most {@link Constants#MAX_APPEND_BLOCK_SIZE}.
+     * @param maxLatencyInMs
+     *      The longest time a record waits before a batch is sent.
+     */
+    public AppendBlobWriter(ContainerURL containerURL, String blobNamePrefix, int maxBatchBytes,
+                            long maxLatencyInMs) {
+        this(containerURL, blobNamePrefix, maxBatchBytes, maxLatencyInMs, DEFAULT_MAX_BLOCKS_PER_BLOB, 0);
+    }
+
+    /**
+     * Creates an {@link AppendBlobWriter}.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the segments.
+     * @param blobNamePrefix
+     *      A {@code String} prefix for the segment blob names.
+     * @param maxBatchBytes
+     *      The maximum size of a single AppendBlock, at most {@link Constants#MAX_APPEND_BLOCK_SIZE}.
+     * @param maxLatencyInMs
+     *      The longest time a record waits before a batch is sent.
+     * @param maxBlocksPerBlob
+     *      The number of blocks after which the writer rolls over to a new segment.
+     * @param startSegment
+     *      The segment to resume from. An existing blob is appended to from its current length.
+     */
+    public AppendBlobWriter(ContainerURL containerURL, String blobNamePrefix, int maxBatchBytes,
+                            long maxLatencyInMs, int maxBlocksPerBlob, int startSegment) {
+        if (containerURL == null || blobNamePrefix == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    containerURL == null ? "containerURL" : "blobNamePrefix"));
+        }
+        Utility.assertInBounds("maxBatchBytes", maxBatchBytes, 1, Constants.MAX_APPEND_BLOCK_SIZE);
+        Utility.assertInBounds("maxLatencyInMs", maxLatencyInMs, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("maxBlocksPerBlob", maxBlocksPerBlob, 1, Constants.MAX_APPEND_BLOB_BLOCK_COUNT);
+        Utility.assertInBounds("startSegment", startSegment, 0, Integer.MAX_VALUE);
+
+        this.containerURL = containerURL;
+        this.blobNamePrefix = blobNamePrefix;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLatencyInMs = maxLatencyInMs;
+        this.maxBlocksPerBlob = maxBlocksPerBlob;
+        this.segment = startSegment;
+    }
+
+    /**
+     * Returns the blob name used for a segment. Segment numbers are zero padded so that the segments of a log list
+     * in order.
+     * @param blobNamePrefix
+     *      A {@code String} prefix for the segment blob names.
+     * @param segment
+     *      The segment number.
+     * @return
+     *      The segment's blob name.
+     */
+    public static String segmentName(String blobNamePrefix, int segment) {
+        return String.format(Utility.LOCALE_US, "%s-%010d", blobNamePrefix, segment);
+    }
+
+    /**
+     * Queues a record to be appended.
+     * @param record
+     *      The record's bytes. A record is never split across blocks, so it may be at most {@code maxBatchBytes}.
+     * @return
+     *      A {@link Completable} which completes once the block containing the record has been committed.
+     */
+    public Completable writeAsync(byte[] record) {
+        if (record == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY, "record"));
+        }
+        Utility.assertInBounds("record.length", record.length, 1, this.maxBatchBytes);
+
+        CompletableSubject subject = CompletableSubject.create();
+        boolean startFlush = false;
+        synchronized (this.lock) {
+            this.pending.add(new PendingRecord(record, subject));
+            this.pendingBytes += record.length;
+            this.lastRecord = subject;
+
+            if (!this.flushInProgress) {
+                if (this.pendingBytes >= this.maxBatchBytes) {
+                    this.beginFlushLocked();
+                    startFlush = true;
+                }
+                else if (this.flushTimer == null) {
+                    this.flushTimer = Schedulers.computation().scheduleDirect(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFlushTimer();
+                        }
+                    }, this.maxLatencyInMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        if (startFlush) {
+            this.flush();
+        }
+
+        return subject;
+    }
+
+    /**
+     * Sends any pending records without waiting for the latency timer.
+     * @return
+     *      A {@link Completable} which completes once every record written before this call has been committed or
+     *      has failed. Failures are reported through each record's own {@link Completable}.
+     */
+    public Completable flushAsync() {
+        CompletableSubject target;
+        boolean startFlush = false;
+        synchronized (this.lock) {
+            target = this.lastRecord;
+            if (!this.flushInProgress && !this.pending.isEmpty()) {
+                this.beginFlushLocked();
+                startFlush = true;
+            }
+        }
+
+        if (startFlush) {
+            this.flush();
+        }
+
+        // Batches complete in order, so the most recent record settles last.
+        return target == null ? Completable.complete() : target.onErrorComplete();
+    }
+
+    private void onFlushTimer() {
+        synchronized (this.lock) {
+            this.flushTimer = null;
+            if (this.flushInProgress || this.pending.isEmpty()) {
+                return;
+            }
+            this.beginFlushLocked();
+        }
+
+        this.flush();
+    }
+
+    private void beginFlushLocked() {
+        this.flushInProgress = true;
+        if (this.flushTimer != null) {
+            this.flushTimer.dispose();
+            this.flushTimer = null;
+        }
+    }
+
+    private void flush() {
+        final List<PendingRecord> batch = new ArrayList<>();
+        int batchBytes = 0;
+        synchronized (this.lock) {
+            while (!this.pending.isEmpty()
+                    && batchBytes + this.pending.peek().data.length <= this.maxBatchBytes) {
+                PendingRecord record = this.pending.poll();
+                batch.add(record);
+                batchBytes += record.data.length;
+            }
+            this.pendingBytes -= batchBytes;
+        }
+
+        final byte[] block = new byte[batchBytes];
+        int position = 0;
+        for (PendingRecord record : batch) {
+            System.arraycopy(record.data, 0, block, position, record.data.length);
+            position += record.data.length;
+        }
+
+        this.ensureSegmentAsync(block.length)
+                .andThen(Completable.defer(new Callable<CompletableSource>() {
+                    @Override
+                    public CompletableSource call() throws Exception {
+                        return appendAsync(block);
+                    }
+                }))
+                .subscribe(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        for (PendingRecord record : batch) {
+                            record.subject.onComplete();
+                        }
+                        onFlushComplete();
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        for (PendingRecord record : batch) {
+                            record.subject.onError(throwable);
+                        }
+                        onFlushComplete();
+                    }
+                });
+    }
+
+    private void onFlushComplete() {
+        boolean startFlush = false;
+        synchronized (this.lock) {
+            if (this.pending.isEmpty()) {
+                this.flushInProgress = false;
+            }
+            else {
+                // Everything that queued up behind the last append goes out as the next group.
+                this.beginFlushLocked();
+                startFlush = true;
+            }
+        }
+
+        if (startFlush) {
+            this.flush();
+        }
+    }
+
+    /*
+     * Appends the block at the tracked offset. If the outcome is unknown, the blob's length tells whether the block
+     * landed: the position condition guarantees it was written either exactly once or not at all.
+     */
+    private Completable appendAsync(final byte[] block) {
+        final long expectedOffset = this.appendOffset;
+        BlobAccessConditions conditions = new BlobAccessConditions(HttpAccessConditions.getDefault(),
+                LeaseAccessConditions.getDefault(), new AppendBlobAccessConditions(expectedOffset, null),
+                PageBlobAccessConditions.getDefault());
+
+        return this.currentBlob.appendBlockAsync(block, conditions, null)
+                .doOnSuccess(new Consumer<RestResponse<AppendBlobsAppendBlockHeaders, Void>>() {
+                    @Override
+                    public void accept(RestResponse<AppendBlobsAppendBlockHeaders, Void> response) {
+                        appendOffset = expectedOffset + block.length;
+                        committedBlocks = parseBlockCount(response.headers().blobCommittedBlockCount(),
+                                committedBlocks + 1);
+                    }
+                })
+                .toCompletable()
+                .onErrorResumeNext(new Function<Throwable, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(final Throwable appendError) {
+                        return reconcileAsync(expectedOffset + block.length, appendError);
+                    }
+                });
+    }
+
+    private Completable reconcileAsync(final long lengthIfCommitted, final Throwable appendError) {
+        return this.currentBlob.getPropertiesAndMetadataAsync(null, null)
+                .flatMapCompletable(new Function<RestResponse<BlobsGetPropertiesHeaders, Void>, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(RestResponse<BlobsGetPropertiesHeaders, Void> response) {
+                        adoptProperties(response.headers());
+                        return appendOffset == lengthIfCommitted
+                                ? Completable.complete() : Completable.error(appendError);
+                    }
+                })
+                .onErrorResumeNext(new Function<Throwable, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(Throwable propertiesError) {
+                        if (propertiesError != appendError) {
+                            // The segment's state is unknown; read it again before the next append.
+                            segmentOpen = false;
+                        }
+                        return Completable.error(appendError);
+                    }
+                });
+    }
+
+    /*
+     * Makes sure the current segment exists and has room for another block, rolling over to the next segment when
+     * it does not. The generated client types the append position as an Integer, so a segment also rolls over
+     * before its length would exceed Integer.MAX_VALUE.
+     */
+    private Completable ensureSegmentAsync(final int blockLength) {
+        return Completable.defer(new Callable<CompletableSource>() {
+            @Override
+            public CompletableSource call() {
+                if (segmentOpen) {
+                    if (committedBlocks < maxBlocksPerBlob && appendOffset + blockLength <= Integer.MAX_VALUE) {
+                        return Completable.complete();
+                    }
+                    segment++;
+                    segmentOpen = false;
+                }
+                return openSegmentAsync().andThen(ensureSegmentAsync(blockLength));
+            }
+        });
+    }
+
+    private Completable openSegmentAsync() {
+        this.currentBlob = this.containerURL.createAppendBlobURL(segmentName(this.blobNamePrefix, this.segment));
+        BlobAccessConditions createIfAbsent = new BlobAccessConditions(
+                new HttpAccessConditions(null, null, ETag.getDefault(), ETag.ANY), LeaseAccessConditions.getDefault(),
+                AppendBlobAccessConditions.getDefault(), PageBlobAccessConditions.getDefault());
+
+        return this.currentBlob.createAsync(null, createIfAbsent, null)
+                .doOnSuccess(new Consumer<RestResponse<BlobsPutHeaders, Void>>() {
+                    @Override
+                    public void accept(RestResponse<BlobsPutHeaders, Void> response) {
+                        appendOffset = 0;
+                        committedBlocks = 0;
+                        segmentOpen = true;
+                    }
+                })
+                .toCompletable()
+                .onErrorResumeNext(new Function<Throwable, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(Throwable throwable) {
+                        if (!(throwable instanceof RestException)
+                                || ((RestException) throwable).response().statusCode() != HTTP_CONFLICT) {
+                            return Completable.error(throwable);
+                        }
+
+                        // The segment already exists, e.g. after a restart. Continue from its current length.
+                        return currentBlob.getPropertiesAndMetadataAsync(null, null)
+                                .doOnSuccess(new Consumer<RestResponse<BlobsGetPropertiesHeaders, Void>>() {
+                                    @Override
+                                    public void accept(RestResponse<BlobsGetPropertiesHeaders, Void> response) {
+                                        adoptProperties(response.headers());
+                                        segmentOpen = true;
+                                    }
+                                })
+                                .toCompletable();
+                    }
+                });
+    }
+
+    private void adoptProperties(BlobsGetPropertiesHeaders headers) {
+        Long length = headers.contentLength();
+        this.appendOffset = length == null ? 0 : length;
+        this.committedBlocks = parseBlockCount(headers.blobCommittedBlockCount(), this.committedBlocks);
+    }
+
+    private static int parseBlockCount(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static final class PendingRecord {
+        final byte[] data;
+
+        final CompletableSubject subject;
+
+        PendingRecord(byte[] data, CompletableSubject subject) {
+            this.data = data;
+            this.subject = subject;
+        }
+    }
+}
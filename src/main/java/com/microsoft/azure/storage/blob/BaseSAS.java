@@ -59,5 +59,9 @@ abstract class BaseSAS {
         return ipRangeString;
     }
 
+    String getProtocolAsString() {
+        return this.protocol == null ? Constants.EMPTY_STRING : this.protocol.toString();
+    }
+
     public abstract SASQueryParameters GenerateSASQueryParameters(SharedKeyCredentials sharedKeyCredentials) throws InvalidKeyException;
 }
@@ -0,0 +1,42 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+/**
+ * Thrown by an {@link ExistenceFilter} in place of a 404 Not Found response, when the blob is known not to exist and
+ * the request is therefore not sent.
+ */
+public final class BlobNotListedException extends RuntimeException {
+
+    private final String url;
+
+    /**
+     * Creates a {@link BlobNotListedException}.
+     * @param url
+     *      The URL of the blob which does not exist.
+     */
+    public BlobNotListedException(String url) {
+        super(String.format(Utility.LOCALE_US, SR.BLOB_NOT_IN_LISTING, Utility.getURLPath(url)));
+        this.url = url;
+    }
+
+    /**
+     * @return
+     *      The URL of the blob which does not exist.
+     */
+    public String url() {
+        return this.url;
+    }
+}
@@ -43,6 +43,10 @@ public class BlobURL extends StorageURL {
         super(url, pipeline);
     }
 
+    BlobURL(StructuredURL url, StorageClientImpl storageClient) {
+        super(url, storageClient);
+    }
+
     /**
      * Creates a new {@link BlobURL} with the given pipeline.
      * @param pipeline
@@ -62,9 +66,8 @@ public class BlobURL extends StorageURL {
      *      A {@link BlobURL} object with the given pipeline.
      */
     public BlobURL withSnapshot(Date snapshot) throws MalformedURLException, UnsupportedEncodingException {
-        BlobURLParts blobURLParts = URLParser.ParseURL(super.url);
-        blobURLParts.setSnapshot(snapshot);
-        return new BlobURL(blobURLParts.toURL(), super.storageClient.httpPipeline());
+        return new BlobURL(super.structuredURL.withSnapshot(
+                snapshot == null ? null : Utility.getUTCTimeWithMillis(snapshot)), super.storageClient);
     }
 
     /**
@@ -73,7 +76,7 @@ public class BlobURL extends StorageURL {
      *      A {@link BlockBlobURL} object.
      */
     public BlockBlobURL toBlockBlobURL() {
-        return new BlockBlobURL(super.url, super.storageClient.httpPipeline());
+        return new BlockBlobURL(super.structuredURL, super.storageClient);
     }
 
     /**
@@ -82,7 +85,7 @@ public class BlobURL extends StorageURL {
      *      A {@link AppendBlobURL} object.
      */
     public AppendBlobURL toAppendBlobURL() {
-        return new AppendBlobURL(super.url, super.storageClient.httpPipeline());
+        return new AppendBlobURL(super.structuredURL, super.storageClient);
     }
 
     /**
@@ -91,7 +94,7 @@ public class BlobURL extends StorageURL {
      *      A {@link PageBlobURL} object.
      */
     public PageBlobURL toPageBlobURL() {
-        return new PageBlobURL(super.url, super.storageClient.httpPipeline());
+        return new PageBlobURL(super.structuredURL, super.storageClient);
     }
 
     /**
@@ -349,6 +352,30 @@ public class BlobURL extends StorageURL {
                 null);
     }
 
+    /**
+     * ReleaseLease releases the blob's previously-acquired lease so that another client may acquire it immediately.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-blob.
+     * @param leaseID
+     *      A {@code String} representing the lease ID to release.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<BlobsLeaseHeaders, Void>> releaseLeaseAsync(String leaseID,
+                                                                           HttpAccessConditions httpAccessConditions,
+                                                                           Integer timeout) {
+        if (httpAccessConditions == null) {
+            httpAccessConditions = HttpAccessConditions.getDefault();
+        }
+
+        return this.storageClient.blobs().leaseWithRestResponseAsync(super.url, LeaseActionType.RELEASE, timeout,
+                leaseID, null, null, null,
+                httpAccessConditions.getIfModifiedSince(), httpAccessConditions.getIfUnmodifiedSince(),
+                httpAccessConditions.getIfMatch().toString(), httpAccessConditions.getIfNoneMatch().toString(),
+                null);
+    }
+
     /**
      * BreakLease breaks the blob's previously-acquired lease (if it exists). Pass the LeaseBreakDefault (-1) constant
      * to break a fixed-duration lease when it expires or an infinite lease immediately.
@@ -371,7 +398,7 @@ public class BlobURL extends StorageURL {
             httpAccessConditions = HttpAccessConditions.getDefault();
         }
 
-        return this.storageClient.blobs().leaseWithRestResponseAsync(super.url, LeaseActionType.RENEW, timeout,
+        return this.storageClient.blobs().leaseWithRestResponseAsync(super.url, LeaseActionType.BREAK, timeout,
                 leaseID, breakPeriodInSeconds, null, null,
                 httpAccessConditions.getIfModifiedSince(), httpAccessConditions.getIfUnmodifiedSince(),
                 httpAccessConditions.getIfMatch().toString(), httpAccessConditions.getIfNoneMatch().toString(),
@@ -395,7 +422,7 @@ public class BlobURL extends StorageURL {
             httpAccessConditions = HttpAccessConditions.getDefault();
         }
 
-        return this.storageClient.blobs().leaseWithRestResponseAsync(super.url, LeaseActionType.RENEW, timeout,
+        return this.storageClient.blobs().leaseWithRestResponseAsync(super.url, LeaseActionType.CHANGE, timeout,
                 leaseId, null, null, proposedID,
                 httpAccessConditions.getIfModifiedSince(), httpAccessConditions.getIfUnmodifiedSince(),
                 httpAccessConditions.getIfMatch().toString(), httpAccessConditions.getIfNoneMatch().toString(),
@@ -14,8 +14,6 @@
  */
 package com.microsoft.azure.storage.blob;
 
-import org.apache.commons.lang3.StringUtils;
-
 import java.util.Date;
 import java.util.Map;
 
@@ -42,9 +40,9 @@ public final class BlobURLParts {
     /**
      * Creates a {@link BlobURLParts} object
      * @param scheme
-     *      A {@code String} representing the scheme. Ex: "https://"
+     *      A {@code String} representing the scheme. Ex: "https"
      * @param host
-     *      A {@code String} representing the host. Ex: "account.blob.core.windows.net"
+     *      A {@code String} representing the host and port, if any. Ex: "account.blob.core.windows.net"
      * @param containerName
      *      A {@code String} representing the container name or {@code null}
      * @param blobName
@@ -69,7 +67,7 @@ public final class BlobURLParts {
 
     /**
      * @return
-     *      A {@code String} representing the scheme. Ex: "https://"
+     *      A {@code String} representing the scheme. Ex: "https"
      */
     public String getScheme() {
         return scheme;
@@ -77,7 +75,7 @@ public final class BlobURLParts {
 
     /**
      * @return
-     *      A {@code String} representing the host. Ex: "account.blob.core.windows.net"
+     *      A {@code String} representing the host and port, if any. Ex: "account.blob.core.windows.net"
      */
     public String getHost() {
         return host;
@@ -125,59 +123,63 @@ public final class BlobURLParts {
     }
 
     /**
-     * Converts the blob URL parts to {@code String} representing a URL
+     * Converts the blob URL parts to {@code String} representing a URL. The container and blob names are
+     * percent-encoded, so they should be set unencoded.
      * @return
      *      A {@code String} representing a URL
      */
     public String toURL() {
-        StringBuilder urlBuilder = new StringBuilder();
+        StringBuilder urlBuilder = new StringBuilder(128);
+        urlBuilder.append(this.scheme).append("://").append(this.host);
 
         if (this.containerName != null) {
-            urlBuilder.append('/' + this.containerName);
+            urlBuilder.append('/');
+            Utility.appendURLEncoded(urlBuilder, this.containerName, Utility.URL_PATH_SAFE);
             if (this.blobName != null) {
-                urlBuilder.append('/' + this.blobName);
+                urlBuilder.append('/');
+                Utility.appendURLEncoded(urlBuilder, this.blobName, Utility.URL_PATH_SAFE);
             }
         }
 
-        boolean isFirst = true;
-
-        for(Map.Entry<String, String[]> entry : this.unparsedParameters.entrySet()) {
-            if (isFirst) {
-                isFirst = false;
+        final int queryStart = urlBuilder.length();
+        urlBuilder.append('?');
+
+        if (this.unparsedParameters != null) {
+            for (Map.Entry<String, String[]> entry : this.unparsedParameters.entrySet()) {
+                for (String value : entry.getValue()) {
+                    appendParameterSeparator(urlBuilder, queryStart);
+                    Utility.appendURLEncoded(urlBuilder, entry.getKey(), Utility.URL_QUERY_VALUE_SAFE);
+                    urlBuilder.append('=');
+                    Utility.appendURLEncoded(urlBuilder, value, Utility.URL_QUERY_VALUE_SAFE);
+                }
             }
-            else {
-                urlBuilder.append('&');
-            }
-
-            urlBuilder.append(entry.getKey() + '=' + StringUtils.join(entry.getValue(), ','));
         }
 
         if (this.snapshot != null) {
-            if (isFirst) {
-                isFirst = false;
-            }
-            else {
-                urlBuilder.append('&');
-            }
-
-            urlBuilder.append("snapshot=" + Utility.getGMTTime(this.snapshot));
+            appendParameterSeparator(urlBuilder, queryStart);
+            urlBuilder.append("snapshot=").append(Utility.getUTCTimeWithMillis(this.snapshot));
         }
 
-        String sasEncoding = this.sasQueryParameters.encode();
-        if (!Utility.isNullOrEmpty(sasEncoding)) {
-            if (isFirst) {
-                isFirst = false;
-            }
-            else {
-                urlBuilder.append('&');
-            }
+        if (this.sasQueryParameters != null) {
+            appendParameterSeparator(urlBuilder, queryStart);
+            this.sasQueryParameters.encode(urlBuilder);
+        }
 
-            urlBuilder.append(sasEncoding);
+        // Drop a trailing '?' or '&' when there was nothing (more) to append.
+        char last = urlBuilder.charAt(urlBuilder.length() - 1);
+        if (last == '?' || last == '&') {
+            urlBuilder.setLength(urlBuilder.length() - 1);
         }
 
         return urlBuilder.toString();
     }
 
+    private static void appendParameterSeparator(StringBuilder urlBuilder, int queryStart) {
+        if (urlBuilder.length() > queryStart + 1) {
+            urlBuilder.append('&');
+        }
+    }
+
     // TODO: Check that it is ok to remove final and make public setters
     public void setScheme(String scheme) {
         this.scheme = scheme;
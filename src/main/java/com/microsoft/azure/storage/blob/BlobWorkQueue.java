@@ -0,0 +1,353 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.Blob;
+import com.microsoft.azure.storage.models.LeaseStateType;
+import com.microsoft.azure.storage.models.ListBlobsResponse;
+import com.microsoft.rest.v2.RestException;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes work items, each of which is a blob, across workers. A worker claims an item by acquiring the blob's
+ * lease, which a {@link LeaseManager} keeps renewed until the item is completed or abandoned.
+ *
+ * To keep workers from contending for the same items, each scan starts at a random listing segment boundary seen by
+ * earlier scans and wraps around, and the items in each segment are tried in random order. Blobs whose lease is
+ * already held are skipped without a lease attempt. The next listing segment is fetched while the current one is
+ * being claimed.
+ */
+public final class BlobWorkQueue {
+
+    /**
+     * The default number of items requested per listing segment.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final int HTTP_CONFLICT = 409;
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    // Bounds the memory spent remembering segment boundaries for randomized scan starts.
+    private static final int MAX_KNOWN_MARKERS = 1024;
+
+    private final ContainerURL containerURL;
+
+    private final String prefix;
+
+    private final LeaseManager leaseManager;
+
+    private final int leaseDurationInSeconds;
+
+    private final int pageSize;
+
+    private final List<String> knownMarkers = new ArrayList<>();
+
+    /**
+     * Creates a {@link BlobWorkQueue} using {@link #DEFAULT_PAGE_SIZE}.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the work items.
+     * @param prefix
+     *      A {@code String} prefix selecting the work item blobs, or {@code null}.
+     * @param leaseManager
+     *      The {@link LeaseManager} which renews the leases on claimed items.
+     * @param leaseDurationInSeconds
+     *      The lease duration, between 15 and 60 seconds.
+     */
+    public BlobWorkQueue(ContainerURL containerURL, String prefix, LeaseManager leaseManager,
+                         int leaseDurationInSeconds) {
+        this(containerURL, prefix, leaseManager, leaseDurationInSeconds, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Creates a {@link BlobWorkQueue}.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the work items.
+     * @param prefix
+     *      A {@code String} prefix selecting the work item blobs, or {@code null}.
+     * @param leaseManager
+     *      The {@link LeaseManager} which renews the leases on claimed items.
+     * @param leaseDurationInSeconds
+     *      The lease duration, between 15 and 60 seconds.
+     * @param pageSize
+     *      The number of items requested per listing segment, at most 5000.
+     */
+    public BlobWorkQueue(ContainerURL containerURL, String prefix, LeaseManager leaseManager,
+                         int leaseDurationInSeconds, int pageSize) {
+        if (containerURL == null || leaseManager == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    containerURL == null ? "containerURL" : "leaseManager"));
+        }
+        Utility.assertInBounds("leaseDurationInSeconds", leaseDurationInSeconds, 15, 60);
+        Utility.assertInBounds("pageSize", pageSize, 1, 5000);
+
+        this.containerURL = containerURL;
+        this.prefix = prefix;
+        this.leaseManager = leaseManager;
+        this.leaseDurationInSeconds = leaseDurationInSeconds;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Claims up to {@code maxItems} work items, trying up to {@code concurrency} leases at a time. The scan stops as
+     * soon as enough items are claimed, or after one pass over the queue. If the scan fails or is cancelled, the
+     * items it had already claimed are abandoned.
+     * @param maxItems
+     *      The most items to claim.
+     * @param concurrency
+     *      The most lease attempts in flight at once.
+     * @return
+     *      A {@link Single} which emits the claimed items. The list is empty if nothing could be claimed.
+     */
+    public Single<List<WorkItem>> claimAsync(final int maxItems, final int concurrency) {
+        Utility.assertInBounds("maxItems", maxItems, 1, Integer.MAX_VALUE);
+        Utility.assertInBounds("concurrency", concurrency, 1, Integer.MAX_VALUE);
+
+        return Single.defer(new Callable<Single<List<WorkItem>>>() {
+            @Override
+            public Single<List<WorkItem>> call() {
+                final AtomicInteger claimed = new AtomicInteger();
+                final ClaimBatch batch = new ClaimBatch();
+                return scan(randomKnownMarker())
+                        .concatMapIterable(new Function<ListBlobsResponse, Iterable<String>>() {
+                            @Override
+                            public Iterable<String> apply(ListBlobsResponse page) {
+                                return claimableNames(page);
+                            }
+                        }, 2)
+                        // Stop listing once enough items are claimed; claims already in flight still finish.
+                        .takeWhile(new Predicate<String>() {
+                            @Override
+                            public boolean test(String name) {
+                                return claimed.get() < maxItems;
+                            }
+                        })
+                        .flatMapMaybe(new Function<String, MaybeSource<WorkItem>>() {
+                            @Override
+                            public MaybeSource<WorkItem> apply(String name) {
+                                return tryClaimAsync(name, claimed, maxItems, batch);
+                            }
+                        }, false, concurrency)
+                        .toList()
+                        .onErrorResumeNext(new Function<Throwable, SingleSource<List<WorkItem>>>() {
+                            @Override
+                            public SingleSource<List<WorkItem>> apply(Throwable throwable) {
+                                return batch.abandonAsync().andThen(Single.<List<WorkItem>>error(throwable));
+                            }
+                        })
+                        .doOnDispose(new Action() {
+                            @Override
+                            public void run() {
+                                batch.abandonAsync().subscribe();
+                            }
+                        });
+            }
+        });
+    }
+
+    private Maybe<WorkItem> tryClaimAsync(String name, final AtomicInteger claimed, final int maxItems,
+                                          final ClaimBatch batch) {
+        final BlobURL blobURL = this.containerURL.createBlockBlobURL(name);
+        return this.leaseManager.acquireAsync(LeaseTarget.forBlob(blobURL), this.leaseDurationInSeconds)
+                .flatMapMaybe(new Function<LeaseManager.ManagedLease, MaybeSource<WorkItem>>() {
+                    @Override
+                    public MaybeSource<WorkItem> apply(LeaseManager.ManagedLease lease) {
+                        WorkItem item = new WorkItem(blobURL, lease);
+                        // Either a concurrent attempt filled the batch first, or the batch has already failed.
+                        if (claimed.incrementAndGet() > maxItems || !batch.add(item)) {
+                            return leaseManager.releaseAsync(lease).onErrorComplete()
+                                    .andThen(Maybe.<WorkItem>empty());
+                        }
+                        return Maybe.just(item);
+                    }
+                })
+                .onErrorResumeNext(new Function<Throwable, MaybeSource<WorkItem>>() {
+                    @Override
+                    public MaybeSource<WorkItem> apply(Throwable throwable) {
+                        // Claimed by another worker since the listing, or already completed.
+                        return isStatus(throwable, HTTP_CONFLICT) || isStatus(throwable, HTTP_NOT_FOUND)
+                                ? Maybe.<WorkItem>empty() : Maybe.<WorkItem>error(throwable);
+                    }
+                });
+    }
+
+    /*
+     * One pass over the queue: from the start marker to the end of the listing, then from the beginning back to the
+     * start marker.
+     */
+    private Flowable<ListBlobsResponse> scan(String startMarker) {
+        Flowable<ListBlobsResponse> pages = this.pagesFrom(startMarker, null);
+        return startMarker == null ? pages : pages.concatWith(this.pagesFrom(null, startMarker));
+    }
+
+    private Flowable<ListBlobsResponse> pagesFrom(String marker, final String stopMarker) {
+        return containerURL.listBlobSegmentsAsync(prefix, marker, stopMarker, pageSize)
+                .doOnNext(new Consumer<ListBlobsResponse>() {
+                    @Override
+                    public void accept(ListBlobsResponse page) {
+                        String next = page.nextMarker();
+                        if (next != null && !next.isEmpty() && !next.equals(stopMarker)) {
+                            rememberMarker(next);
+                        }
+                    }
+                });
+    }
+
+    private static List<String> claimableNames(ListBlobsResponse page) {
+        List<String> names = new ArrayList<>();
+        if (page.blobs() == null || page.blobs().blob() == null) {
+            return names;
+        }
+
+        for (Blob blob : page.blobs().blob()) {
+            LeaseStateType leaseState = blob.properties() == null ? null : blob.properties().leaseState();
+            if (leaseState != LeaseStateType.LEASED && leaseState != LeaseStateType.BREAKING) {
+                names.add(blob.name());
+            }
+        }
+
+        Collections.shuffle(names, ThreadLocalRandom.current());
+        return names;
+    }
+
+    private String randomKnownMarker() {
+        synchronized (this.knownMarkers) {
+            // Starting from the beginning is one of the choices.
+            int choice = ThreadLocalRandom.current().nextInt(this.knownMarkers.size() + 1);
+            return choice == this.knownMarkers.size() ? null : this.knownMarkers.get(choice);
+        }
+    }
+
+    private void rememberMarker(String marker) {
+        synchronized (this.knownMarkers) {
+            if (this.knownMarkers.size() < MAX_KNOWN_MARKERS && !this.knownMarkers.contains(marker)) {
+                this.knownMarkers.add(marker);
+            }
+        }
+    }
+
+    private static boolean isStatus(Throwable throwable, int statusCode) {
+        return throwable instanceof RestException && ((RestException) throwable).response() != null
+                && ((RestException) throwable).response().statusCode() == statusCode;
+    }
+
+    /*
+     * The items claimed by one claimAsync call. Once the call fails or is cancelled, the items it claimed, including
+     * any whose lease arrives afterwards, are released instead of being renewed with no one to work on them.
+     */
+    private static final class ClaimBatch {
+        private final List<WorkItem> items = new ArrayList<>();
+
+        private boolean abandoned;
+
+        synchronized boolean add(WorkItem item) {
+            if (this.abandoned) {
+                return false;
+            }
+
+            this.items.add(item);
+            return true;
+        }
+
+        Completable abandonAsync() {
+            List<Completable> releases = new ArrayList<>();
+            synchronized (this) {
+                this.abandoned = true;
+                for (WorkItem item : this.items) {
+                    releases.add(item.abandonAsync().onErrorComplete());
+                }
+                this.items.clear();
+            }
+
+            return Completable.merge(releases);
+        }
+    }
+
+    /**
+     * A work item claimed from a {@link BlobWorkQueue}.
+     */
+    public final class WorkItem {
+        private final BlobURL blobURL;
+
+        private final LeaseManager.ManagedLease lease;
+
+        WorkItem(BlobURL blobURL, LeaseManager.ManagedLease lease) {
+            this.blobURL = blobURL;
+            this.lease = lease;
+        }
+
+        /**
+         * @return
+         *      The {@link BlobURL} of the work item.
+         */
+        public BlobURL blobURL() {
+            return this.blobURL;
+        }
+
+        /**
+         * @return
+         *      The lease ID, for reading or updating the item while it is claimed.
+         */
+        public String leaseID() {
+            return this.lease.leaseID();
+        }
+
+        /**
+         * @return
+         *      {@code true} while the claim is held.
+         */
+        public boolean isClaimed() {
+            return this.lease.isHeld();
+        }
+
+        /**
+         * Completes the item by deleting its blob under the lease.
+         * @return
+         *      A {@link Completable} which completes once the item has been deleted.
+         */
+        public Completable completeAsync() {
+            leaseManager.stopRenewing(this.lease);
+            BlobAccessConditions underLease = new BlobAccessConditions(HttpAccessConditions.getDefault(),
+                    new LeaseAccessConditions(this.lease.leaseID()), AppendBlobAccessConditions.getDefault(),
+                    PageBlobAccessConditions.getDefault());
+            return this.blobURL.deleteAsync(null, underLease, null).toCompletable();
+        }
+
+        /**
+         * Gives the item back so that any worker can claim it again.
+         * @return
+         *      A {@link Completable} which completes once the lease has been released.
+         */
+        public Completable abandonAsync() {
+            return leaseManager.releaseAsync(this.lease);
+        }
+    }
+}
@@ -41,6 +41,10 @@ public final class BlockBlobURL extends BlobURL {
         super(url, pipeline);
     }
 
+    BlockBlobURL(StructuredURL url, StorageClientImpl storageClient) {
+        super(url, storageClient);
+    }
+
     /**
      * Creates a new {@link BlockBlobURL} with the given pipeline.
      * @param pipeline
@@ -60,9 +64,8 @@ public final class BlockBlobURL extends BlobURL {
      *      A {@link BlockBlobURL} object with the given pipeline.
      */
     public BlockBlobURL withSnapshot(Date snapshot) throws MalformedURLException, UnsupportedEncodingException {
-        BlobURLParts blobURLParts = URLParser.ParseURL(super.url);
-        blobURLParts.setSnapshot(snapshot);
-        return new BlockBlobURL(blobURLParts.toURL(), super.storageClient.httpPipeline());
+        return new BlockBlobURL(super.structuredURL.withSnapshot(
+                snapshot == null ? null : Utility.getUTCTimeWithMillis(snapshot)), super.storageClient);
     }
 
     /**
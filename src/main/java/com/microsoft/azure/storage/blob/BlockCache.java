@@ -0,0 +1,560 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import com.microsoft.rest.v2.http.HttpResponse;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches fixed-size blocks of blob data in direct memory, for random-access reads such as lookups in index files or
+ * columnar formats. The data is held outside the Java heap, in slabs allocated as the cache fills, so a large cache
+ * neither adds to garbage collection pauses nor needs a larger heap; only reads copy data onto the heap.
+ *
+ * A read is split into the blocks it spans. Blocks which are cached are copied out; each missing block is read with a
+ * ranged {@link BlobURL#getBlobAsync}, and concurrent reads missing the same block share one request, as do concurrent
+ * first reads of a blob, which also learn its version and length. A read at or past the end of the blob, e.g. of an
+ * empty one, returns no data. When the cache is full, the CLOCK algorithm picks a block to replace: each block has a
+ * bit set when it is read, and a hand sweeps the blocks, clearing set bits and replacing the first block found clear,
+ * so blocks read since the last sweep are kept.
+ *
+ * Blocks are keyed by blob and ETag. Missing blocks are requested with {@code If-Match} on the ETag of the blocks
+ * already cached, so a read never mixes data from two versions of a blob; if the blob has changed, its cached blocks
+ * are abandoned and the read starts again from the new version. Cached blocks are served without a request, so this
+ * cache suits blobs which are written once, or call {@link #invalidate(BlobURL)} after changing one.
+ */
+public final class BlockCache {
+
+    /**
+     * The default size of a block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * Constants.KB;
+
+    // Direct buffers are indexed by int, so slabs are kept well below 2GB.
+    private static final int MAX_SLAB_BYTES = Constants.GB;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // A slot's pin count while it is being filled or replaced; readers treat it as a miss.
+    private static final int CLAIMED = -1;
+
+    private final int blockSize;
+
+    private final int slotCount;
+
+    private final int slotsPerSlab;
+
+    // Allocated as the cache fills, guarded by this.
+    private final ByteBuffer[] slabs;
+
+    private final AtomicReferenceArray<BlockKey> keys;
+
+    private final int[] lengths;
+
+    // The number of readers copying out of each slot, or CLAIMED.
+    private final AtomicIntegerArray pins;
+
+    // The CLOCK bit of each slot.
+    private final AtomicIntegerArray referenced;
+
+    private final ConcurrentHashMap<BlockKey, Integer> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<BlockKey, Single<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+
+    // The first fetch of each blob whose version is not known yet, keyed by URL resource.
+    private final ConcurrentHashMap<String, Single<Version>> versionsInFlight = new ConcurrentHashMap<>();
+
+    // The version of each blob which is cached, keyed by URL resource.
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    // Guarded by this, as is nextUnused.
+    private int hand;
+
+    private int nextUnused;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a {@link BlockCache} with blocks of {@link #DEFAULT_BLOCK_SIZE}.
+     * @param maxBytes
+     *      The most memory to use for cached data.
+     */
+    public BlockCache(long maxBytes) {
+        this(maxBytes, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a {@link BlockCache}.
+     * @param maxBytes
+     *      The most memory to use for cached data. Blocks are allocated in slabs of up to 1GB as the cache fills.
+     * @param blockSize
+     *      The size of a block, i.e. the least data which is requested. Smaller blocks waste less of the cache on
+     *      data which is never read; larger ones need fewer requests for sequential reads.
+     */
+    public BlockCache(long maxBytes, int blockSize) {
+        Utility.assertInBounds("blockSize", blockSize, 4 * Constants.KB, Constants.MAX_BLOCK_SIZE);
+        Utility.assertInBounds("maxBytes", maxBytes, blockSize, (long) Integer.MAX_VALUE * blockSize);
+
+        this.blockSize = blockSize;
+        this.slotCount = (int) (maxBytes / blockSize);
+        this.slotsPerSlab = Math.max(1, MAX_SLAB_BYTES / blockSize);
+        this.slabs = new ByteBuffer[(this.slotCount + this.slotsPerSlab - 1) / this.slotsPerSlab];
+        this.keys = new AtomicReferenceArray<>(this.slotCount);
+        this.lengths = new int[this.slotCount];
+        this.pins = new AtomicIntegerArray(this.slotCount);
+        this.referenced = new AtomicIntegerArray(this.slotCount);
+    }
+
+    /**
+     * Reads data from the blob, from the cache where possible.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param offset
+     *      The offset of the first byte to read.
+     * @param length
+     *      The number of bytes to read. Fewer are returned if the blob ends first.
+     * @return
+     *      The {@link Single} which emits a read-only {@code ByteBuffer} holding the data.
+     */
+    public Single<ByteBuffer> readAsync(final BlobURL blobURL, final long offset, final int length) {
+        Utility.assertInBounds("offset", offset, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("length", length, 0, Integer.MAX_VALUE);
+        return this.read(blobURL, Utility.getURLResourceKey(blobURL.toString()), offset, length, true);
+    }
+
+    /**
+     * Abandons the cached blocks of a blob, e.g. after changing it; the next read fetches the current version.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     */
+    public void invalidate(BlobURL blobURL) {
+        this.versions.remove(Utility.getURLResourceKey(blobURL.toString()));
+    }
+
+    /**
+     * @return
+     *      The number of blocks read from the cache.
+     */
+    public long hits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return
+     *      The number of blocks fetched from the service. Reads which share a fetch count it once.
+     */
+    public long misses() {
+        return this.misses.get();
+    }
+
+    private Single<ByteBuffer> read(final BlobURL blobURL, final String resource, final long offset, final int length,
+                                    final boolean retryIfChanged) {
+        return Single.defer(new Callable<SingleSource<ByteBuffer>>() {
+            @Override
+            public SingleSource<ByteBuffer> call() {
+                Version version = versions.get(resource);
+                if (version == null) {
+                    // The first block tells which version to cache, and how long the blob is.
+                    return joinFetchVersion(blobURL, resource, offset / blockSize)
+                            .flatMap(new Function<Version, SingleSource<ByteBuffer>>() {
+                                @Override
+                                public SingleSource<ByteBuffer> apply(Version version) {
+                                    if (version.eTag != null || offset >= version.length) {
+                                        return readVersion(blobURL, resource, version, offset, length);
+                                    }
+
+                                    // Joined a read past the end which did not tell the version, but this one has
+                                    // data to read.
+                                    return fetchVersion(blobURL, resource, offset / blockSize)
+                                            .flatMap(new Function<Version, SingleSource<ByteBuffer>>() {
+                                                @Override
+                                                public SingleSource<ByteBuffer> apply(Version version) {
+                                                    return readVersion(blobURL, resource, version, offset, length);
+                                                }
+                                            });
+                                }
+                            });
+                }
+                return readVersion(blobURL, resource, version, offset, length);
+            }
+        }).onErrorResumeNext(new Function<Throwable, SingleSource<ByteBuffer>>() {
+            @Override
+            public SingleSource<ByteBuffer> apply(Throwable throwable) {
+                HttpResponse response = throwable instanceof RestException
+                        ? ((RestException) throwable).response() : null;
+                if (retryIfChanged && response != null
+                        && response.statusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                    // The blob changed since its blocks were cached.
+                    versions.remove(resource);
+                    return read(blobURL, resource, offset, length, false);
+                }
+                return Single.error(throwable);
+            }
+        });
+    }
+
+    private Single<ByteBuffer> readVersion(BlobURL blobURL, String resource, Version version, long offset,
+                                           int length) {
+        long end = Math.min(offset + length, version.length);
+        if (offset >= end) {
+            return Single.just(ByteBuffer.allocate(0).asReadOnlyBuffer());
+        }
+
+        List<Single<ByteBuffer>> parts = new ArrayList<>();
+        for (long block = offset / this.blockSize; block * this.blockSize < end; block++) {
+            long blockStart = block * this.blockSize;
+            int from = (int) (Math.max(offset, blockStart) - blockStart);
+            int to = (int) (Math.min(end, blockStart + this.blockSize) - blockStart);
+            parts.add(this.readBlock(blobURL, new BlockKey(resource, version.eTag, block), from, to));
+        }
+
+        final int totalLength = (int) (end - offset);
+        return Single.zip(parts, new Function<Object[], ByteBuffer>() {
+            @Override
+            public ByteBuffer apply(Object[] buffers) {
+                ByteBuffer result = ByteBuffer.allocate(totalLength);
+                for (Object buffer : buffers) {
+                    result.put((ByteBuffer) buffer);
+                }
+                result.flip();
+                return result.asReadOnlyBuffer();
+            }
+        });
+    }
+
+    /*
+     * Returns a heap copy of part of a block, fetching the block if it is not cached.
+     */
+    private Single<ByteBuffer> readBlock(final BlobURL blobURL, final BlockKey key, final int from, final int to) {
+        return Single.defer(new Callable<SingleSource<ByteBuffer>>() {
+            @Override
+            public SingleSource<ByteBuffer> call() {
+                ByteBuffer cached = copyOut(key, from, to);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return Single.just(cached);
+                }
+
+                return fetchBlock(blobURL, key).map(new Function<ByteBuffer, ByteBuffer>() {
+                    @Override
+                    public ByteBuffer apply(ByteBuffer block) {
+                        ByteBuffer part = block.duplicate();
+                        part.limit(Math.min(to, part.limit()));
+                        part.position(Math.min(from, part.limit()));
+                        return part;
+                    }
+                });
+            }
+        });
+    }
+
+    /*
+     * Joins the fetch of the block already in flight, or starts one, which caches the block as it completes.
+     */
+    private Single<ByteBuffer> fetchBlock(final BlobURL blobURL, final BlockKey key) {
+        Single<ByteBuffer> existing = this.inFlight.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        BlobRange range = new BlobRange();
+        range.offset = key.block * this.blockSize;
+        range.count = (long) this.blockSize;
+        BlobAccessConditions conditions = new BlobAccessConditions(
+                new HttpAccessConditions(null, null, new ETag(key.eTag), ETag.getDefault()),
+                LeaseAccessConditions.getDefault(), null, null);
+        final Single<?>[] self = new Single<?>[1];
+        // Bodies are read with a blocking readFully, so off the thread which delivered the response.
+        Single<ByteBuffer> fetch = blobURL.getBlobAsync(null, range, conditions, false, null)
+                .observeOn(Schedulers.io())
+                .map(new Function<RestResponse<BlobsGetHeaders, InputStream>, ByteBuffer>() {
+                    @Override
+                    public ByteBuffer apply(RestResponse<BlobsGetHeaders, InputStream> response) throws Exception {
+                        return store(key, Utility.readFully(response.body(), blockSize));
+                    }
+                })
+                .doOnEvent(new BiConsumer<ByteBuffer, Throwable>() {
+                    @Override
+                    public void accept(ByteBuffer block, Throwable throwable) {
+                        inFlight.remove(key, self[0]);
+                    }
+                })
+                .cache();
+        self[0] = fetch;
+
+        existing = this.inFlight.putIfAbsent(key, fetch);
+        return existing == null ? fetch : existing;
+    }
+
+    /*
+     * Joins the first fetch of the blob already in flight, or starts one.
+     */
+    private Single<Version> joinFetchVersion(BlobURL blobURL, final String resource, long block) {
+        Single<Version> existing = this.versionsInFlight.get(resource);
+        if (existing != null) {
+            return existing;
+        }
+
+        final Single<?>[] self = new Single<?>[1];
+        Single<Version> fetch = this.fetchVersion(blobURL, resource, block)
+                .doOnEvent(new BiConsumer<Version, Throwable>() {
+                    @Override
+                    public void accept(Version version, Throwable throwable) {
+                        versionsInFlight.remove(resource, self[0]);
+                    }
+                })
+                .cache();
+        self[0] = fetch;
+
+        existing = this.versionsInFlight.putIfAbsent(resource, fetch);
+        return existing == null ? fetch : existing;
+    }
+
+    /*
+     * Fetches a block without knowing the blob's version, and records the version it came from. A block at or past
+     * the end of the blob gets a 416 instead, whose Content-Range still tells the length after its slash; the version
+     * is only recorded if the response also has an ETag.
+     */
+    private Single<Version> fetchVersion(BlobURL blobURL, final String resource, final long block) {
+        final BlobRange range = new BlobRange();
+        range.offset = block * this.blockSize;
+        range.count = (long) this.blockSize;
+        return blobURL.getBlobAsync(null, range, null, false, null)
+                .observeOn(Schedulers.io())
+                .map(new Function<RestResponse<BlobsGetHeaders, InputStream>, Version>() {
+                    @Override
+                    public Version apply(RestResponse<BlobsGetHeaders, InputStream> response) throws Exception {
+                        BlobsGetHeaders headers = response.headers();
+                        long[] contentRange = Utility.parseContentRange(headers.contentLength(),
+                                headers.contentRange());
+                        byte[] data = Utility.readFully(response.body(), blockSize);
+                        if (headers.eTag() == null || contentRange == null) {
+                            throw new IllegalStateException(SR.UNEXPECTED_STATUS_CODE_RECEIVED);
+                        }
+
+                        // Concurrent first reads may each see a version; the blocks of each are cached under their
+                        // own ETag, so whichever is recorded is consistent.
+                        Version version = new Version(headers.eTag(), contentRange[2]);
+                        store(new BlockKey(resource, version.eTag, block), data);
+                        Version existing = versions.putIfAbsent(resource, version);
+                        return existing == null ? version : existing;
+                    }
+                })
+                .onErrorResumeNext(new Function<Throwable, SingleSource<Version>>() {
+                    @Override
+                    public SingleSource<Version> apply(Throwable throwable) {
+                        HttpResponse response = throwable instanceof RestException
+                                ? ((RestException) throwable).response() : null;
+                        if (response == null || response.statusCode() != HTTP_RANGE_NOT_SATISFIABLE) {
+                            return Single.error(throwable);
+                        }
+
+                        // Without a length, the blob is only known to end at or before the requested range.
+                        long length = parseUnsatisfiedLength(
+                                response.headerValue(Constants.HeaderConstants.CONTENT_RANGE), range.offset);
+                        String eTag = response.headerValue(Constants.HeaderConstants.ETAG);
+                        if (eTag == null) {
+                            return Single.just(new Version(null, length));
+                        }
+                        Version version = new Version(eTag, length);
+                        Version existing = versions.putIfAbsent(resource, version);
+                        return Single.just(existing == null ? version : existing);
+                    }
+                });
+    }
+
+    /*
+     * Parses the blob length from a 416's Content-Range, which has an asterisk in place of the range, or returns the
+     * fallback.
+     */
+    private static long parseUnsatisfiedLength(String contentRange, long fallback) {
+        if (contentRange == null || !contentRange.startsWith("bytes */")) {
+            return fallback;
+        }
+
+        try {
+            return Math.min(Long.parseLong(contentRange.substring("bytes */".length()).trim()), fallback);
+        }
+        catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /*
+     * Copies a fetched block into a slot, if one can be claimed, and returns a read-only view of the heap copy for
+     * the readers waiting on it.
+     */
+    private ByteBuffer store(BlockKey key, byte[] data) {
+        misses.incrementAndGet();
+        int slot = this.claimSlot();
+        if (slot != -1) {
+            ByteBuffer target = this.slotBuffer(slot);
+            target.put(data, 0, Math.min(data.length, this.blockSize));
+            this.lengths[slot] = Math.min(data.length, this.blockSize);
+            this.keys.set(slot, key);
+            this.referenced.set(slot, 1);
+            this.pins.set(slot, 0);
+            this.index.put(key, slot);
+        }
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /*
+     * Copies part of a cached block onto the heap, or returns null if the block is not cached. The slot is pinned
+     * while it is copied, so that it cannot be replaced meanwhile.
+     */
+    private ByteBuffer copyOut(BlockKey key, int from, int to) {
+        Integer slot = this.index.get(key);
+        if (slot == null) {
+            return null;
+        }
+
+        int pins;
+        do {
+            pins = this.pins.get(slot);
+            if (pins == CLAIMED) {
+                return null;
+            }
+        } while (!this.pins.compareAndSet(slot, pins, pins + 1));
+
+        try {
+            if (!key.equals(this.keys.get(slot))) {
+                return null;
+            }
+
+            int length = this.lengths[slot];
+            ByteBuffer source = this.slotBuffer(slot);
+            int start = source.position();
+            source.limit(start + Math.min(to, length));
+            source.position(start + Math.min(from, length));
+            ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+            copy.put(source);
+            copy.flip();
+            this.referenced.set(slot, 1);
+            return copy;
+        }
+        finally {
+            this.pins.decrementAndGet(slot);
+        }
+    }
+
+    /*
+     * Claims a never-used slot, or sweeps the CLOCK hand to find one to replace. Returns -1 if every slot is pinned,
+     * in which case the block is returned without being cached.
+     */
+    private synchronized int claimSlot() {
+        if (this.nextUnused < this.slotCount) {
+            int slab = this.nextUnused / this.slotsPerSlab;
+            if (this.slabs[slab] == null) {
+                int slots = Math.min(this.slotsPerSlab, this.slotCount - slab * this.slotsPerSlab);
+                this.slabs[slab] = ByteBuffer.allocateDirect(slots * this.blockSize);
+            }
+            this.pins.set(this.nextUnused, CLAIMED);
+            return this.nextUnused++;
+        }
+
+        for (int step = 0; step < 2 * this.slotCount; step++) {
+            int slot = this.hand;
+            this.hand = (this.hand + 1) % this.slotCount;
+            if (this.referenced.get(slot) != 0) {
+                this.referenced.set(slot, 0);
+                continue;
+            }
+
+            if (this.pins.compareAndSet(slot, 0, CLAIMED)) {
+                BlockKey old = this.keys.getAndSet(slot, null);
+                if (old != null) {
+                    this.index.remove(old, slot);
+                }
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Returns a view of the slot's memory, positioned at its start and limited to its end.
+     */
+    private ByteBuffer slotBuffer(int slot) {
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = this.slabs[slot / this.slotsPerSlab];
+        }
+        ByteBuffer view = slab.duplicate();
+        int start = (slot % this.slotsPerSlab) * this.blockSize;
+        view.limit(start + this.blockSize);
+        view.position(start);
+        return view;
+    }
+
+    private static final class Version {
+        final String eTag;
+
+        final long length;
+
+        Version(String eTag, long length) {
+            this.eTag = eTag;
+            this.length = length;
+        }
+    }
+
+    private static final class BlockKey {
+        final String resource;
+
+        final String eTag;
+
+        final long block;
+
+        BlockKey(String resource, String eTag, long block) {
+            this.resource = resource;
+            this.eTag = eTag;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) obj;
+            return this.block == other.block && this.resource.equals(other.resource) && this.eTag.equals(other.eTag);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * this.resource.hashCode() + this.eTag.hashCode();
+            return 31 * hash + (int) (this.block ^ (this.block >>> 32));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Factory for a circuit breaker per endpoint host. A host's circuit opens when, within a window holding at least
+ * {@link CircuitBreakerOptions#minimumTries()} tries, the fraction failing (a 5xx response, or no response) reaches
+ * {@link CircuitBreakerOptions#failureRatio()} or the fraction timing out reaches
+ * {@link CircuitBreakerOptions#timeoutRatio()}.
+ *
+ * While a circuit is open, reads are sent to {@link CircuitBreakerOptions#secondaryHost()} if it is set, and every
+ * other request fails immediately with a {@link CircuitBreakerOpenException}, instead of tying up a connection until
+ * it times out. Once {@link CircuitBreakerOptions#openDurationInMs()} has passed, the circuit half-opens and lets a
+ * few probe requests through to the host; if enough succeed in a row the circuit closes, and if any fails it opens
+ * again.
+ *
+ * {@link StorageURL#CreatePipeline} adds the policy ahead of the credentials policy when
+ * {@link PipelineOptions#circuitBreakerOptions} is set, and so ahead of the retry policy's
+ * {@link RequestRetryFactory#tryTimeoutFactory() try timeout}: a try which hangs fails here with a
+ * {@link TimeoutException} and counts as timing out. A try cancelled from outside, e.g. because its caller gave up,
+ * says nothing about the host and is not counted.
+ */
+public final class CircuitBreakerFactory implements RequestPolicyFactory {
+
+    private static final String OPERATION_TIMED_OUT = "OperationTimedOut";
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private enum Admission {
+        SENT,
+        PROBE,
+        REJECTED
+    }
+
+    private final CircuitBreakerOptions options;
+
+    private final ConcurrentHashMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link CircuitBreakerFactory}.
+     * @param options
+     *      The {@link CircuitBreakerOptions} configuring when circuits open and close.
+     */
+    public CircuitBreakerFactory(CircuitBreakerOptions options) {
+        this.options = options == null ? new CircuitBreakerOptions() : options;
+    }
+
+    /**
+     * @param host
+     *      The host, including the port if any, e.g. "myaccount.blob.core.windows.net".
+     * @return
+     *      {@code true} if requests to the host are currently being failed fast or redirected.
+     */
+    public boolean isOpen(String host) {
+        Breaker breaker = this.breakers.get(host);
+        return breaker != null && breaker.isOpen();
+    }
+
+    private final class CircuitBreakerPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        CircuitBreakerPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Sends the try to the host if its circuit allows it, and records the outcome
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            String host = Utility.getURLHost(request.url());
+            final Breaker breaker = breakerFor(host);
+            final Admission admission = breaker.admit();
+            if (admission == Admission.REJECTED) {
+                String secondaryHost = options.secondaryHost();
+                boolean isRead = "GET".equalsIgnoreCase(request.httpMethod())
+                        || "HEAD".equalsIgnoreCase(request.httpMethod());
+                if (secondaryHost != null && isRead) {
+                    return this.requestPolicy.sendAsync(new HttpRequest(request.callerMethod(), request.httpMethod(),
+                            Utility.withURLHost(request.url(), secondaryHost), request.headers(), request.body()));
+                }
+                return Single.error(new CircuitBreakerOpenException(host));
+            }
+
+            final AtomicBoolean recorded = new AtomicBoolean();
+            return this.requestPolicy.sendAsync(request)
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            if (recorded.compareAndSet(false, true)) {
+                                int statusCode = response.statusCode();
+                                boolean timedOut = statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR
+                                        && OPERATION_TIMED_OUT.equals(response.headerValue(
+                                                Constants.HeaderConstants.ERROR_CODE_HEADER));
+                                breaker.record(admission, statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                        timedOut);
+                            }
+                        }
+                    })
+                    .doOnError(new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) {
+                            if (recorded.compareAndSet(false, true)) {
+                                boolean timedOut = throwable instanceof TimeoutException
+                                        || throwable instanceof SocketTimeoutException;
+                                breaker.record(admission, true, timedOut);
+                            }
+                        }
+                    })
+                    .doOnDispose(new Action() {
+                        @Override
+                        public void run() {
+                            // A cancelled probe says nothing about the host, but must give back its slot.
+                            if (recorded.compareAndSet(false, true)) {
+                                breaker.abandon(admission);
+                            }
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new CircuitBreakerPolicy(next);
+    }
+
+    private Breaker breakerFor(String host) {
+        Breaker breaker = this.breakers.get(host);
+        if (breaker == null) {
+            Breaker created = new Breaker();
+            breaker = this.breakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /*
+     * The circuit of one host. Its state is small and only touched briefly, so it is guarded by its monitor.
+     */
+    private final class Breaker {
+        private State state = State.CLOSED;
+
+        private long windowStartNanos = System.nanoTime();
+
+        private int tries;
+
+        private int failures;
+
+        private int timeouts;
+
+        // When the circuit last opened, or last started letting probes through.
+        private long stateSinceNanos;
+
+        private int probesInFlight;
+
+        private int probeSuccesses;
+
+        synchronized boolean isOpen() {
+            return this.state != State.CLOSED;
+        }
+
+        synchronized Admission admit() {
+            if (this.state == State.CLOSED) {
+                return Admission.SENT;
+            }
+
+            long now = System.nanoTime();
+            long openNanos = TimeUnit.MILLISECONDS.toNanos(options.openDurationInMs());
+            if (this.state == State.OPEN && now - this.stateSinceNanos >= openNanos) {
+                this.halfOpen(now);
+            }
+            else if (this.state == State.HALF_OPEN && now - this.stateSinceNanos >= openNanos) {
+                // Probes which were never sent or answered would otherwise hold the circuit half-open forever.
+                this.halfOpen(now);
+            }
+
+            if (this.state == State.HALF_OPEN && this.probesInFlight < options.halfOpenProbes()) {
+                this.probesInFlight++;
+                return Admission.PROBE;
+            }
+            return Admission.REJECTED;
+        }
+
+        synchronized void record(Admission admission, boolean failed, boolean timedOut) {
+            long now = System.nanoTime();
+            if (admission == Admission.PROBE) {
+                if (this.state != State.HALF_OPEN) {
+                    return;
+                }
+
+                this.probesInFlight = Math.max(0, this.probesInFlight - 1);
+                if (failed) {
+                    this.open(now);
+                }
+                else if (++this.probeSuccesses >= options.halfOpenProbes()) {
+                    this.close(now);
+                }
+                return;
+            }
+
+            if (this.state != State.CLOSED) {
+                return;
+            }
+
+            if (now - this.windowStartNanos >= TimeUnit.MILLISECONDS.toNanos(options.windowInMs())) {
+                this.resetWindow(now);
+            }
+            this.tries++;
+            if (failed) {
+                this.failures++;
+            }
+            if (timedOut) {
+                this.timeouts++;
+            }
+
+            if (this.tries >= options.minimumTries()
+                    && (this.failures >= options.failureRatio() * this.tries
+                        || this.timeouts >= options.timeoutRatio() * this.tries)) {
+                this.open(now);
+            }
+        }
+
+        synchronized void abandon(Admission admission) {
+            if (admission == Admission.PROBE && this.state == State.HALF_OPEN) {
+                this.probesInFlight = Math.max(0, this.probesInFlight - 1);
+            }
+        }
+
+        private void open(long now) {
+            this.state = State.OPEN;
+            this.stateSinceNanos = now;
+        }
+
+        private void halfOpen(long now) {
+            this.state = State.HALF_OPEN;
+            this.stateSinceNanos = now;
+            this.probesInFlight = 0;
+            this.probeSuccesses = 0;
+        }
+
+        private void close(long now) {
+            this.state = State.CLOSED;
+            this.resetWindow(now);
+        }
+
+        private void resetWindow(long now) {
+            this.windowStartNanos = now;
+            this.tries = 0;
+            this.failures = 0;
+            this.timeouts = 0;
+        }
+    }
+}
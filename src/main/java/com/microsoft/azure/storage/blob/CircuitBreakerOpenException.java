@@ -0,0 +1,41 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+/**
+ * Thrown when a request is not sent because the circuit breaker for its host is open.
+ */
+public final class CircuitBreakerOpenException extends RuntimeException {
+
+    private final String host;
+
+    /**
+     * Creates a {@link CircuitBreakerOpenException}.
+     * @param host
+     *      The host whose circuit is open.
+     */
+    public CircuitBreakerOpenException(String host) {
+        super(String.format(Utility.LOCALE_US, SR.CIRCUIT_BREAKER_OPEN, host));
+        this.host = host;
+    }
+
+    /**
+     * @return
+     *      The host whose circuit is open.
+     */
+    public String host() {
+        return this.host;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for the per-host circuit breaker
+ */
+public final class CircuitBreakerOptions {
+
+    // FailureRatio is the fraction of tries in a window which must fail (5xx or no response) to open the circuit.
+    private double failureRatio = 0.5;
+
+    // TimeoutRatio is the fraction of tries in a window which must time out to open the circuit.
+    private double timeoutRatio = 0.2;
+
+    // MinimumTries is the number of tries a window must hold before either ratio is considered.
+    private int minimumTries = 20;
+
+    // WindowInMs is the length of the window over which outcomes are counted.
+    private long windowInMs = TimeUnit.SECONDS.toMillis(30);
+
+    // OpenDurationInMs is how long the circuit stays open before probe requests are let through.
+    private long openDurationInMs = TimeUnit.SECONDS.toMillis(30);
+
+    // HalfOpenProbes is the number of probe tries which must succeed in a row to close the circuit again.
+    private int halfOpenProbes = 3;
+
+    // SecondaryHost, if set, is the host which read requests (GET and HEAD) are sent to while the circuit is open,
+    // e.g. "myaccount-secondary.blob.core.windows.net". If it is null, requests fail fast instead.
+    private String secondaryHost;
+
+    public CircuitBreakerOptions() {
+    }
+
+    public CircuitBreakerOptions(Double failureRatio, Double timeoutRatio, Integer minimumTries, Long windowInMs,
+                                 Long openDurationInMs, Integer halfOpenProbes, String secondaryHost) {
+        if (failureRatio != null) {
+            if (!(failureRatio > 0 && failureRatio <= 1)) {
+                throw new IllegalArgumentException(String.format(SR.PARAMETER_NOT_IN_RANGE, "failureRatio", 0, 1));
+            }
+            this.failureRatio = failureRatio;
+        }
+
+        if (timeoutRatio != null) {
+            if (!(timeoutRatio > 0 && timeoutRatio <= 1)) {
+                throw new IllegalArgumentException(String.format(SR.PARAMETER_NOT_IN_RANGE, "timeoutRatio", 0, 1));
+            }
+            this.timeoutRatio = timeoutRatio;
+        }
+
+        if (minimumTries != null) {
+            Utility.assertInBounds("minimumTries", minimumTries, 1, Integer.MAX_VALUE);
+            this.minimumTries = minimumTries;
+        }
+
+        if (windowInMs != null) {
+            Utility.assertInBounds("windowInMs", windowInMs, 1, Long.MAX_VALUE);
+            this.windowInMs = windowInMs;
+        }
+
+        if (openDurationInMs != null) {
+            Utility.assertInBounds("openDurationInMs", openDurationInMs, 1, Long.MAX_VALUE);
+            this.openDurationInMs = openDurationInMs;
+        }
+
+        if (halfOpenProbes != null) {
+            Utility.assertInBounds("halfOpenProbes", halfOpenProbes, 1, Integer.MAX_VALUE);
+            this.halfOpenProbes = halfOpenProbes;
+        }
+
+        this.secondaryHost = secondaryHost;
+    }
+
+    public double failureRatio() {
+        return this.failureRatio;
+    }
+
+    public double timeoutRatio() {
+        return this.timeoutRatio;
+    }
+
+    public int minimumTries() {
+        return this.minimumTries;
+    }
+
+    public long windowInMs() {
+        return this.windowInMs;
+    }
+
+    public long openDurationInMs() {
+        return this.openDurationInMs;
+    }
+
+    public int halfOpenProbes() {
+        return this.halfOpenProbes;
+    }
+
+    public String secondaryHost() {
+        return this.secondaryHost;
+    }
+}
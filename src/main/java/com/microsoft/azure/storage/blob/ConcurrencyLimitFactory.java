@@ -0,0 +1,376 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleObserver;
+import io.reactivex.SingleOnSubscribe;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Cancellable;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for capping the requests in flight to each storage account host with an adaptive limit. The limit grows by
+ * about one for every limit's worth of healthy responses while it is being used, and shrinks by a quarter when the
+ * service reports that it is busy (503, or 500 OperationTimedOut), when a try times out, or when the time to respond
+ * to a bodiless request rises to more than twice the lowest seen recently. Only one decrease is applied per round
+ * of requests, so a burst of failures from requests sent at the same time counts once.
+ *
+ * Requests over the limit wait in a queue without holding a thread, and are started in order as others complete.
+ * The limit applies to every {@link StorageURL} built on the same pipeline. {@link StorageURL#CreatePipeline} adds
+ * the policy after the credentials policy when {@link PipelineOptions#concurrencyLimit} is set, and ahead of the retry
+ * policy's {@link RequestRetryFactory#tryTimeoutFactory() try timeout}: a try's timeout only starts once it is granted
+ * a slot, and a try which times out reaches this policy as a {@link TimeoutException}. A try cancelled from outside,
+ * e.g. because its caller gave up, releases its slot without adjusting the limit.
+ */
+public final class ConcurrencyLimitFactory implements RequestPolicyFactory {
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final String OPERATION_TIMED_OUT = "OperationTimedOut";
+
+    private final int initialLimit;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link ConcurrencyLimitFactory} which starts at 32 requests in flight per host, and adapts between 1
+     * and 1024.
+     */
+    public ConcurrencyLimitFactory() {
+        this(32, 1, 1024);
+    }
+
+    /**
+     * Creates a {@link ConcurrencyLimitFactory}.
+     * @param initialLimit
+     *      The number of requests allowed in flight to a host before any have completed.
+     * @param minLimit
+     *      The lowest the limit shrinks to.
+     * @param maxLimit
+     *      The highest the limit grows to.
+     */
+    public ConcurrencyLimitFactory(int initialLimit, int minLimit, int maxLimit) {
+        Utility.assertInBounds("minLimit", minLimit, 1, Integer.MAX_VALUE);
+        Utility.assertInBounds("maxLimit", maxLimit, minLimit, Integer.MAX_VALUE);
+        Utility.assertInBounds("initialLimit", initialLimit, minLimit, maxLimit);
+
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @param host
+     *      The host, including the port if any, e.g. "myaccount.blob.core.windows.net".
+     * @return
+     *      The current limit of requests in flight to the host.
+     */
+    public int limit(String host) {
+        Limiter limiter = this.limiters.get(host);
+        return limiter == null ? this.initialLimit : limiter.limit();
+    }
+
+    /**
+     * @param host
+     *      The host, including the port if any, e.g. "myaccount.blob.core.windows.net".
+     * @return
+     *      The number of requests to the host waiting for the limit to allow them.
+     */
+    public int queued(String host) {
+        Limiter limiter = this.limiters.get(host);
+        return limiter == null ? 0 : limiter.queued();
+    }
+
+    private final class ConcurrencyLimitPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        ConcurrencyLimitPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Holds the try back until the host's limit allows it
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final Limiter limiter = limiterFor(Utility.getURLHost(request.url()));
+            String contentLength = request.headers().value(Constants.HeaderConstants.CONTENT_LENGTH);
+            final boolean bodiless = contentLength == null || contentLength.equals("0");
+
+            // Assemble the inner policies now, on the caller's thread; only subscribing to them waits for the limit.
+            final Single<HttpResponse> response = this.requestPolicy.sendAsync(request);
+            return Single.create(new SingleOnSubscribe<HttpResponse>() {
+                @Override
+                public void subscribe(SingleEmitter<HttpResponse> emitter) {
+                    Permit permit = new Permit(limiter, response, emitter, bodiless);
+                    emitter.setCancellable(permit);
+                    limiter.acquire(permit);
+                }
+            });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new ConcurrencyLimitPolicy(next);
+    }
+
+    private Limiter limiterFor(String host) {
+        Limiter limiter = this.limiters.get(host);
+        if (limiter == null) {
+            Limiter created = new Limiter();
+            limiter = this.limiters.putIfAbsent(host, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /*
+     * Whether a completed try indicates that the service is overloaded.
+     */
+    private static boolean isOverloaded(HttpResponse response) {
+        int statusCode = response.statusCode();
+        return statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+                || (statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR && OPERATION_TIMED_OUT.equals(
+                        response.headerValue(Constants.HeaderConstants.ERROR_CODE_HEADER)));
+    }
+
+    /*
+     * Whether a failed try indicates that the service is overloaded. The retry policy's try timeout fails the try with
+     * a TimeoutException; the HTTP client's own read timeout with a SocketTimeoutException.
+     */
+    private static boolean isOverloaded(Throwable throwable) {
+        return throwable instanceof TimeoutException || throwable instanceof SocketTimeoutException;
+    }
+
+    /*
+     * The limit for one host. The state is small and only touched briefly, so it is guarded by the limiter's monitor;
+     * granted permits are always started outside it.
+     */
+    private final class Limiter {
+        private final ArrayDeque<Permit> waiting = new ArrayDeque<>();
+
+        private double limit = initialLimit;
+
+        private int inFlight;
+
+        private long lastDecreaseNanos = System.nanoTime();
+
+        private long baselineMicros = Long.MAX_VALUE;
+
+        private long windowMinMicros = Long.MAX_VALUE;
+
+        private long windowStartNanos = System.nanoTime();
+
+        synchronized int limit() {
+            return (int) this.limit;
+        }
+
+        synchronized int queued() {
+            return this.waiting.size();
+        }
+
+        void acquire(Permit permit) {
+            synchronized (this) {
+                if (this.inFlight >= (int) this.limit || !this.waiting.isEmpty()) {
+                    this.waiting.addLast(permit);
+                    return;
+                }
+                this.inFlight++;
+            }
+            permit.start();
+        }
+
+        void cancel(Permit permit) {
+            synchronized (this) {
+                this.waiting.remove(permit);
+            }
+        }
+
+        /*
+         * Gives back a permit's slot, adjusting the limit for the try's outcome, and starts any permits it lets in.
+         */
+        void release(Permit permit, boolean overloaded, long latencyMicros) {
+            List<Permit> granted = null;
+            synchronized (this) {
+                this.inFlight--;
+                if (overloaded) {
+                    this.decrease(permit.startNanos);
+                }
+                else if (latencyMicros >= 0) {
+                    this.observe(permit.startNanos, latencyMicros);
+                }
+
+                while (!this.waiting.isEmpty() && this.inFlight < (int) this.limit) {
+                    if (granted == null) {
+                        granted = new ArrayList<>();
+                    }
+                    granted.add(this.waiting.pollFirst());
+                    this.inFlight++;
+                }
+            }
+
+            if (granted != null) {
+                for (Permit next : granted) {
+                    next.start();
+                }
+            }
+        }
+
+        private void observe(long startNanos, long latencyMicros) {
+            long now = System.nanoTime();
+            this.windowMinMicros = Math.min(this.windowMinMicros, latencyMicros);
+            if (now - this.windowStartNanos >= BASELINE_WINDOW_NANOS) {
+                // Let the baseline rise again if the lowest latency has drifted up, e.g. after moving region.
+                this.baselineMicros = this.windowMinMicros;
+                this.windowMinMicros = Long.MAX_VALUE;
+                this.windowStartNanos = now;
+            }
+            else {
+                this.baselineMicros = Math.min(this.baselineMicros, latencyMicros);
+            }
+
+            if (this.baselineMicros != Long.MAX_VALUE && latencyMicros > this.baselineMicros * LATENCY_TOLERANCE) {
+                this.decrease(startNanos);
+            }
+            else if (this.inFlight + 1 >= this.limit / 2) {
+                // Only probe upward while the limit is actually being used.
+                this.limit = Math.min(maxLimit, this.limit + 1 / this.limit);
+            }
+        }
+
+        private void decrease(long startNanos) {
+            // Tries sent before the last decrease saw the old limit; don't punish the new one for them.
+            if (startNanos - this.lastDecreaseNanos < 0) {
+                return;
+            }
+            this.limit = Math.max(minLimit, this.limit * DECREASE_FACTOR);
+            this.lastDecreaseNanos = System.nanoTime();
+        }
+    }
+
+    /*
+     * One try's claim on a slot. It waits in the limiter's queue, then subscribes to the assembled try and releases
+     * the slot exactly once, however the try ends.
+     */
+    private static final class Permit implements Cancellable {
+        private static final int WAITING = 0;
+
+        private static final int RUNNING = 1;
+
+        private static final int DONE = 2;
+
+        private final Limiter limiter;
+
+        private final Single<HttpResponse> response;
+
+        private final SingleEmitter<HttpResponse> emitter;
+
+        private final boolean bodiless;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private volatile Disposable upstream;
+
+        private long startNanos;
+
+        Permit(Limiter limiter, Single<HttpResponse> response, SingleEmitter<HttpResponse> emitter,
+               boolean bodiless) {
+            this.limiter = limiter;
+            this.response = response;
+            this.emitter = emitter;
+            this.bodiless = bodiless;
+        }
+
+        void start() {
+            if (!this.state.compareAndSet(WAITING, RUNNING)) {
+                // Cancelled while it was being granted.
+                this.limiter.release(this, false, -1);
+                return;
+            }
+
+            this.startNanos = System.nanoTime();
+            this.response.subscribe(new SingleObserver<HttpResponse>() {
+                @Override
+                public void onSubscribe(Disposable disposable) {
+                    upstream = disposable;
+                }
+
+                @Override
+                public void onSuccess(HttpResponse response) {
+                    if (state.compareAndSet(RUNNING, DONE)) {
+                        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                        limiter.release(Permit.this, isOverloaded(response), bodiless ? latencyMicros : -1);
+                        emitter.onSuccess(response);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    if (state.compareAndSet(RUNNING, DONE)) {
+                        limiter.release(Permit.this, isOverloaded(throwable), -1);
+                        emitter.onError(throwable);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            int previous = this.state.getAndSet(DONE);
+            if (previous == WAITING) {
+                this.limiter.cancel(this);
+            }
+            else if (previous == RUNNING) {
+                Disposable upstream = this.upstream;
+                if (upstream != null) {
+                    upstream.dispose();
+                }
+                this.limiter.release(this, false, -1);
+            }
+        }
+    }
+}
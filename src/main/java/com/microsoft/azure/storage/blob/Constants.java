@@ -440,6 +440,11 @@ public final class Constants {
          */
         public static final String DELETE_SNAPSHOT_HEADER = PREFIX_FOR_STORAGE_HEADER + "delete-snapshots";
 
+        /**
+         * The header that specifies the storage error code of a failed request.
+         */
+        public static final String ERROR_CODE_HEADER = PREFIX_FOR_STORAGE_HEADER + "error-code";
+
         /**
          * The ETag header.
          */
@@ -1149,6 +1154,11 @@ public final class Constants {
      */
     public static int MAX_APPEND_BLOCK_SIZE = 4 * MB;
 
+    /**
+     * The maximum number of committed blocks in an AppendBlob.
+     */
+    public static final int MAX_APPEND_BLOB_BLOCK_COUNT = 50000;
+
     /**
      * The maximum write size that can uploaded to a PageBlob at once.
      */
@@ -14,12 +14,19 @@
  */
 package com.microsoft.azure.storage.blob;
 
+import com.microsoft.azure.storage.implementation.StorageClientImpl;
 import com.microsoft.azure.storage.models.*;
 import com.microsoft.rest.v2.RestResponse;
 import com.microsoft.rest.v2.http.HttpPipeline;
+import io.reactivex.Flowable;
 import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.BooleanSupplier;
+import io.reactivex.functions.Function;
+import org.reactivestreams.Publisher;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Represents a URL to the Azure Storage container allowing you to manipulate its blobs.
@@ -30,6 +37,10 @@ public final class ContainerURL extends StorageURL {
         super(url, pipeline);
     }
 
+    ContainerURL(StructuredURL url, StorageClientImpl storageClient) {
+        super(url, storageClient);
+    }
+
     /**
      * Creates a new {@link ContainerURL} with the given pipeline.
      * @param pipeline
@@ -51,7 +62,7 @@ public final class ContainerURL extends StorageURL {
      * @return
      */
     public BlockBlobURL createBlockBlobURL(String blobName) {
-        return new BlockBlobURL(super.appendToURLPath(this.url, blobName), this.storageClient.httpPipeline());
+        return new BlockBlobURL(super.structuredURL.withChild(blobName), this.storageClient);
     }
 
     /**
@@ -64,7 +75,7 @@ public final class ContainerURL extends StorageURL {
      * @return
      */
     public PageBlobURL createPageBlobURL(String blobName) {
-        return new PageBlobURL(super.appendToURLPath(this.url, blobName), this.storageClient.httpPipeline());
+        return new PageBlobURL(super.structuredURL.withChild(blobName), this.storageClient);
     }
 
     /**
@@ -77,7 +88,7 @@ public final class ContainerURL extends StorageURL {
      * @return
      */
     public AppendBlobURL createAppendBlobURL(String blobName) {
-        return new AppendBlobURL(super.appendToURLPath(this.url, blobName), this.storageClient.httpPipeline());
+        return new AppendBlobURL(super.structuredURL.withChild(blobName), this.storageClient);
     }
 
     /**
@@ -156,4 +167,214 @@ public final class ContainerURL extends StorageURL {
         return this.storageClient.containers().getAclWithRestResponseAsync(
                 super.url, timeout, leaseAccessConditions.toString(), null);
     }
+
+    /**
+     * ListBlobs returns a single segment of blobs starting from the specified marker. Start with a {@code null} marker
+     * and pass the response's next marker to subsequent calls until it is empty.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/list-blobs.
+     * @param prefix
+     *      A {@code String} that filters the results to return only blobs whose names begin with it.
+     * @param delimiter
+     *      A {@code String} used to group blob names into virtual directories, or {@code null}.
+     * @param marker
+     *      A {@code String} that identifies the segment to return, or {@code null} for the first segment.
+     * @param maxresults
+     *      A {@code Integer} representing the maximum number of results to retrieve. If {@code null} or greater
+     *      than 5000, the server will return up to 5,000 items.
+     * @param include
+     *      A {@link ListBlobsIncludeType} specifying additional datasets to include, or {@code null}.
+     * @return
+     *      A {@link Single<ListBlobsResponse>} object containing the segment if successful.
+     */
+    public Single<RestResponse<ContainerListBlobsHeaders, ListBlobsResponse>> listBlobsAsync(
+            String prefix, String delimiter, String marker, Integer maxresults, ListBlobsIncludeType include,
+            Integer timeout) {
+        return this.storageClient.containers().listBlobsWithRestResponseAsync(super.url, prefix, delimiter, marker,
+                maxresults, include, timeout, null);
+    }
+
+    /**
+     * Lists the container's blobs segment by segment, from a marker until the listing ends or reaches a stop marker.
+     * Each segment is requested once the previous one has been emitted, by repeating a single request rather than
+     * nesting a subscription per segment, so that long listings do not build up a chain of them.
+     * @param prefix
+     *      A {@code String} that filters the results to return only blobs whose names begin with it.
+     * @param marker
+     *      A {@code String} that identifies the first segment to return, or {@code null} to start at the beginning.
+     * @param stopMarker
+     *      A {@code String} identifying a segment which is not to be returned, or {@code null} to list to the end.
+     * @param maxresults
+     *      A {@code Integer} representing the maximum number of results in each segment, or {@code null}.
+     * @return
+     *      A {@link Flowable} of the segments.
+     */
+    Flowable<ListBlobsResponse> listBlobSegmentsAsync(final String prefix, final String marker,
+                                                      final String stopMarker, final Integer maxresults) {
+        return Flowable.defer(new Callable<Publisher<ListBlobsResponse>>() {
+            @Override
+            public Publisher<ListBlobsResponse> call() {
+                final SegmentCursor cursor = new SegmentCursor(marker);
+                return Single.defer(new Callable<SingleSource<ListBlobsResponse>>() {
+                    @Override
+                    public SingleSource<ListBlobsResponse> call() {
+                        return listBlobsAsync(prefix, null, cursor.marker, maxresults, null, null)
+                                .map(new Function<RestResponse<ContainerListBlobsHeaders, ListBlobsResponse>,
+                                        ListBlobsResponse>() {
+                                    @Override
+                                    public ListBlobsResponse apply(
+                                            RestResponse<ContainerListBlobsHeaders, ListBlobsResponse> response) {
+                                        ListBlobsResponse segment = response.body();
+                                        String next = segment.nextMarker();
+                                        cursor.marker = next;
+                                        cursor.finished = next == null || next.isEmpty() || next.equals(stopMarker);
+                                        return segment;
+                                    }
+                                });
+                    }
+                }).repeatUntil(new BooleanSupplier() {
+                    @Override
+                    public boolean getAsBoolean() {
+                        return cursor.finished;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * AcquireLease acquires a lease on the container for delete operations. The lease duration must be between
+     * 15 to 60 seconds, or infinite (-1).
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-container.
+     * @param proposedID
+     *      A {@code String} representing the proposed lease ID, in a GUID String format, or {@code null}.
+     * @param duration
+     *      An {@code Integer} representing the lease duration in seconds.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions. Only the date conditions are
+     *      supported for containers.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<ContainerLeaseHeaders, Void>> acquireLeaseAsync(
+            String proposedID, Integer duration, HttpAccessConditions httpAccessConditions, Integer timeout) {
+        httpAccessConditions = validateLeaseAccessConditions(httpAccessConditions);
+
+        return this.storageClient.containers().leaseWithRestResponseAsync(super.url, LeaseActionType.ACQUIRE,
+                timeout, null, null, duration, proposedID, httpAccessConditions.getIfModifiedSince(),
+                httpAccessConditions.getIfUnmodifiedSince(), null);
+    }
+
+    /**
+     * RenewLease renews the container's previously-acquired lease.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-container.
+     * @param leaseID
+     *      A {@code String} representing the lease ID to renew.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions. Only the date conditions are
+     *      supported for containers.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<ContainerLeaseHeaders, Void>> renewLeaseAsync(
+            String leaseID, HttpAccessConditions httpAccessConditions, Integer timeout) {
+        httpAccessConditions = validateLeaseAccessConditions(httpAccessConditions);
+
+        return this.storageClient.containers().leaseWithRestResponseAsync(super.url, LeaseActionType.RENEW,
+                timeout, leaseID, null, null, null, httpAccessConditions.getIfModifiedSince(),
+                httpAccessConditions.getIfUnmodifiedSince(), null);
+    }
+
+    /**
+     * ReleaseLease releases the container's previously-acquired lease.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-container.
+     * @param leaseID
+     *      A {@code String} representing the lease ID to release.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions. Only the date conditions are
+     *      supported for containers.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<ContainerLeaseHeaders, Void>> releaseLeaseAsync(
+            String leaseID, HttpAccessConditions httpAccessConditions, Integer timeout) {
+        httpAccessConditions = validateLeaseAccessConditions(httpAccessConditions);
+
+        return this.storageClient.containers().leaseWithRestResponseAsync(super.url, LeaseActionType.RELEASE,
+                timeout, leaseID, null, null, null, httpAccessConditions.getIfModifiedSince(),
+                httpAccessConditions.getIfUnmodifiedSince(), null);
+    }
+
+    /**
+     * BreakLease breaks the container's previously-acquired lease (if it exists).
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-container.
+     * @param breakPeriodInSeconds
+     *      An optional {@code Integer} representing the proposed duration of seconds that the lease should continue
+     *      before it is broken, between 0 and 60 seconds. This break period is only used if it is shorter than the time
+     *      remaining on the lease.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions. Only the date conditions are
+     *      supported for containers.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<ContainerLeaseHeaders, Void>> breakLeaseAsync(
+            Integer breakPeriodInSeconds, HttpAccessConditions httpAccessConditions, Integer timeout) {
+        httpAccessConditions = validateLeaseAccessConditions(httpAccessConditions);
+
+        return this.storageClient.containers().leaseWithRestResponseAsync(super.url, LeaseActionType.BREAK,
+                timeout, null, breakPeriodInSeconds, null, null, httpAccessConditions.getIfModifiedSince(),
+                httpAccessConditions.getIfUnmodifiedSince(), null);
+    }
+
+    /**
+     * ChangeLease changes the container's lease ID.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/lease-container.
+     * @param leaseID
+     *      A {@code String} representing the current lease ID.
+     * @param proposedID
+     *      A {@code String} representing the proposed lease ID, in a GUID String format.
+     * @param httpAccessConditions
+     *      A {@link HttpAccessConditions} object that represents HTTP access conditions. Only the date conditions are
+     *      supported for containers.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<ContainerLeaseHeaders, Void>> changeLeaseAsync(
+            String leaseID, String proposedID, HttpAccessConditions httpAccessConditions, Integer timeout) {
+        httpAccessConditions = validateLeaseAccessConditions(httpAccessConditions);
+
+        return this.storageClient.containers().leaseWithRestResponseAsync(super.url, LeaseActionType.CHANGE,
+                timeout, leaseID, null, null, proposedID, httpAccessConditions.getIfModifiedSince(),
+                httpAccessConditions.getIfUnmodifiedSince(), null);
+    }
+
+    private static HttpAccessConditions validateLeaseAccessConditions(HttpAccessConditions httpAccessConditions) {
+        if (httpAccessConditions == null) {
+            return HttpAccessConditions.getDefault();
+        }
+        else if (isETagConditionSet(httpAccessConditions.getIfMatch())
+                || isETagConditionSet(httpAccessConditions.getIfNoneMatch())) {
+            throw new IllegalArgumentException("ETag access conditions are not supported for container leases");
+        }
+
+        return httpAccessConditions;
+    }
+
+    private static boolean isETagConditionSet(ETag eTag) {
+        return eTag != null && eTag.toString() != null;
+    }
+
+    /*
+     * The position of one listing. Segments are requested one at a time, so it needs no synchronization beyond the
+     * ordering the repeat already provides.
+     */
+    private static final class SegmentCursor {
+        String marker;
+
+        boolean finished;
+
+        SegmentCursor(String marker) {
+            this.marker = marker;
+        }
+    }
 }
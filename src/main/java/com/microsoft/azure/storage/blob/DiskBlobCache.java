@@ -0,0 +1,609 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Function;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches blob data in local files, so that data which is read repeatedly is downloaded once. Each blob version, i.e.
+ * URL and ETag, has a sparse file holding the ranges read so far, so partial reads are cached as well as whole ones.
+ * Data is written to the file as the caller reads the response, so a read which is abandoned part way caches what was
+ * read. When the least recently used versions' files exceed {@code maxBytes} they are deleted.
+ *
+ * A read of cached ranges is revalidated with {@code If-None-Match}: if the blob is unchanged, the service answers
+ * 304 Not Modified without any data and the read is served from the file; otherwise the new data is returned and
+ * cached in place of the old. Set {@code freshnessInMs} to serve reads within that time of the last revalidation
+ * without a request. Only calls without access conditions or a range MD5 are cached; others are passed straight
+ * through.
+ *
+ * The index of cached ranges is held in memory, so the directory is emptied of cache files when the cache is created.
+ * Give each cache its own directory.
+ */
+public final class DiskBlobCache {
+
+    private static final String FILE_SUFFIX = ".blobcache";
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final long freshnessNanos;
+
+    // Guarded by its own monitor, as is totalBytes.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a {@link DiskBlobCache} which revalidates every read of cached data.
+     * @param directory
+     *      The directory to hold the cache files, which is created if needed.
+     * @param maxBytes
+     *      The most data to keep cached.
+     * @throws IOException
+     *      If the directory cannot be created or emptied.
+     */
+    public DiskBlobCache(File directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, 0);
+    }
+
+    /**
+     * Creates a {@link DiskBlobCache}.
+     * @param directory
+     *      The directory to hold the cache files, which is created if needed.
+     * @param maxBytes
+     *      The most data to keep cached.
+     * @param freshnessInMs
+     *      How long after a blob version was last revalidated its cached data is served without a request, or 0 to
+     *      revalidate every read.
+     * @throws IOException
+     *      If the directory cannot be created or emptied.
+     */
+    public DiskBlobCache(File directory, long maxBytes, long freshnessInMs) throws IOException {
+        Utility.assertNotNull("directory", directory);
+        Utility.assertInBounds("maxBytes", maxBytes, 1, Long.MAX_VALUE);
+        Utility.assertInBounds("freshnessInMs", freshnessInMs, 0, TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format(Utility.LOCALE_US, SR.DIRECTORY_NOT_CREATED, directory));
+        }
+
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.getName().endsWith(FILE_SUFFIX) && !leftover.delete()) {
+                    throw new IOException(String.format(Utility.LOCALE_US, SR.FILE_NOT_DELETED, leftover));
+                }
+            }
+        }
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessInMs);
+    }
+
+    /**
+     * Reads a range of the blob, from the cache if it holds the range and the blob is unchanged.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param range
+     *      A {@link BlobRange} object specifying the range to read.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete. Calls with conditions other than the default are not cached.
+     * @param rangeGetContentMD5
+     *      A {@code boolean} indicating whether the service should return the MD5 hash of the range. Calls which
+     *      request it are not cached.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value, if a request is sent.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetHeaders} and the data.
+     */
+    public Single<RestResponse<BlobsGetHeaders, InputStream>> getBlobAsync(
+            final BlobURL blobURL, BlobRange range, BlobAccessConditions blobAccessConditions,
+            boolean rangeGetContentMD5, final Integer timeout) {
+        final BlobRange requestRange = range == null ? new BlobRange() : range;
+        if ((blobAccessConditions != null && blobAccessConditions != BlobAccessConditions.getDefault())
+                || rangeGetContentMD5) {
+            return blobURL.getBlobAsync(null, requestRange, blobAccessConditions, rangeGetContentMD5, timeout);
+        }
+
+        final String key = Utility.getURLResourceKey(blobURL.toString());
+        final boolean wholeBlob = requestRange.offset == null;
+        final long start = wholeBlob ? 0 : requestRange.offset;
+        return Single.defer(new Callable<SingleSource<RestResponse<BlobsGetHeaders, InputStream>>>() {
+            @Override
+            public SingleSource<RestResponse<BlobsGetHeaders, InputStream>> call() throws Exception {
+                long now = System.nanoTime();
+                final Entry entry;
+                final long end;
+                FileChannel freshChannel = null;
+                synchronized (entries) {
+                    Entry cached = entries.get(key);
+                    long cachedEnd = -1;
+                    if (cached != null) {
+                        cachedEnd = !wholeBlob && requestRange.count != null ? start + requestRange.count
+                                : cached.length;
+                        if (cachedEnd > cached.length || !cached.ranges.covers(start, cachedEnd)) {
+                            cached = null;
+                        }
+                    }
+                    entry = cached;
+                    end = cachedEnd;
+                    if (entry != null && now - entry.validatedAtNanos < freshnessNanos) {
+                        freshChannel = openForRead(entry);
+                    }
+                }
+
+                if (freshChannel != null) {
+                    hits.incrementAndGet();
+                    return Single.just(cachedResponse(entry, freshChannel, start, end, wholeBlob, null));
+                }
+                if (entry == null) {
+                    return fetch(blobURL, key, requestRange, null, timeout);
+                }
+
+                BlobAccessConditions conditions = new BlobAccessConditions(
+                        new HttpAccessConditions(null, null, ETag.getDefault(), new ETag(entry.eTag)),
+                        LeaseAccessConditions.getDefault(), null, null);
+                return fetch(blobURL, key, requestRange, conditions, timeout)
+                        .onErrorResumeNext(new Function<Throwable,
+                                SingleSource<RestResponse<BlobsGetHeaders, InputStream>>>() {
+                            @Override
+                            public SingleSource<RestResponse<BlobsGetHeaders, InputStream>> apply(
+                                    Throwable throwable) throws IOException {
+                                if (!(throwable instanceof RestException)
+                                        || ((RestException) throwable).response() == null
+                                        || ((RestException) throwable).response().statusCode()
+                                            != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                                    return Single.error(throwable);
+                                }
+
+                                FileChannel channel;
+                                synchronized (entries) {
+                                    entry.validatedAtNanos = System.nanoTime();
+                                    channel = openForRead(entry);
+                                }
+                                if (channel == null) {
+                                    // Evicted since the request was sent, so the data has to be read again.
+                                    return fetch(blobURL, key, requestRange, null, timeout);
+                                }
+                                hits.incrementAndGet();
+                                return Single.just(cachedResponse(entry, channel, start, end, wholeBlob,
+                                        ((RestException) throwable).response().headerValue(
+                                                Constants.HeaderConstants.REQUEST_ID_HEADER)));
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * @return
+     *      The number of reads served from the cache.
+     */
+    public long hits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return
+     *      The number of reads which downloaded data.
+     */
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return
+     *      The number of bytes of data cached.
+     */
+    public long size() {
+        synchronized (this.entries) {
+            return this.totalBytes;
+        }
+    }
+
+    private Single<RestResponse<BlobsGetHeaders, InputStream>> fetch(
+            BlobURL blobURL, final String key, BlobRange range, BlobAccessConditions conditions, Integer timeout) {
+        return blobURL.getBlobAsync(null, range, conditions, false, timeout)
+                .map(new Function<RestResponse<BlobsGetHeaders, InputStream>,
+                        RestResponse<BlobsGetHeaders, InputStream>>() {
+                    @Override
+                    public RestResponse<BlobsGetHeaders, InputStream> apply(
+                            RestResponse<BlobsGetHeaders, InputStream> response) {
+                        misses.incrementAndGet();
+                        return store(key, response);
+                    }
+                });
+    }
+
+    /*
+     * Opens the version's file for reading, or returns null if it has been evicted or cannot be opened. Called with
+     * the entries' monitor held, so that the file cannot be evicted and deleted between the check and the open.
+     */
+    private static FileChannel openForRead(Entry entry) {
+        if (entry.evicted) {
+            return null;
+        }
+
+        try {
+            return FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Returns the response with its data copied into the blob version's file as the caller reads it. A version with
+     * a new ETag replaces the old one.
+     */
+    private RestResponse<BlobsGetHeaders, InputStream> store(String key,
+                                                             RestResponse<BlobsGetHeaders, InputStream> response) {
+        BlobsGetHeaders headers = response.headers();
+        long[] contentRange = Utility.parseContentRange(headers.contentLength(), headers.contentRange());
+        if (headers.eTag() == null || contentRange == null) {
+            return response;
+        }
+
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+            if (entry == null || !entry.eTag.equals(headers.eTag())) {
+                if (entry != null) {
+                    this.remove(key, entry);
+                }
+                entry = new Entry(new File(this.directory, UUID.randomUUID() + FILE_SUFFIX), headers.eTag(),
+                        contentRange[2], headers, response.rawHeaders());
+                this.entries.put(key, entry);
+            }
+            entry.validatedAtNanos = System.nanoTime();
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            // The data is still returned; it is just not cached.
+            return response;
+        }
+        return new RestResponse<BlobsGetHeaders, InputStream>(response.statusCode(), headers,
+                response.rawHeaders(), new CachingInputStream(response.body(), channel, entry, contentRange[0]));
+    }
+
+    private RestResponse<BlobsGetHeaders, InputStream> cachedResponse(Entry entry, FileChannel channel, long start,
+                                                                      long end, boolean wholeBlob, String requestId)
+            throws IOException {
+        String contentRange = wholeBlob ? null : String.format(Utility.LOCALE_US, "bytes %d-%d/%d", start, end - 1,
+                entry.length);
+        BlobsGetHeaders original = entry.headers;
+        BlobsGetHeaders headers = new BlobsGetHeaders()
+                .withLastModified(original.lastModified())
+                .withMetadata(original.metadata())
+                .withContentLength(end - start)
+                .withContentType(original.contentType())
+                .withContentRange(contentRange)
+                .withETag(original.eTag())
+                .withContentEncoding(original.contentEncoding())
+                .withCacheControl(original.cacheControl())
+                .withContentDisposition(original.contentDisposition())
+                .withBlobSequenceNumber(original.blobSequenceNumber())
+                .withBlobType(original.blobType())
+                .withRequestId(requestId)
+                .withVersion(original.version())
+                .withAcceptRanges(original.acceptRanges())
+                .withBlobCommittedBlockCount(original.blobCommittedBlockCount())
+                .withIsServerEncrypted(original.isServerEncrypted());
+
+        // The lease and the range may differ from the response which populated the cache.
+        Map<String, String> rawHeaders = new HashMap<>();
+        for (Map.Entry<String, String> header : entry.rawHeaders.entrySet()) {
+            String name = header.getKey().toLowerCase(Utility.LOCALE_US);
+            if (!name.equals("content-length") && !name.equals("content-range") && !name.equals("content-md5")
+                    && !name.startsWith("x-ms-lease-") && !name.equals(Constants.HeaderConstants.REQUEST_ID_HEADER)) {
+                rawHeaders.put(header.getKey(), header.getValue());
+            }
+        }
+        rawHeaders.put(Constants.HeaderConstants.CONTENT_LENGTH, Long.toString(end - start));
+        if (contentRange != null) {
+            rawHeaders.put(Constants.HeaderConstants.CONTENT_RANGE, contentRange);
+        }
+        if (requestId != null) {
+            rawHeaders.put(Constants.HeaderConstants.REQUEST_ID_HEADER, requestId);
+        }
+
+        channel.position(start);
+        return new RestResponse<BlobsGetHeaders, InputStream>(
+                wholeBlob ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL, headers, rawHeaders,
+                new BoundedInputStream(Channels.newInputStream(channel), end - start));
+    }
+
+    private void record(Entry entry, long start, long end) {
+        synchronized (this.entries) {
+            if (entry.evicted) {
+                return;
+            }
+
+            long added = entry.ranges.add(start, end);
+            entry.bytes += added;
+            this.totalBytes += added;
+            for (Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+                 it.hasNext() && this.totalBytes > this.maxBytes; ) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                this.evicted(eldest);
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        this.entries.remove(key);
+        this.evicted(entry);
+    }
+
+    private void evicted(Entry entry) {
+        entry.evicted = true;
+        this.totalBytes -= entry.bytes;
+        // Readers which have the file open keep reading it. Where an open file cannot be deleted, it is left for the
+        // next cache created on the directory to remove.
+        entry.file.delete();
+    }
+
+    /*
+     * One blob version. Guarded by the entries' monitor, except for the final fields.
+     */
+    private static final class Entry {
+        final File file;
+
+        final String eTag;
+
+        final long length;
+
+        final BlobsGetHeaders headers;
+
+        final Map<String, String> rawHeaders;
+
+        final RangeSet ranges = new RangeSet();
+
+        long bytes;
+
+        long validatedAtNanos;
+
+        boolean evicted;
+
+        Entry(File file, String eTag, long length, BlobsGetHeaders headers, Map<String, String> rawHeaders) {
+            this.file = file;
+            this.eTag = eTag;
+            this.length = length;
+            this.headers = headers;
+            this.rawHeaders = rawHeaders == null ? new HashMap<String, String>() : rawHeaders;
+        }
+    }
+
+    /*
+     * The disjoint ranges of a file which hold data, keyed by their start offset, with their end offset.
+     */
+    static final class RangeSet {
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        boolean covers(long start, long end) {
+            if (start >= end) {
+                return true;
+            }
+            Map.Entry<Long, Long> floor = this.ranges.floorEntry(start);
+            return floor != null && floor.getValue() >= end;
+        }
+
+        /*
+         * Adds a range, merging it with those it overlaps or touches, and returns the number of bytes newly covered.
+         */
+        long add(long start, long end) {
+            if (start >= end) {
+                return 0;
+            }
+
+            long mergedStart = start;
+            long mergedEnd = end;
+            long previouslyCovered = 0;
+            Map.Entry<Long, Long> floor = this.ranges.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                mergedStart = floor.getKey();
+                mergedEnd = Math.max(mergedEnd, floor.getValue());
+                previouslyCovered += floor.getValue() - floor.getKey();
+                this.ranges.remove(floor.getKey());
+            }
+
+            Map.Entry<Long, Long> next;
+            while ((next = this.ranges.ceilingEntry(mergedStart)) != null && next.getKey() <= mergedEnd) {
+                mergedEnd = Math.max(mergedEnd, next.getValue());
+                previouslyCovered += next.getValue() - next.getKey();
+                this.ranges.remove(next.getKey());
+            }
+
+            this.ranges.put(mergedStart, mergedEnd);
+            return mergedEnd - mergedStart - previouslyCovered;
+        }
+    }
+
+    /*
+     * Writes the data to the file at its offset as it is read. If writing fails, the data is still returned and the
+     * part written so far is cached.
+     */
+    private final class CachingInputStream extends FilterInputStream {
+        private final FileChannel channel;
+
+        private final Entry entry;
+
+        private final long start;
+
+        private long position;
+
+        private boolean closed;
+
+        CachingInputStream(InputStream in, FileChannel channel, Entry entry, long start) {
+            super(in);
+            this.channel = channel;
+            this.entry = entry;
+            this.start = start;
+            this.position = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = this.read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && this.channel.isOpen()) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, read);
+                    long writePosition = this.position;
+                    while (buffer.hasRemaining()) {
+                        writePosition += this.channel.write(buffer, writePosition);
+                    }
+                }
+                catch (IOException e) {
+                    this.finish();
+                }
+            }
+            if (read > 0) {
+                this.position += read;
+            }
+            else if (read == -1) {
+                this.finish();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped data is not written, so only what was read before it is cached.
+            this.finish();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.finish();
+            super.close();
+        }
+
+        private void finish() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+
+            try {
+                this.channel.close();
+                record(this.entry, this.start, this.position);
+            }
+            catch (IOException e) {
+                // The data may not have reached the file, so none of it is recorded as cached.
+            }
+        }
+    }
+
+    /*
+     * Limits a stream over the rest of a file to one range.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0) {
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
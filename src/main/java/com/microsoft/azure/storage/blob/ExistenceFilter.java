@@ -0,0 +1,397 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.Blob;
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.azure.storage.models.BlobsGetPropertiesHeaders;
+import com.microsoft.azure.storage.models.ListBlobsResponse;
+import com.microsoft.rest.v2.RestResponse;
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.Single;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers reads of blobs which do not exist without sending a request. Once a container has been seeded with
+ * {@link #seedAsync(ContainerURL)}, which lists it, a Bloom filter holds the names of its blobs. A read of a name which
+ * the filter has definitely not seen fails with a {@link BlobNotListedException} in place of the 404 Not Found the
+ * service would have returned. Any other read, including the roughly 1% of missing names which the filter mistakes
+ * for listed ones, is sent as usual.
+ *
+ * The filter holds the names which exist, rather than those which were found missing, so that a mistake costs a
+ * request rather than hiding a blob. Set {@link PipelineOptions#existenceFilter} so that blobs created through the
+ * pipeline are added to the filters of their containers, including while they are being seeded. Blobs created by
+ * other clients are only seen once the container is seeded again, so each seeding is trusted for
+ * {@code timeToLiveInMs}; after that reads of the container are sent as usual until it is seeded again.
+ */
+public final class ExistenceFilter implements RequestPolicyFactory {
+
+    /**
+     * The default time a container's seeding is trusted.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE_IN_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // The filter is sized for at least this many names, and twice the number listed, to leave room for creates.
+    private static final int MIN_EXPECTED_NAMES = 1024;
+
+    private final long timeToLiveNanos;
+
+    private final ConcurrentHashMap<String, Container> containers = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestsAvoided = new AtomicLong();
+
+    /**
+     * Creates an {@link ExistenceFilter} which trusts each seeding for {@link #DEFAULT_TIME_TO_LIVE_IN_MS}.
+     */
+    public ExistenceFilter() {
+        this(DEFAULT_TIME_TO_LIVE_IN_MS);
+    }
+
+    /**
+     * Creates an {@link ExistenceFilter}.
+     * @param timeToLiveInMs
+     *      How long each seeding is trusted, i.e. how stale a container's view of blobs created by other clients
+     *      may become.
+     */
+    public ExistenceFilter(long timeToLiveInMs) {
+        Utility.assertInBounds("timeToLiveInMs", timeToLiveInMs, 1, TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE));
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveInMs);
+    }
+
+    /**
+     * Lists the container and replaces its filter with the names found.
+     * @param containerURL
+     *      The {@link ContainerURL} of the container to seed.
+     * @return
+     *      A {@link Completable} which completes once the filter is in use.
+     */
+    public Completable seedAsync(final ContainerURL containerURL) {
+        return Completable.defer(new Callable<CompletableSource>() {
+            @Override
+            public CompletableSource call() {
+                final Container container = containerFor(containerKey(containerURL.structuredURL));
+                final Set<String> created = container.beginSeed();
+                final List<String> names = new ArrayList<>();
+                return containerURL.listBlobSegmentsAsync(null, null, null, null)
+                        .doOnNext(new Consumer<ListBlobsResponse>() {
+                            @Override
+                            public void accept(ListBlobsResponse page) {
+                                if (page.blobs() != null && page.blobs().blob() != null) {
+                                    for (Blob blob : page.blobs().blob()) {
+                                        names.add(blob.name());
+                                    }
+                                }
+                            }
+                        })
+                        .doOnCancel(new Action() {
+                            @Override
+                            public void run() {
+                                container.abandonSeed(created);
+                            }
+                        })
+                        .ignoreElements()
+                        .doOnComplete(new Action() {
+                            @Override
+                            public void run() {
+                                container.finishSeed(names, created, System.nanoTime() + timeToLiveNanos);
+                            }
+                        })
+                        .doOnError(new Consumer<Throwable>() {
+                            @Override
+                            public void accept(Throwable throwable) {
+                                container.abandonSeed(created);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Gets the blob's properties and metadata, unless it is known not to exist.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetPropertiesHeaders}, or
+     *      fails with a {@link BlobNotListedException}.
+     */
+    public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> getPropertiesAndMetadataAsync(
+            final BlobURL blobURL, final BlobAccessConditions blobAccessConditions, final Integer timeout) {
+        return Single.defer(new Callable<Single<RestResponse<BlobsGetPropertiesHeaders, Void>>>() {
+            @Override
+            public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> call() {
+                if (!mightExist(blobURL.structuredURL)) {
+                    requestsAvoided.incrementAndGet();
+                    return Single.error(new BlobNotListedException(blobURL.toString()));
+                }
+                return blobURL.getPropertiesAndMetadataAsync(blobAccessConditions, timeout);
+            }
+        });
+    }
+
+    /**
+     * Reads a range of the blob, unless it is known not to exist.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param range
+     *      A {@link BlobRange} object specifying the range to read.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete.
+     * @param rangeGetContentMD5
+     *      A {@code boolean} indicating whether the service should return the MD5 hash of the range.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetHeaders} and the data,
+     *      or fails with a {@link BlobNotListedException}.
+     */
+    public Single<RestResponse<BlobsGetHeaders, InputStream>> getBlobAsync(
+            final BlobURL blobURL, final BlobRange range, final BlobAccessConditions blobAccessConditions,
+            final boolean rangeGetContentMD5, final Integer timeout) {
+        return Single.defer(new Callable<Single<RestResponse<BlobsGetHeaders, InputStream>>>() {
+            @Override
+            public Single<RestResponse<BlobsGetHeaders, InputStream>> call() {
+                if (!mightExist(blobURL.structuredURL)) {
+                    requestsAvoided.incrementAndGet();
+                    return Single.error(new BlobNotListedException(blobURL.toString()));
+                }
+                return blobURL.getBlobAsync(null, range, blobAccessConditions, rangeGetContentMD5, timeout);
+            }
+        });
+    }
+
+    /**
+     * Forgets a container's filter, so that reads of its blobs are sent until it is seeded again.
+     * @param containerURL
+     *      The {@link ContainerURL} of the container.
+     */
+    public void invalidate(ContainerURL containerURL) {
+        this.containers.remove(containerKey(containerURL.structuredURL));
+    }
+
+    /**
+     * @return
+     *      The number of reads which failed without sending a request.
+     */
+    public long requestsAvoided() {
+        return this.requestsAvoided.get();
+    }
+
+    private final class CreatePolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        CreatePolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Adds the blob written by a PUT to its container's filter before the request is sent
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            if ("PUT".equalsIgnoreCase(request.httpMethod())) {
+                // Every blob is created by a PUT. Other PUTs, such as setting metadata, only cost the filter a
+                // little accuracy; adding before sending means a read racing the create is never failed.
+                StructuredURL url = StructuredURL.parse(request.url());
+                if (url.blobName() != null && url.snapshot() == null) {
+                    Container container = containers.get(containerKey(url));
+                    if (container != null) {
+                        container.add(blobName(url));
+                    }
+                }
+            }
+            return this.requestPolicy.sendAsync(request);
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new CreatePolicy(next);
+    }
+
+    private boolean mightExist(StructuredURL url) {
+        if (url.blobName() == null || url.snapshot() != null) {
+            return true;
+        }
+
+        Container container = this.containers.get(containerKey(url));
+        return container == null || container.mightContain(blobName(url), System.nanoTime());
+    }
+
+    private Container containerFor(String key) {
+        Container container = this.containers.get(key);
+        if (container == null) {
+            Container created = new Container();
+            container = this.containers.putIfAbsent(key, created);
+            if (container == null) {
+                container = created;
+            }
+        }
+        return container;
+    }
+
+    /*
+     * Names are compared decoded, since a URL may percent-encode a name differently from this SDK, and a mismatch
+     * would hide a blob.
+     */
+    private static String containerKey(StructuredURL url) {
+        String containerName = url.containerName();
+        return url.accountURL().toLowerCase(Utility.LOCALE_US) + '/'
+                + (containerName == null ? "" : Utility.urlDecode(containerName, 0, containerName.length()));
+    }
+
+    private static String blobName(StructuredURL url) {
+        return Utility.urlDecode(url.blobName(), 0, url.blobName().length());
+    }
+
+    /*
+     * The filter of one container. Guarded by its monitor.
+     */
+    private static final class Container {
+        private BloomFilter filter;
+
+        private long expiresAtNanos;
+
+        // The names created while a seeding is listing the container, which its listing may have missed.
+        private Set<String> created;
+
+        private int seeding;
+
+        synchronized boolean mightContain(String name, long now) {
+            return this.filter == null || now >= this.expiresAtNanos || this.filter.mightContain(name);
+        }
+
+        synchronized void add(String name) {
+            if (this.filter != null) {
+                this.filter.add(name);
+            }
+            if (this.created != null) {
+                this.created.add(name);
+            }
+        }
+
+        synchronized Set<String> beginSeed() {
+            if (this.created == null) {
+                this.created = new HashSet<>();
+            }
+            this.seeding++;
+            return this.created;
+        }
+
+        synchronized void finishSeed(List<String> names, Set<String> created, long expiresAtNanos) {
+            BloomFilter filter = new BloomFilter(Math.max(MIN_EXPECTED_NAMES, 2 * (names.size() + created.size())));
+            for (String name : names) {
+                filter.add(name);
+            }
+            for (String name : created) {
+                filter.add(name);
+            }
+            this.filter = filter;
+            this.expiresAtNanos = expiresAtNanos;
+            this.abandonSeed(created);
+        }
+
+        synchronized void abandonSeed(Set<String> created) {
+            if (this.created == created && --this.seeding == 0) {
+                this.created = null;
+            }
+        }
+    }
+
+    /*
+     * A Bloom filter of names, using double hashing of a 64-bit FNV-1a hash to derive its probes.
+     */
+    private static final class BloomFilter {
+        private final long[] words;
+
+        private final int bits;
+
+        private final int hashes;
+
+        BloomFilter(int expectedNames) {
+            double ln2 = Math.log(2);
+            long optimalBits = (long) Math.ceil(-expectedNames * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+            this.bits = (int) Math.min(optimalBits, Integer.MAX_VALUE - Long.SIZE);
+            this.words = new long[(this.bits + Long.SIZE - 1) / Long.SIZE];
+            this.hashes = Math.max(1, (int) Math.round((double) this.bits / expectedNames * ln2));
+        }
+
+        void add(String name) {
+            long hash = hash(name);
+            for (int i = 0; i < this.hashes; i++) {
+                int bit = this.probe(hash, i);
+                this.words[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String name) {
+            long hash = hash(name);
+            for (int i = 0; i < this.hashes; i++) {
+                int bit = this.probe(hash, i);
+                if ((this.words[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int probe(long hash, int i) {
+            int combined = (int) hash + i * (int) (hash >>> 32);
+            return (combined & Integer.MAX_VALUE) % this.bits;
+        }
+
+        private static long hash(String name) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                hash ^= name.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            // FNV-1a mixes its low bits poorly for short names; finish with the MurmurHash3 avalanche.
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Factory for emitting a Java Flight Recorder event, "com.microsoft.azure.storage.RequestTry", for every request
+ * try. Each event carries the operation, the URL path, the try number, the status code (0 if the try failed without
+ * a response), whether the try was cancelled, e.g. by the retry policy's try timeout, the bytes sent and received,
+ * the time to first byte, and the time spent preparing and signing the request versus waiting on the wire.
+ *
+ * JFR is only available from Java 9 onward, and this library targets Java 7, so the event type is defined at runtime
+ * through {@code jdk.jfr.EventFactory} and driven through method handles. {@link #isSupported()} reports whether
+ * that worked; where it did not, and while no recording has the event enabled, the policy only passes requests
+ * through. A failure to record an event is ignored rather than failing the try. {@link StorageURL#CreatePipeline}
+ * adds the policy ahead of the credentials policy when {@link PipelineOptions#flightRecorder} is set, so that signing
+ * falls within the measured preparation time.
+ */
+public final class FlightRecorderFactory implements RequestPolicyFactory {
+
+    /**
+     * The name of the JFR event type.
+     */
+    public static final String EVENT_NAME = "com.microsoft.azure.storage.RequestTry";
+
+    private static final String LOGGING_CONTEXT_HEADER = "x-ms-logging-context";
+
+    private static final int OPERATION = 0;
+
+    private static final int URL_PATH = 1;
+
+    private static final int TRY_NUMBER = 2;
+
+    private static final int STATUS_CODE = 3;
+
+    private static final int BYTES_SENT = 4;
+
+    private static final int BYTES_RECEIVED = 5;
+
+    private static final int TIME_TO_FIRST_BYTE = 6;
+
+    private static final int PREPARATION_TIME = 7;
+
+    private static final int WIRE_TIME = 8;
+
+    private static final int CANCELLED = 9;
+
+    private static final JfrBinding BINDING = JfrBinding.tryCreate();
+
+    /**
+     * @return
+     *      {@code true} if the running JVM supports JFR events.
+     */
+    public static boolean isSupported() {
+        return BINDING != null;
+    }
+
+    private final class FlightRecorderPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        private int tryCount;
+
+        FlightRecorderPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Records a JFR event for the try
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            this.tryCount++;
+            if (BINDING == null || !BINDING.isEnabled()) {
+                return this.requestPolicy.sendAsync(request);
+            }
+
+            final Object event = BINDING.begin();
+            if (event == null) {
+                return this.requestPolicy.sendAsync(request);
+            }
+            BINDING.set(event, OPERATION, request.headers().value(LOGGING_CONTEXT_HEADER));
+            // The path only, since the query may hold a SAS.
+            BINDING.set(event, URL_PATH, Utility.getURLPath(request.url()));
+            BINDING.set(event, TRY_NUMBER, this.tryCount);
+            BINDING.set(event, BYTES_SENT, parseContentLength(
+                    request.headers().value(Constants.HeaderConstants.CONTENT_LENGTH)));
+
+            // The inner policies, including signing, run synchronously here; nothing is sent until subscription.
+            final long startNanos = System.nanoTime();
+            Single<HttpResponse> response = this.requestPolicy.sendAsync(request);
+            BINDING.set(event, PREPARATION_TIME, System.nanoTime() - startNanos);
+
+            final long[] wireStartNanos = new long[1];
+            // Set once the event is committed, so that a disposal after the try's outcome is not recorded again.
+            final AtomicBoolean committed = new AtomicBoolean();
+            return response
+                    .doOnSubscribe(new Consumer<Disposable>() {
+                        @Override
+                        public void accept(Disposable disposable) {
+                            wireStartNanos[0] = System.nanoTime();
+                        }
+                    })
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            if (committed.compareAndSet(false, true)) {
+                                BINDING.set(event, STATUS_CODE, response.statusCode());
+                                BINDING.set(event, BYTES_RECEIVED, parseContentLength(
+                                        response.headerValue(Constants.HeaderConstants.CONTENT_LENGTH)));
+                                commit(event, startNanos, wireStartNanos[0]);
+                            }
+                        }
+                    })
+                    .doOnError(new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) {
+                            if (committed.compareAndSet(false, true)) {
+                                BINDING.set(event, STATUS_CODE, 0);
+                                commit(event, startNanos, wireStartNanos[0]);
+                            }
+                        }
+                    })
+                    .doOnDispose(new Action() {
+                        @Override
+                        public void run() {
+                            if (committed.compareAndSet(false, true)) {
+                                BINDING.set(event, STATUS_CODE, 0);
+                                BINDING.set(event, CANCELLED, true);
+                                commit(event, startNanos, wireStartNanos[0]);
+                            }
+                        }
+                    });
+        }
+
+        private void commit(Object event, long startNanos, long wireStartNanos) {
+            long now = System.nanoTime();
+            BINDING.set(event, TIME_TO_FIRST_BYTE, now - startNanos);
+            BINDING.set(event, WIRE_TIME, wireStartNanos == 0 ? 0L : now - wireStartNanos);
+            BINDING.commit(event);
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new FlightRecorderPolicy(next);
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return 0L;
+        }
+
+        try {
+            return Math.max(Long.parseLong(value.trim()), 0L);
+        }
+        catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /*
+     * Method handles onto a jdk.jfr.EventFactory-defined event type.
+     */
+    private static final class JfrBinding {
+        private final Object factory;
+
+        private final Object eventType;
+
+        private final MethodHandle isEnabled;
+
+        private final MethodHandle newEvent;
+
+        private final MethodHandle begin;
+
+        private final MethodHandle set;
+
+        private final MethodHandle commit;
+
+        private JfrBinding(Object factory, Object eventType, MethodHandle isEnabled, MethodHandle newEvent,
+                           MethodHandle begin, MethodHandle set, MethodHandle commit) {
+            this.factory = factory;
+            this.eventType = eventType;
+            this.isEnabled = isEnabled;
+            this.newEvent = newEvent;
+            this.begin = begin;
+            this.set = set;
+            this.commit = commit;
+        }
+
+        static JfrBinding tryCreate() {
+            try {
+                Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+                Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+                Constructor<?> field = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+                Class<?> name = Class.forName("jdk.jfr.Name");
+                Class<?> label = Class.forName("jdk.jfr.Label");
+                Class<?> category = Class.forName("jdk.jfr.Category");
+                Class<?> timespan = Class.forName("jdk.jfr.Timespan");
+                Class<?> dataAmount = Class.forName("jdk.jfr.DataAmount");
+
+                List<Object> eventAnnotations = Arrays.asList(
+                        annotation.newInstance(name, EVENT_NAME),
+                        annotation.newInstance(label, "Storage Request Try"),
+                        annotation.newInstance(category, new String[] { "Azure Storage" }));
+
+                // Order must match the field index constants.
+                List<Object> fields = new ArrayList<>();
+                fields.add(field.newInstance(String.class, "operation",
+                        Collections.singletonList(annotation.newInstance(label, "Operation"))));
+                fields.add(field.newInstance(String.class, "urlPath",
+                        Collections.singletonList(annotation.newInstance(label, "URL Path"))));
+                fields.add(field.newInstance(int.class, "tryNumber",
+                        Collections.singletonList(annotation.newInstance(label, "Try Number"))));
+                fields.add(field.newInstance(int.class, "statusCode",
+                        Collections.singletonList(annotation.newInstance(label, "Status Code"))));
+                fields.add(field.newInstance(long.class, "bytesSent", Arrays.asList(
+                        annotation.newInstance(label, "Bytes Sent"), annotation.newInstance(dataAmount, "BYTES"))));
+                fields.add(field.newInstance(long.class, "bytesReceived", Arrays.asList(
+                        annotation.newInstance(label, "Bytes Received"),
+                        annotation.newInstance(dataAmount, "BYTES"))));
+                fields.add(field.newInstance(long.class, "timeToFirstByte", Arrays.asList(
+                        annotation.newInstance(label, "Time to First Byte"),
+                        annotation.newInstance(timespan, "NANOSECONDS"))));
+                fields.add(field.newInstance(long.class, "preparationTime", Arrays.asList(
+                        annotation.newInstance(label, "Preparation and Signing Time"),
+                        annotation.newInstance(timespan, "NANOSECONDS"))));
+                fields.add(field.newInstance(long.class, "wireTime", Arrays.asList(
+                        annotation.newInstance(label, "Wire Time"),
+                        annotation.newInstance(timespan, "NANOSECONDS"))));
+                fields.add(field.newInstance(boolean.class, "cancelled",
+                        Collections.singletonList(annotation.newInstance(label, "Cancelled"))));
+
+                Object factory = eventFactoryClass.getMethod("create", List.class, List.class)
+                        .invoke(null, eventAnnotations, fields);
+                Object eventType = eventFactoryClass.getMethod("getEventType").invoke(factory);
+
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                return new JfrBinding(factory, eventType,
+                        lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class)),
+                        lookup.findVirtual(eventFactoryClass, "newEvent", MethodType.methodType(eventClass)),
+                        lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class)),
+                        lookup.findVirtual(eventClass, "set",
+                                MethodType.methodType(void.class, int.class, Object.class)),
+                        lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class)));
+            }
+            catch (Throwable e) {
+                // Not a JFR-capable runtime.
+                return null;
+            }
+        }
+
+        boolean isEnabled() {
+            try {
+                return (boolean) this.isEnabled.invoke(this.eventType);
+            }
+            catch (Throwable e) {
+                return false;
+            }
+        }
+
+        /*
+         * The event operations below never throw: instrumentation must not turn a storage response into an error, so
+         * an event which cannot be recorded is dropped.
+         */
+        Object begin() {
+            try {
+                Object event = this.newEvent.invoke(this.factory);
+                this.begin.invoke(event);
+                return event;
+            }
+            catch (Throwable e) {
+                return null;
+            }
+        }
+
+        void set(Object event, int index, Object value) {
+            try {
+                this.set.invoke(event, index, value);
+            }
+            catch (Throwable e) {
+                // Dropped with the event, as above.
+            }
+        }
+
+        void commit(Object event) {
+            try {
+                this.commit.invoke(event);
+            }
+            catch (Throwable e) {
+                // Dropped, as above.
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RESERVED FOR INTERNAL USE
+ * A lock-free log-linear histogram of durations in microseconds. Each power of two is split into eight linear
+ * buckets, so any recorded value is reported within 12.5% of its true value, from 1 microsecond up to about 12 days.
+ * Recording is a single atomic increment and never allocates.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one duration.
+     */
+    void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        this.counts.incrementAndGet(bucketIndex(micros));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(micros);
+        long currentMax = this.max.get();
+        while (micros > currentMax && !this.max.compareAndSet(currentMax, micros)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    /**
+     * @return
+     *      A copy of the bucket counts. Concurrent recordings may or may not be included.
+     */
+    long[] bucketCounts() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = this.counts.get(i);
+        }
+        return copy;
+    }
+
+    long count() {
+        return this.count.get();
+    }
+
+    long sum() {
+        return this.sum.get();
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the value at the given percentile of a copy of the bucket counts, as the upper bound of the bucket it
+     * falls in, or 0 if nothing was recorded.
+     */
+    static long percentile(long[] bucketCounts, double percentile) {
+        long total = 0;
+        for (long bucketCount : bucketCounts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(bucketCounts.length - 1);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
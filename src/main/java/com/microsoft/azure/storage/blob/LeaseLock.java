@@ -0,0 +1,335 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsSetPropertiesHeaders;
+import com.microsoft.azure.storage.models.SequenceNumberActionType;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.subjects.CompletableSubject;
+import org.reactivestreams.Publisher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distributed lock, and leader election on top of it, built from a lease on a page blob. The holder's lease is
+ * kept renewed by a {@link LeaseManager}.
+ *
+ * Each acquisition increments the page blob's sequence number while holding the lease, and the new value is the
+ * holder's fencing token. Tokens increase strictly across holders, so a resource that remembers the highest token
+ * it has seen can reject writes from a holder that has been replaced but does not know it yet. A page blob is used
+ * because its sequence number is incremented atomically by the service and can only be changed by the lease
+ * holder; containers have no equivalent, so container leases cannot provide fencing tokens.
+ */
+public final class LeaseLock {
+
+    private static final int HTTP_CONFLICT = 409;
+
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private final PageBlobURL lockBlobURL;
+
+    private final LeaseTarget target;
+
+    private final LeaseManager leaseManager;
+
+    private final int leaseDurationInSeconds;
+
+    private volatile boolean lockBlobExists;
+
+    /**
+     * Creates a {@link LeaseLock}. The lock blob is created on first use if it does not exist.
+     * @param lockBlobURL
+     *      The {@link PageBlobURL} whose lease represents the lock.
+     * @param leaseManager
+     *      The {@link LeaseManager} which renews the lease while it is held.
+     * @param leaseDurationInSeconds
+     *      The lease duration, between 15 and 60 seconds. A holder which stops renewing loses the lock after at
+     *      most this long.
+     */
+    public LeaseLock(PageBlobURL lockBlobURL, LeaseManager leaseManager, int leaseDurationInSeconds) {
+        if (lockBlobURL == null || leaseManager == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    lockBlobURL == null ? "lockBlobURL" : "leaseManager"));
+        }
+        Utility.assertInBounds("leaseDurationInSeconds", leaseDurationInSeconds, 15, 60);
+
+        this.lockBlobURL = lockBlobURL;
+        this.target = LeaseTarget.forBlob(lockBlobURL);
+        this.leaseManager = leaseManager;
+        this.leaseDurationInSeconds = leaseDurationInSeconds;
+    }
+
+    /**
+     * Tries once to take the lock.
+     * @return
+     *      A {@link Maybe} which emits a {@link LockHandle} if the lock was taken, or completes empty if another
+     *      holder has it.
+     */
+    public Maybe<LockHandle> tryAcquireAsync() {
+        return this.ensureLockBlobAsync().andThen(Maybe.defer(new Callable<MaybeSource<LockHandle>>() {
+            @Override
+            public MaybeSource<LockHandle> call() {
+                return leaseManager.acquireAsync(target, leaseDurationInSeconds)
+                        .flatMapMaybe(new Function<LeaseManager.ManagedLease, MaybeSource<LockHandle>>() {
+                            @Override
+                            public MaybeSource<LockHandle> apply(LeaseManager.ManagedLease lease) {
+                                return fenceAsync(lease);
+                            }
+                        })
+                        .onErrorResumeNext(new Function<Throwable, MaybeSource<LockHandle>>() {
+                            @Override
+                            public MaybeSource<LockHandle> apply(Throwable throwable) {
+                                // 409 LeaseAlreadyPresent: someone else holds the lock.
+                                return isStatus(throwable, HTTP_CONFLICT)
+                                        ? Maybe.<LockHandle>empty() : Maybe.<LockHandle>error(throwable);
+                            }
+                        });
+            }
+        }));
+    }
+
+    /**
+     * Takes the lock from a holder which has stopped responding. The current lease is broken with the given break
+     * period and the lock is acquired as soon as the break takes effect. A short break period gives fast failover;
+     * the replaced holder keeps the lease, and its fencing token stays valid, until the period ends.
+     * @param breakPeriodInSeconds
+     *      The break period, between 0 and 60 seconds.
+     * @return
+     *      A {@link Maybe} which emits a {@link LockHandle}, or completes empty if another node took the lock first.
+     */
+    public Maybe<LockHandle> forceAcquireAsync(final int breakPeriodInSeconds) {
+        Utility.assertInBounds("breakPeriodInSeconds", breakPeriodInSeconds, 0, 60);
+
+        return this.ensureLockBlobAsync().andThen(Maybe.defer(new Callable<MaybeSource<LockHandle>>() {
+            @Override
+            public MaybeSource<LockHandle> call() {
+                return target.breakAsync(breakPeriodInSeconds)
+                        .onErrorResumeNext(new Function<Throwable, SingleSource<Integer>>() {
+                            @Override
+                            public SingleSource<Integer> apply(Throwable throwable) {
+                                // 409 LeaseNotPresentWithLeaseOperation: there is nothing to break.
+                                return isStatus(throwable, HTTP_CONFLICT)
+                                        ? Single.just(0) : Single.<Integer>error(throwable);
+                            }
+                        })
+                        .flatMapMaybe(new Function<Integer, MaybeSource<LockHandle>>() {
+                            @Override
+                            public MaybeSource<LockHandle> apply(Integer remainingSeconds) {
+                                Maybe<LockHandle> acquire = tryAcquireAsync();
+                                return remainingSeconds > 0
+                                        ? acquire.delaySubscription(remainingSeconds, TimeUnit.SECONDS) : acquire;
+                            }
+                        });
+            }
+        }));
+    }
+
+    /**
+     * Campaigns for leadership. The returned stream tries to take the lock every {@code retryIntervalInMs} while
+     * another node holds it, and emits a {@link LockHandle} each time this node becomes leader. After leadership is
+     * lost the campaign continues. Cancelling the subscription ends the campaign but does not release a lock
+     * already handed out.
+     * @param retryIntervalInMs
+     *      The delay between attempts while another node is leader, and after a failed attempt.
+     * @return
+     *      A {@link Flowable} of leadership terms.
+     */
+    public Flowable<LockHandle> observe(final long retryIntervalInMs) {
+        Utility.assertInBounds("retryIntervalInMs", retryIntervalInMs, 1, Long.MAX_VALUE);
+
+        Flowable<LockHandle> term = Flowable.defer(new Callable<Publisher<LockHandle>>() {
+            @Override
+            public Publisher<LockHandle> call() {
+                return tryAcquireAsync().toFlowable()
+                        .concatMap(new Function<LockHandle, Publisher<LockHandle>>() {
+                            @Override
+                            public Publisher<LockHandle> apply(LockHandle handle) {
+                                // Hold this term open until leadership ends.
+                                return Flowable.just(handle).concatWith(handle.whenLost().<LockHandle>toFlowable());
+                            }
+                        });
+            }
+        });
+
+        return term
+                .retryWhen(new Function<Flowable<Throwable>, Publisher<?>>() {
+                    @Override
+                    public Publisher<?> apply(Flowable<Throwable> errors) {
+                        return errors.delay(retryIntervalInMs, TimeUnit.MILLISECONDS);
+                    }
+                })
+                .repeatWhen(new Function<Flowable<Object>, Publisher<?>>() {
+                    @Override
+                    public Publisher<?> apply(Flowable<Object> completions) {
+                        return completions.delay(retryIntervalInMs, TimeUnit.MILLISECONDS);
+                    }
+                });
+    }
+
+    private Completable ensureLockBlobAsync() {
+        return Completable.defer(new Callable<CompletableSource>() {
+            @Override
+            public CompletableSource call() {
+                if (lockBlobExists) {
+                    return Completable.complete();
+                }
+
+                BlobAccessConditions createIfAbsent = new BlobAccessConditions(
+                        new HttpAccessConditions(null, null, ETag.getDefault(), ETag.ANY),
+                        LeaseAccessConditions.getDefault(), AppendBlobAccessConditions.getDefault(),
+                        PageBlobAccessConditions.getDefault());
+                return lockBlobURL.createAsync(0, 0L, null, createIfAbsent, null)
+                        .toCompletable()
+                        .onErrorResumeNext(new Function<Throwable, CompletableSource>() {
+                            @Override
+                            public CompletableSource apply(Throwable throwable) {
+                                return isStatus(throwable, HTTP_CONFLICT)
+                                        || isStatus(throwable, HTTP_PRECONDITION_FAILED)
+                                        ? Completable.complete() : Completable.error(throwable);
+                            }
+                        })
+                        .doOnComplete(new Action() {
+                            @Override
+                            public void run() {
+                                lockBlobExists = true;
+                            }
+                        });
+            }
+        });
+    }
+
+    // Takes a fencing token under the new lease. The lease is released again if that fails.
+    private Maybe<LockHandle> fenceAsync(final LeaseManager.ManagedLease lease) {
+        BlobAccessConditions underLease = new BlobAccessConditions(HttpAccessConditions.getDefault(),
+                new LeaseAccessConditions(lease.leaseID()), AppendBlobAccessConditions.getDefault(),
+                PageBlobAccessConditions.getDefault());
+
+        return this.lockBlobURL.setSequenceNumberAsync(SequenceNumberActionType.INCREMENT, null, underLease, null)
+                .map(new Function<RestResponse<BlobsSetPropertiesHeaders, Void>, LockHandle>() {
+                    @Override
+                    public LockHandle apply(RestResponse<BlobsSetPropertiesHeaders, Void> response) {
+                        LockHandle handle = new LockHandle(lease,
+                                Long.parseLong(response.headers().blobSequenceNumber()));
+                        if (!lease.isHeld()) {
+                            // Lost while the token was being taken; the lost event may have been missed.
+                            handle.lost.onComplete();
+                        }
+                        return handle;
+                    }
+                })
+                .toMaybe()
+                .onErrorResumeNext(new Function<Throwable, MaybeSource<LockHandle>>() {
+                    @Override
+                    public MaybeSource<LockHandle> apply(Throwable throwable) {
+                        return leaseManager.releaseAsync(lease).onErrorComplete()
+                                .andThen(Maybe.<LockHandle>error(throwable));
+                    }
+                });
+    }
+
+    private static boolean isStatus(Throwable throwable, int statusCode) {
+        return throwable instanceof RestException && ((RestException) throwable).response() != null
+                && ((RestException) throwable).response().statusCode() == statusCode;
+    }
+
+    /**
+     * A held {@link LeaseLock}.
+     */
+    public final class LockHandle {
+        private final LeaseManager.ManagedLease lease;
+
+        private final long fencingToken;
+
+        private final CompletableSubject lost = CompletableSubject.create();
+
+        LockHandle(final LeaseManager.ManagedLease lease, long fencingToken) {
+            this.lease = lease;
+            this.fencingToken = fencingToken;
+
+            // Watch for the loss of this lease only while the handle is held, so that released handles are not kept
+            // reachable from the lease manager.
+            leaseManager.lostLeases()
+                    .filter(new Predicate<LeaseManager.LeaseLostEvent>() {
+                        @Override
+                        public boolean test(LeaseManager.LeaseLostEvent event) {
+                            return event.lease() == lease;
+                        }
+                    })
+                    .take(1)
+                    .takeUntil(this.lost.<LeaseManager.LeaseLostEvent>toObservable())
+                    .subscribe(new Consumer<LeaseManager.LeaseLostEvent>() {
+                        @Override
+                        public void accept(LeaseManager.LeaseLostEvent event) {
+                            lost.onComplete();
+                        }
+                    });
+        }
+
+        /**
+         * @return
+         *      The lock's fencing token. Tokens from later holders are always larger.
+         */
+        public long fencingToken() {
+            return this.fencingToken;
+        }
+
+        /**
+         * @return
+         *      The lease ID, for operations on the lock blob which require the lease.
+         */
+        public String leaseID() {
+            return this.lease.leaseID();
+        }
+
+        /**
+         * @return
+         *      {@code true} while the lock is held and the lease has not expired.
+         */
+        public boolean isHeld() {
+            return this.lease.isHeld();
+        }
+
+        /**
+         * @return
+         *      A {@link Completable} which completes when the lock is lost or released.
+         */
+        public Completable whenLost() {
+            return this.lost;
+        }
+
+        /**
+         * Releases the lock so that another node can take it immediately.
+         * @return
+         *      A {@link Completable} which completes once the lease has been released.
+         */
+        public Completable releaseAsync() {
+            this.lost.onComplete();
+            return leaseManager.releaseAsync(this.lease);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.RestException;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds many blob and container leases and keeps them renewed from a single hashed timer wheel. Renewals are
+ * scheduled at a random point between 40% and 60% of the lease duration, so leases acquired together do not renew
+ * together. The timer thread only starts renewals; it never waits on the service.
+ *
+ * A lease which cannot be renewed before it expires, or which the service reports as taken over, is dropped and
+ * published on {@link #lostLeases()}. Holders must stop relying on the lease once they see that event.
+ */
+public final class LeaseManager implements Closeable {
+
+    /**
+     * The default resolution of the renewal timer.
+     */
+    public static final long DEFAULT_TICK_DURATION_IN_MS = 100;
+
+    /**
+     * The default number of buckets in the renewal timer.
+     */
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static final long RENEW_RETRY_DELAY_IN_MS = 1000;
+
+    // A renewal must be sent at least this long before expiry for the lease to count as still held.
+    private static final long EXPIRY_MARGIN_IN_MS = 1000;
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private static final int HTTP_CONFLICT = 409;
+
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private final HashedWheelTimer timer;
+
+    private final Set<ManagedLease> leases =
+            Collections.newSetFromMap(new ConcurrentHashMap<ManagedLease, Boolean>());
+
+    private final Subject<LeaseLostEvent> lostLeases = PublishSubject.<LeaseLostEvent>create().toSerialized();
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a {@link LeaseManager} with the default timer settings.
+     */
+    public LeaseManager() {
+        this(DEFAULT_TICK_DURATION_IN_MS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Creates a {@link LeaseManager}.
+     * @param tickDurationInMs
+     *      The resolution of the renewal timer.
+     * @param ticksPerWheel
+     *      The number of buckets in the renewal timer.
+     */
+    public LeaseManager(long tickDurationInMs, int ticksPerWheel) {
+        Utility.assertInBounds("tickDurationInMs", tickDurationInMs, 1, Long.MAX_VALUE);
+        Utility.assertInBounds("ticksPerWheel", ticksPerWheel, 1, 1 << 30);
+
+        this.timer = new HashedWheelTimer(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "azure-storage-lease-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, tickDurationInMs, TimeUnit.MILLISECONDS, ticksPerWheel);
+    }
+
+    /**
+     * Acquires a lease on a blob and keeps it renewed until it is released.
+     * @param blobURL
+     *      The {@link BlobURL} to lease.
+     * @param durationInSeconds
+     *      The lease duration, between 15 and 60 seconds.
+     * @return
+     *      A {@link Single} which emits the held lease, or fails with {@link IllegalStateException} if the manager
+     *      has been closed.
+     */
+    public Single<ManagedLease> acquireAsync(BlobURL blobURL, int durationInSeconds) {
+        return this.acquireAsync(LeaseTarget.forBlob(blobURL), durationInSeconds);
+    }
+
+    /**
+     * Acquires a lease on a container and keeps it renewed until it is released.
+     * @param containerURL
+     *      The {@link ContainerURL} to lease.
+     * @param durationInSeconds
+     *      The lease duration, between 15 and 60 seconds.
+     * @return
+     *      A {@link Single} which emits the held lease, or fails with {@link IllegalStateException} if the manager
+     *      has been closed.
+     */
+    public Single<ManagedLease> acquireAsync(ContainerURL containerURL, int durationInSeconds) {
+        return this.acquireAsync(LeaseTarget.forContainer(containerURL), durationInSeconds);
+    }
+
+    Single<ManagedLease> acquireAsync(final LeaseTarget target, final int durationInSeconds) {
+        Utility.assertInBounds("durationInSeconds", durationInSeconds, 15, 60);
+
+        return Single.defer(new Callable<SingleSource<ManagedLease>>() {
+            @Override
+            public SingleSource<ManagedLease> call() {
+                if (closed) {
+                    return Single.error(new IllegalStateException(SR.LEASE_MANAGER_CLOSED));
+                }
+
+                final long sentAtNanos = System.nanoTime();
+                return target.acquireAsync(UUID.randomUUID().toString(), durationInSeconds)
+                        .flatMap(new Function<String, SingleSource<ManagedLease>>() {
+                            @Override
+                            public SingleSource<ManagedLease> apply(String leaseID) {
+                                ManagedLease lease = new ManagedLease(target, leaseID, durationInSeconds,
+                                        sentAtNanos);
+                                leases.add(lease);
+                                if (scheduleRenewal(lease, renewalDelayInMs(durationInSeconds))) {
+                                    return Single.just(lease);
+                                }
+
+                                // The manager was closed while the lease was being acquired, so nothing would
+                                // renew it; give it back rather than leave it held until it expires.
+                                stopRenewing(lease);
+                                return target.releaseAsync(leaseID).onErrorComplete().andThen(
+                                        Single.<ManagedLease>error(new IllegalStateException(SR.LEASE_MANAGER_CLOSED)));
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Stops renewing a lease and releases it.
+     * @param lease
+     *      A {@link ManagedLease} returned by this manager.
+     * @return
+     *      A {@link Completable} which completes once the lease has been released. It completes immediately if the
+     *      lease was already released or lost.
+     */
+    public Completable releaseAsync(final ManagedLease lease) {
+        if (!this.stopRenewing(lease)) {
+            return Completable.complete();
+        }
+
+        return lease.target.releaseAsync(lease.leaseID);
+    }
+
+    /*
+     * Stops renewing a lease without releasing it, e.g. because the leased blob is about to be deleted. Returns false
+     * if the lease was no longer held.
+     */
+    boolean stopRenewing(ManagedLease lease) {
+        if (!lease.state.compareAndSet(ManagedLease.HELD, ManagedLease.RELEASED)) {
+            return false;
+        }
+
+        this.leases.remove(lease);
+        Timeout renewal = lease.renewal;
+        if (renewal != null) {
+            renewal.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * @return
+     *      An {@link Observable} of leases which could not be kept. Events are delivered on the thread which
+     *      observed the failure and must not block.
+     */
+    public Observable<LeaseLostEvent> lostLeases() {
+        return this.lostLeases.hide();
+    }
+
+    /**
+     * @return
+     *      The number of leases currently held.
+     */
+    public int size() {
+        return this.leases.size();
+    }
+
+    /**
+     * Stops renewing every lease. Leases are not released; they expire at the end of their current duration. Leases
+     * cannot be acquired once the manager is closed.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.timer.stop();
+        this.leases.clear();
+    }
+
+    private static long renewalDelayInMs(int durationInSeconds) {
+        double fraction = 0.4 + 0.2 * ThreadLocalRandom.current().nextDouble();
+        return (long) (TimeUnit.SECONDS.toMillis(durationInSeconds) * fraction);
+    }
+
+    // Returns false if the timer has been stopped by close().
+    private boolean scheduleRenewal(final ManagedLease lease, long delayInMs) {
+        try {
+            lease.renewal = this.timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) {
+                    renew(lease);
+                }
+            }, delayInMs, TimeUnit.MILLISECONDS);
+        }
+        catch (IllegalStateException e) {
+            return false;
+        }
+
+        // A release racing with scheduling must not leave a renewal behind.
+        if (lease.state.get() != ManagedLease.HELD) {
+            lease.renewal.cancel();
+        }
+        return true;
+    }
+
+    private void renew(final ManagedLease lease) {
+        if (lease.state.get() != ManagedLease.HELD) {
+            return;
+        }
+
+        final long sentAtNanos = System.nanoTime();
+        lease.target.renewAsync(lease.leaseID).subscribe(new Action() {
+            @Override
+            public void run() {
+                lease.expiresAtNanos = sentAtNanos + TimeUnit.SECONDS.toNanos(lease.durationInSeconds);
+                if (lease.state.get() == ManagedLease.HELD) {
+                    scheduleRenewal(lease, renewalDelayInMs(lease.durationInSeconds));
+                }
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) {
+                long retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RENEW_RETRY_DELAY_IN_MS);
+                long deadlineNanos = lease.expiresAtNanos - TimeUnit.MILLISECONDS.toNanos(EXPIRY_MARGIN_IN_MS);
+                if (isLeaseGone(throwable) || retryAtNanos - deadlineNanos >= 0) {
+                    lose(lease, throwable);
+                }
+                else {
+                    scheduleRenewal(lease, RENEW_RETRY_DELAY_IN_MS);
+                }
+            }
+        });
+    }
+
+    private void lose(ManagedLease lease, Throwable cause) {
+        if (lease.state.compareAndSet(ManagedLease.HELD, ManagedLease.LOST)) {
+            this.leases.remove(lease);
+            this.lostLeases.onNext(new LeaseLostEvent(lease, cause));
+        }
+    }
+
+    // The service rejected the lease itself, as opposed to a transient failure; retrying cannot help.
+    private static boolean isLeaseGone(Throwable throwable) {
+        if (!(throwable instanceof RestException) || ((RestException) throwable).response() == null) {
+            return false;
+        }
+
+        int statusCode = ((RestException) throwable).response().statusCode();
+        return statusCode == HTTP_NOT_FOUND || statusCode == HTTP_CONFLICT || statusCode == HTTP_PRECONDITION_FAILED;
+    }
+
+    /**
+     * A lease held by a {@link LeaseManager}.
+     */
+    public static final class ManagedLease {
+        static final int HELD = 0;
+
+        static final int RELEASED = 1;
+
+        static final int LOST = 2;
+
+        final LeaseTarget target;
+
+        final String leaseID;
+
+        final int durationInSeconds;
+
+        final AtomicInteger state = new AtomicInteger(HELD);
+
+        volatile long expiresAtNanos;
+
+        volatile Timeout renewal;
+
+        ManagedLease(LeaseTarget target, String leaseID, int durationInSeconds, long acquiredAtNanos) {
+            this.target = target;
+            this.leaseID = leaseID;
+            this.durationInSeconds = durationInSeconds;
+            this.expiresAtNanos = acquiredAtNanos + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        }
+
+        /**
+         * @return
+         *      The URL of the leased blob or container.
+         */
+        public String url() {
+            return this.target.url();
+        }
+
+        /**
+         * @return
+         *      The lease ID to pass in {@link LeaseAccessConditions}.
+         */
+        public String leaseID() {
+            return this.leaseID;
+        }
+
+        /**
+         * @return
+         *      The lease duration in seconds.
+         */
+        public int durationInSeconds() {
+            return this.durationInSeconds;
+        }
+
+        /**
+         * @return
+         *      {@code true} while the lease is held and has been renewed recently enough not to have expired.
+         */
+        public boolean isHeld() {
+            return this.state.get() == HELD && System.nanoTime() - this.expiresAtNanos < 0;
+        }
+    }
+
+    /**
+     * Published when a {@link ManagedLease} could not be kept.
+     */
+    public static final class LeaseLostEvent {
+        private final ManagedLease lease;
+
+        private final Throwable cause;
+
+        LeaseLostEvent(ManagedLease lease, Throwable cause) {
+            this.lease = lease;
+            this.cause = cause;
+        }
+
+        /**
+         * @return
+         *      The lease which was lost.
+         */
+        public ManagedLease lease() {
+            return this.lease;
+        }
+
+        /**
+         * @return
+         *      The failure of the last renewal attempt.
+         */
+        public Throwable cause() {
+            return this.cause;
+        }
+    }
+}
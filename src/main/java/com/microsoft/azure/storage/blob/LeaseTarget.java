@@ -0,0 +1,131 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsLeaseHeaders;
+import com.microsoft.azure.storage.models.ContainerLeaseHeaders;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+
+/**
+ * Gives blob and container leases a common shape so that lease helpers need not care which kind of resource they
+ * hold.
+ */
+abstract class LeaseTarget {
+
+    private final StorageURL storageURL;
+
+    private LeaseTarget(StorageURL storageURL) {
+        this.storageURL = storageURL;
+    }
+
+    /**
+     * @return
+     *      The URL of the leased resource.
+     */
+    final String url() {
+        return this.storageURL.toString();
+    }
+
+    /**
+     * Acquires the lease and returns its ID.
+     */
+    abstract Single<String> acquireAsync(String proposedID, int durationInSeconds);
+
+    abstract Completable renewAsync(String leaseID);
+
+    abstract Completable releaseAsync(String leaseID);
+
+    /**
+     * Breaks the lease and returns the number of seconds until it can be acquired again.
+     */
+    abstract Single<Integer> breakAsync(int breakPeriodInSeconds);
+
+    static LeaseTarget forBlob(final BlobURL blobURL) {
+        return new LeaseTarget(blobURL) {
+            @Override
+            Single<String> acquireAsync(String proposedID, int durationInSeconds) {
+                return blobURL.acquireLeaseAsync(proposedID, durationInSeconds, null, null)
+                        .map(new Function<RestResponse<BlobsLeaseHeaders, Void>, String>() {
+                            @Override
+                            public String apply(RestResponse<BlobsLeaseHeaders, Void> response) {
+                                return response.headers().leaseId();
+                            }
+                        });
+            }
+
+            @Override
+            Completable renewAsync(String leaseID) {
+                return blobURL.renewLeaseAsync(leaseID, null, null).toCompletable();
+            }
+
+            @Override
+            Completable releaseAsync(String leaseID) {
+                return blobURL.releaseLeaseAsync(leaseID, null, null).toCompletable();
+            }
+
+            @Override
+            Single<Integer> breakAsync(int breakPeriodInSeconds) {
+                return blobURL.breakLeaseAsync(null, breakPeriodInSeconds, null, null)
+                        .map(new Function<RestResponse<BlobsLeaseHeaders, Void>, Integer>() {
+                            @Override
+                            public Integer apply(RestResponse<BlobsLeaseHeaders, Void> response) {
+                                Integer leaseTime = response.headers().leaseTime();
+                                return leaseTime == null ? 0 : leaseTime;
+                            }
+                        });
+            }
+        };
+    }
+
+    static LeaseTarget forContainer(final ContainerURL containerURL) {
+        return new LeaseTarget(containerURL) {
+            @Override
+            Single<String> acquireAsync(String proposedID, int durationInSeconds) {
+                return containerURL.acquireLeaseAsync(proposedID, durationInSeconds, null, null)
+                        .map(new Function<RestResponse<ContainerLeaseHeaders, Void>, String>() {
+                            @Override
+                            public String apply(RestResponse<ContainerLeaseHeaders, Void> response) {
+                                return response.headers().leaseId();
+                            }
+                        });
+            }
+
+            @Override
+            Completable renewAsync(String leaseID) {
+                return containerURL.renewLeaseAsync(leaseID, null, null).toCompletable();
+            }
+
+            @Override
+            Completable releaseAsync(String leaseID) {
+                return containerURL.releaseLeaseAsync(leaseID, null, null).toCompletable();
+            }
+
+            @Override
+            Single<Integer> breakAsync(int breakPeriodInSeconds) {
+                return containerURL.breakLeaseAsync(breakPeriodInSeconds, null, null)
+                        .map(new Function<RestResponse<ContainerLeaseHeaders, Void>, Integer>() {
+                            @Override
+                            public Integer apply(RestResponse<ContainerLeaseHeaders, Void> response) {
+                                Integer leaseTime = response.headers().leaseTime();
+                                return leaseTime == null ? 0 : leaseTime;
+                            }
+                        });
+            }
+        };
+    }
+}
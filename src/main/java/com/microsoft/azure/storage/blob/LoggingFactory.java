@@ -14,83 +14,118 @@
  */
 package com.microsoft.azure.storage.blob;
 
-import com.microsoft.rest.v2.http.HttpPipeline;
 import com.microsoft.rest.v2.http.HttpPipelineLogLevel;
 import com.microsoft.rest.v2.http.HttpRequest;
 import com.microsoft.rest.v2.http.HttpResponse;
 import com.microsoft.rest.v2.policy.RequestPolicy;
 import com.microsoft.rest.v2.policy.RequestPolicyFactory;
 import com.microsoft.rest.v2.policy.RequestPolicyOptions;
-import io.netty.handler.codec.http.HttpResponseStatus;
-//import org.apache.log4j.Level;
-import io.netty.handler.codec.http.HttpStatusClass;
 import io.reactivex.Single;
+import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 
 import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.logging.Level;
 
 /**
- * Factory for logging requests and responses
+ * Factory for logging requests and responses. Each line is a set of key=value pairs, and is only formatted if it is
+ * written. Errors are always logged; slow tries are logged as warnings; and a sample of the remaining operations,
+ * per {@link LoggingOptions#getSampleRate()}, is logged at INFO.
+ *
+ * A try is slow if it exceeds the fixed {@link LoggingOptions#getMinDurationToLogSlowRequestsInMs()} and, when
+ * {@link LoggingOptions#getSlowRequestPercentile()} is set, that percentile of the operation's try durations over the
+ * previous minute. Operations are named by the {@code x-ms-logging-context} header which the generated service
+ * interfaces set.
+ *
+ * A try which is disposed before it completes, e.g. because its caller gave up on it, is logged as a failure with
+ * {@code error=cancelled}.
  */
 public final class LoggingFactory implements RequestPolicyFactory {
 
+    private static final String LOGGING_CONTEXT_HEADER = "x-ms-logging-context";
+
+    private static final String REQUEST_FORMAT = "event=request operation=%s try=%d method=%s path=%s%n";
+
+    private static final String RESPONSE_FORMAT = "event=response outcome=%s operation=%s try=%d status=%d "
+            + "tryDurationMs=%d operationDurationMs=%d slowThresholdMs=%d%n";
+
+    private static final String FAILURE_FORMAT = "event=failure operation=%s try=%d tryDurationMs=%d "
+            + "operationDurationMs=%d error=%s message='%s'%n";
+
+    private static final String CANCELLED = "cancelled";
+
+    private static final String CANCELLED_MESSAGE = "The try was disposed before it completed.";
+
+    private static final long SLOW_THRESHOLD_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final long MIN_SLOW_THRESHOLD_SAMPLES = 100;
+
     private final LoggingOptions loggingOptions;
 
+    private final long minSlowMicros;
+
+    private final ConcurrentHashMap<String, SlowThreshold> slowThresholds = new ConcurrentHashMap<>();
+
     public LoggingFactory(LoggingOptions loggingOptions) {
-        this.loggingOptions = loggingOptions;
+        this.loggingOptions = loggingOptions == null ? new LoggingOptions() : loggingOptions;
+        Long minDurationInMs = this.loggingOptions.getMinDurationToLogSlowRequestsInMs();
+        this.minSlowMicros = minDurationInMs == null ? 0 : TimeUnit.MILLISECONDS.toMicros(minDurationInMs);
     }
 
     private final class LoggingPolicy implements RequestPolicy {
 
         private int tryCount;
 
-        private long operationStartTime;
+        private long operationStartNanos;
 
-        private RequestPolicyOptions options;
+        // Whether this operation's successful tries are logged at INFO; decided once so that its lines stay together.
+        private boolean sampled;
 
-        private final RequestPolicy requestPolicy;
-
-        final private LoggingFactory factory;
+        private final RequestPolicyOptions options;
 
-        private Long requestStartTime;
+        private final RequestPolicy requestPolicy;
 
-        LoggingPolicy(RequestPolicy requestPolicy, RequestPolicyOptions options, LoggingFactory factory) {
+        LoggingPolicy(RequestPolicy requestPolicy, RequestPolicyOptions options) {
             this.requestPolicy = requestPolicy;
             this.options = options;
-            this.factory = factory;
         }
 
         /**
-         * Signed the request
+         * Logs the request and its response
          * @param request
-         *      the request to sign
+         *      the request to log
          * @return
          *      A {@link Single} representing the HTTP response that will arrive asynchronously.
          */
         @Override
         public Single<HttpResponse> sendAsync(final HttpRequest request) {
             this.tryCount++;
-            this.requestStartTime = System.currentTimeMillis();
-            if (this.tryCount == 1) {
-                this.operationStartTime = requestStartTime;
+            final int tryNumber = this.tryCount;
+            final long tryStartNanos = System.nanoTime();
+            if (tryNumber == 1) {
+                this.operationStartNanos = tryStartNanos;
+                double sampleRate = loggingOptions.getSampleRate();
+                this.sampled = sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
             }
 
-            if (this.options.shouldLog(HttpPipelineLogLevel.INFO)) {
-                this.options.log(HttpPipelineLogLevel.INFO,
-                        "'%s'==> OUTGOING REQUEST (Try number='%d')%n", request.url(), this.tryCount);
+            final String operation = request.headers().value(LOGGING_CONTEXT_HEADER);
+            if (this.sampled && this.options.shouldLog(HttpPipelineLogLevel.INFO)) {
+                this.options.log(HttpPipelineLogLevel.INFO, REQUEST_FORMAT, operation, tryNumber,
+                        request.httpMethod(), Utility.getURLPath(request.url()));
             }
 
-            // TODO: Need to change logic slightly when support for writing to event log/sys log support is added
-            return requestPolicy.sendAsync(request)
+            // Logs each try's outcome exactly once: its response, its failure, or its cancellation.
+            final AtomicBoolean logged = new AtomicBoolean();
+            return this.requestPolicy.sendAsync(request)
                     .doOnError(new Consumer<Throwable>() {
                         @Override
                         public void accept(Throwable throwable) {
-                            if (options.shouldLog(HttpPipelineLogLevel.ERROR)) {
-                                options.log(HttpPipelineLogLevel.ERROR,
-                                        "Unexpected failure attempting to make request.%nError message:'%s'%n",
+                            if (logged.compareAndSet(false, true)) {
+                                logFailure(operation, tryNumber, tryStartNanos, throwable.getClass().getName(),
                                         throwable.getMessage());
                             }
                         }
@@ -98,63 +133,127 @@ public final class LoggingFactory implements RequestPolicyFactory {
                     .doOnSuccess(new Consumer<HttpResponse>() {
                         @Override
                         public void accept(HttpResponse response) {
-                            long requestEndTime = System.currentTimeMillis();
-                            long requestCompletionTime = requestEndTime - requestStartTime;
-                            long operationDuration = requestEndTime - operationStartTime;
-                            HttpPipelineLogLevel currentLevel = HttpPipelineLogLevel.INFO;
-                            // check if error should be logged since there is nothing of higher priority
-//                            if (!options.logger().shouldLog(LogLevel.ERROR)) {
-//                                return;
-//                            }
-
-                            String logMessage = Constants.EMPTY_STRING;
-                            //if (options.logger().shouldLog(LogLevel.INFO)) {
-                                // assume success and default to informational logging
-                                logMessage = "Successfully Received Response" + System.lineSeparator();
-                            //}
-
-                            // if the response took too long, we'll upgrade to warning.
-                            boolean forceLog = false;
-                            if (requestCompletionTime >=
-                                    factory.loggingOptions.getMinDurationToLogSlowRequestsInMs()) {
-                                // log a warning if the try duration exceeded the specified threshold
-                                //if (options.logger().shouldLog(LogLevel.WARNING)) {
-                                    currentLevel = HttpPipelineLogLevel.WARNING;
-                                    forceLog = true;
-                                    logMessage = String.format("SLOW OPERATION. Duration > %d ms.%n", factory.loggingOptions.getMinDurationToLogSlowRequestsInMs());
-                                //}
+                            if (!logged.compareAndSet(false, true)) {
+                                return;
                             }
 
-                            if (response.statusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR ||
-                                    (response.statusCode() >= HttpURLConnection.HTTP_BAD_REQUEST && response.statusCode() != HttpURLConnection.HTTP_NOT_FOUND &&
-                                     response.statusCode() != HttpURLConnection.HTTP_CONFLICT && response.statusCode() != HttpURLConnection.HTTP_PRECON_FAILED &&
-                                     response.statusCode() != 416 /* 416 is missing from the Enum but it is Range Not Satisfiable */)) {
-                                String errorString = String.format("REQUEST ERROR%nHTTP request failed with status code:'%d'%n", response.statusCode());
-                                if (currentLevel == HttpPipelineLogLevel.WARNING) {
-                                    logMessage += errorString;
-                                }
-                                else {
-                                    logMessage = errorString;
-                                }
-
-                                currentLevel = HttpPipelineLogLevel.ERROR;
-                                forceLog = true;
-                                // TODO: LOG THIS TO WINDOWS EVENT LOG/SYS LOG
+                            long endNanos = System.nanoTime();
+                            long tryMicros = TimeUnit.NANOSECONDS.toMicros(endNanos - tryStartNanos);
+                            long slowMicros = thresholdFor(operation).recordAndGetThreshold(tryMicros);
+
+                            HttpPipelineLogLevel level;
+                            String outcome;
+                            if (isError(response.statusCode())) {
+                                level = HttpPipelineLogLevel.ERROR;
+                                outcome = "ERROR";
+                            }
+                            else if (slowMicros > 0 && tryMicros >= slowMicros) {
+                                level = HttpPipelineLogLevel.WARNING;
+                                outcome = "SLOW";
+                            }
+                            else if (sampled) {
+                                level = HttpPipelineLogLevel.INFO;
+                                outcome = "OK";
+                            }
+                            else {
+                                return;
                             }
 
-                            //if (shouldlog(currentLevel) {
-                                String messageInfo = String.format(
-                                        "Request try:'%d', request duration:'%d' ms, operation duration:'%d' ms%n",
-                                        tryCount, requestCompletionTime, operationDuration);
-                                options.log(HttpPipelineLogLevel.INFO, logMessage + messageInfo);
-                            //}
+                            if (options.shouldLog(level)) {
+                                options.log(level, RESPONSE_FORMAT, outcome, operation, tryNumber,
+                                        response.statusCode(), TimeUnit.MICROSECONDS.toMillis(tryMicros),
+                                        TimeUnit.NANOSECONDS.toMillis(endNanos - operationStartNanos),
+                                        TimeUnit.MICROSECONDS.toMillis(slowMicros));
+                            }
+                        }
+                    })
+                    .doOnDispose(new Action() {
+                        @Override
+                        public void run() {
+                            if (logged.compareAndSet(false, true)) {
+                                logFailure(operation, tryNumber, tryStartNanos, CANCELLED, CANCELLED_MESSAGE);
+                            }
                         }
                     });
         }
+
+        private void logFailure(String operation, int tryNumber, long tryStartNanos, String error, String message) {
+            if (this.options.shouldLog(HttpPipelineLogLevel.ERROR)) {
+                long endNanos = System.nanoTime();
+                this.options.log(HttpPipelineLogLevel.ERROR, FAILURE_FORMAT, operation, tryNumber,
+                        TimeUnit.NANOSECONDS.toMillis(endNanos - tryStartNanos),
+                        TimeUnit.NANOSECONDS.toMillis(endNanos - this.operationStartNanos), error, message);
+            }
+        }
     }
 
     @Override
     public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
-        return new LoggingPolicy(next, options, this);
+        return new LoggingPolicy(next, options);
+    }
+
+    /*
+     * 404, 409, 412 and 416 are expected outcomes of conditional and existence-checking requests, not errors.
+     */
+    private static boolean isError(int statusCode) {
+        return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                || (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                    && statusCode != HttpURLConnection.HTTP_NOT_FOUND
+                    && statusCode != HttpURLConnection.HTTP_CONFLICT
+                    && statusCode != HttpURLConnection.HTTP_PRECON_FAILED
+                    && statusCode != 416 /* 416 is missing from the Enum but it is Range Not Satisfiable */);
+    }
+
+    private SlowThreshold thresholdFor(String operation) {
+        if (operation == null) {
+            operation = Constants.EMPTY_STRING;
+        }
+
+        SlowThreshold threshold = this.slowThresholds.get(operation);
+        if (threshold == null) {
+            SlowThreshold created = new SlowThreshold();
+            threshold = this.slowThresholds.putIfAbsent(operation, created);
+            if (threshold == null) {
+                threshold = created;
+            }
+        }
+        return threshold;
+    }
+
+    /*
+     * The slow-request threshold of one operation. Durations are recorded into a histogram for the current window;
+     * when a window ends, the configured percentile of it becomes the threshold for the next window, so the
+     * percentile is only computed once a minute.
+     */
+    private final class SlowThreshold {
+        private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+
+        private volatile LatencyHistogram window = new LatencyHistogram();
+
+        private volatile long percentileMicros;
+
+        long recordAndGetThreshold(long micros) {
+            double percentile = loggingOptions.getSlowRequestPercentile();
+            if (percentile == 0) {
+                return minSlowMicros;
+            }
+
+            long threshold = this.percentileMicros;
+            this.window.record(micros);
+
+            long windowStart = this.windowStartNanos.get();
+            long now = System.nanoTime();
+            if (now - windowStart >= SLOW_THRESHOLD_WINDOW_NANOS
+                    && this.windowStartNanos.compareAndSet(windowStart, now)) {
+                LatencyHistogram ended = this.window;
+                this.window = new LatencyHistogram();
+                if (ended.count() >= MIN_SLOW_THRESHOLD_SAMPLES) {
+                    this.percentileMicros = LatencyHistogram.percentile(ended.bucketCounts(), percentile);
+                }
+            }
+
+            // Until a window has enough samples, only the fixed minimum applies.
+            return threshold == 0 ? minSlowMicros : Math.max(threshold, minSlowMicros);
+        }
     }
 }
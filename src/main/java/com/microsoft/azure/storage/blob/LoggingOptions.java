@@ -25,6 +25,10 @@ public final class LoggingOptions {
 
     private final Level loggingLevel;
 
+    private final double sampleRate;
+
+    private final double slowRequestPercentile;
+
     /**
      * Creates a new {@link LoggingOptions} object
      */
@@ -49,8 +53,38 @@ public final class LoggingOptions {
      *      A {@code Long} representing the minimum duration for a tried operation to log a warning
      */
     public LoggingOptions(Level loggingLevel, Long minDurationToLogSlowRequestsInMs) {
+        this(loggingLevel, minDurationToLogSlowRequestsInMs, 1.0, 0.0);
+    }
+
+    /**
+     * Creates a new {@link LoggingOptions} object
+     * @param loggingLevel
+     *      The minimum {@code java.util.logging.Level} to log requests
+     * @param minDurationToLogSlowRequestsInMs
+     *      A {@code Long} representing the minimum duration for a tried operation to log a warning, or {@code null}
+     *      to rely on {@code slowRequestPercentile} alone
+     * @param sampleRate
+     *      The fraction, between 0 and 1, of successful operations to log at INFO. Errors and slow tries are always
+     *      logged.
+     * @param slowRequestPercentile
+     *      The percentile, between 0 and 100, of each operation's recent try durations above which a try is logged
+     *      as slow, or 0 to use {@code minDurationToLogSlowRequestsInMs} alone. When both are set, a try must
+     *      exceed both to be logged as slow.
+     */
+    public LoggingOptions(Level loggingLevel, Long minDurationToLogSlowRequestsInMs, double sampleRate,
+                          double slowRequestPercentile) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException(String.format(SR.PARAMETER_NOT_IN_RANGE, "sampleRate", 0, 1));
+        }
+        if (!(slowRequestPercentile >= 0 && slowRequestPercentile <= 100)) {
+            throw new IllegalArgumentException(
+                    String.format(SR.PARAMETER_NOT_IN_RANGE, "slowRequestPercentile", 0, 100));
+        }
+
         this.loggingLevel = loggingLevel;
         this.minDurationToLogSlowRequestsInMs = minDurationToLogSlowRequestsInMs;
+        this.sampleRate = sampleRate;
+        this.slowRequestPercentile = slowRequestPercentile;
     }
 
     /**
@@ -69,5 +103,20 @@ public final class LoggingOptions {
         return minDurationToLogSlowRequestsInMs;
     }
 
+    /**
+     * @return
+     *      The fraction, between 0 and 1, of successful operations to log at INFO
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
 
+    /**
+     * @return
+     *      The percentile of each operation's recent try durations above which a try is logged as slow, or 0 if
+     *      only the fixed minimum duration applies
+     */
+    public double getSlowRequestPercentile() {
+        return slowRequestPercentile;
+    }
 }
@@ -15,7 +15,15 @@
 package com.microsoft.azure.storage.blob;
 
 import com.microsoft.azure.storage.implementation.StorageClientImpl;
+import com.microsoft.azure.storage.models.BlobType;
+import com.microsoft.azure.storage.models.BlobsPutHeaders;
+import com.microsoft.azure.storage.models.BlobsSetPropertiesHeaders;
+import com.microsoft.azure.storage.models.PageBlobsGetPageRangesHeaders;
+import com.microsoft.azure.storage.models.PageList;
+import com.microsoft.azure.storage.models.SequenceNumberActionType;
+import com.microsoft.rest.v2.RestResponse;
 import com.microsoft.rest.v2.http.HttpPipeline;
+import io.reactivex.Single;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -37,6 +45,10 @@ public final class PageBlobURL extends BlobURL {
         super( url, pipeline);
     }
 
+    PageBlobURL(StructuredURL url, StorageClientImpl storageClient) {
+        super(url, storageClient);
+    }
+
     /**
      * Creates a new {@link PageBlobURL} with the given pipeline.
      * @param pipeline
@@ -56,8 +68,106 @@ public final class PageBlobURL extends BlobURL {
      *      A {@link PageBlobURL} object with the given pipeline.
      */
     public PageBlobURL withSnapshot(Date snapshot) throws MalformedURLException, UnsupportedEncodingException {
-        BlobURLParts blobURLParts = URLParser.ParseURL(super.url);
-        blobURLParts.setSnapshot(snapshot);
-        return new PageBlobURL(blobURLParts.toURL(), super.storageClient.httpPipeline());
+        return new PageBlobURL(super.structuredURL.withSnapshot(
+                snapshot == null ? null : Utility.getUTCTimeWithMillis(snapshot)), super.storageClient);
+    }
+
+    /**
+     * Create creates a page blob of the specified length. Call PutPage to upload data to a page blob.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/put-blob.
+     * @param size
+     *      The size of the page blob in bytes, a multiple of 512.
+     * @param sequenceNumber
+     *      The blob's initial sequence number or {@code null}.
+     * @param blobHttpHeaders
+     *      A {@link BlobHttpHeaders} object representing the headers to set on the blob or {@code null}.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that represents the access conditions for the blob.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<BlobsPutHeaders, Void>> createAsync(long size, Long sequenceNumber,
+                                                                   BlobHttpHeaders blobHttpHeaders,
+                                                                   BlobAccessConditions blobAccessConditions,
+                                                                   Integer timeout) {
+        if (size % Constants.PAGE_SIZE != 0) {
+            throw new IllegalArgumentException("size must be a multiple of " + Constants.PAGE_SIZE);
+        }
+
+        if (blobHttpHeaders == null) {
+            blobHttpHeaders = new BlobHttpHeaders(null, null, null, null, null, null);
+        }
+
+        if (blobAccessConditions == null) {
+            blobAccessConditions = BlobAccessConditions.getDefault();
+        }
+
+        return this.storageClient.blobs().putWithRestResponseAsync(super.url, BlobType.PAGE_BLOB, null, timeout,
+                null, blobHttpHeaders.getContentType(), blobHttpHeaders.getContentEncoding(),
+                blobHttpHeaders.getContentLanguage(), blobHttpHeaders.getContentMD5(),
+                blobHttpHeaders.getCacheControl(), null,
+                blobAccessConditions.getLeaseAccessConditions().toString(),
+                blobHttpHeaders.getContentDisposition(),
+                blobAccessConditions.getHttpAccessConditions().getIfModifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfUnmodifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfMatch().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfNoneMatch().toString(),
+                size, sequenceNumber, null);
+    }
+
+    /**
+     * SetSequenceNumber sets the page blob's sequence number. With {@link SequenceNumberActionType#INCREMENT} the
+     * service increments the current value atomically and returns the result.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/set-blob-properties.
+     * @param action
+     *      A {@link SequenceNumberActionType} describing how to change the sequence number.
+     * @param sequenceNumber
+     *      The new sequence number, or {@code null} for {@link SequenceNumberActionType#INCREMENT}.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that represents the access conditions for the blob.
+     * @return
+     *      A {@link Single<Void>} object if successful.
+     */
+    public Single<RestResponse<BlobsSetPropertiesHeaders, Void>> setSequenceNumberAsync(
+            SequenceNumberActionType action, Long sequenceNumber, BlobAccessConditions blobAccessConditions,
+            Integer timeout) {
+        if (blobAccessConditions == null) {
+            blobAccessConditions = BlobAccessConditions.getDefault();
+        }
+
+        return this.storageClient.blobs().setPropertiesWithRestResponseAsync(super.url, timeout,
+                null, null, null, null, null,
+                blobAccessConditions.getLeaseAccessConditions().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfModifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfUnmodifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfMatch().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfNoneMatch().toString(),
+                null, null, action, sequenceNumber, null);
+    }
+
+    /**
+     * GetPageRanges returns the list of valid page ranges for a page blob or snapshot of a page blob.
+     * For more information, see https://docs.microsoft.com/rest/api/storageservices/get-page-ranges.
+     * @param blobRange
+     *      A {@link BlobRange} limiting the ranges returned to this part of the blob or {@code null} for the whole blob.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that represents the access conditions for the blob.
+     * @return
+     *      A {@link Single<PageList>} object containing the page ranges if successful.
+     */
+    public Single<RestResponse<PageBlobsGetPageRangesHeaders, PageList>> getPageRangesAsync(
+            BlobRange blobRange, BlobAccessConditions blobAccessConditions, Integer timeout) {
+        if (blobAccessConditions == null) {
+            blobAccessConditions = BlobAccessConditions.getDefault();
+        }
+
+        return this.storageClient.pageBlobs().getPageRangesWithRestResponseAsync(super.url, null, timeout, null,
+                blobRange == null ? null : blobRange.toString(),
+                blobAccessConditions.getLeaseAccessConditions().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfModifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfUnmodifiedSince(),
+                blobAccessConditions.getHttpAccessConditions().getIfMatch().toString(),
+                blobAccessConditions.getHttpAccessConditions().getIfNoneMatch().toString(),
+                null);
     }
 }
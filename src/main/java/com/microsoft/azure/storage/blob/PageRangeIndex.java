@@ -0,0 +1,481 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.ClearRange;
+import com.microsoft.azure.storage.models.PageBlobsGetPageRangesHeaders;
+import com.microsoft.azure.storage.models.PageList;
+import com.microsoft.azure.storage.models.PageRange;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Function;
+import org.reactivestreams.Publisher;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * An immutable, sorted set of non-overlapping byte ranges of a page blob backed by two primitive arrays. A
+ * fragmented page blob can report hundreds of thousands of ranges; holding them here costs 16 bytes per range
+ * instead of a {@link PageRange} object per range, and point queries are a binary search.
+ * <p>
+ * Ranges are stored half-open: {@code [start, end)}. The service reports inclusive end offsets, which the
+ * {@link Builder} converts on the way in.
+ */
+public final class PageRangeIndex {
+
+    private static final PageRangeIndex EMPTY = new PageRangeIndex(new long[0], new long[0], 0);
+
+    private final long[] starts;
+
+    private final long[] ends;
+
+    private final int size;
+
+    private PageRangeIndex(long[] starts, long[] ends, int size) {
+        this.starts = starts;
+        this.ends = ends;
+        this.size = size;
+    }
+
+    /**
+     * @return
+     *      An empty {@link PageRangeIndex}.
+     */
+    public static PageRangeIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a {@link PageRangeIndex} from the page ranges of a single {@link PageList}.
+     * @param pageList
+     *      A {@link PageList} returned by {@link PageBlobURL#getPageRangesAsync}.
+     * @return
+     *      A {@link PageRangeIndex} covering the page ranges of the list.
+     */
+    public static PageRangeIndex fromPageList(PageList pageList) {
+        return new Builder().addPageRanges(pageList.pageRange()).build();
+    }
+
+    /**
+     * Walks a page blob in segments of {@code segmentLength} bytes, folding each segment's page ranges into a
+     * {@link Builder} before the next segment is requested. Only one segment's {@link PageList} is alive at any
+     * time, so peak memory is bounded by the segment size rather than by the fragmentation of the whole blob.
+     * @param pageBlobURL
+     *      The {@link PageBlobURL} to index.
+     * @param blobLength
+     *      The length of the blob in bytes.
+     * @param segmentLength
+     *      The number of bytes covered by each GetPageRanges request. Must be a multiple of
+     *      {@link Constants#PAGE_SIZE}.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object applied to every segment request. Pass an If-Match condition to
+     *      guarantee that every segment observes the same version of the blob.
+     * @return
+     *      A {@link Single} emitting the {@link PageRangeIndex} of the blob's valid pages.
+     */
+    public static Single<PageRangeIndex> buildAsync(final PageBlobURL pageBlobURL, final long blobLength,
+                                                    final long segmentLength,
+                                                    final BlobAccessConditions blobAccessConditions) {
+        Utility.assertInBounds("blobLength", blobLength, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("segmentLength", segmentLength, Constants.PAGE_SIZE, Long.MAX_VALUE);
+        if (segmentLength % Constants.PAGE_SIZE != 0) {
+            throw new IllegalArgumentException("segmentLength must be a multiple of the page size.");
+        }
+
+        long segmentCount = (blobLength + segmentLength - 1) / segmentLength;
+        return Flowable.rangeLong(0, segmentCount)
+                .concatMap(new Function<Long, Publisher<RestResponse<PageBlobsGetPageRangesHeaders, PageList>>>() {
+                    @Override
+                    public Publisher<RestResponse<PageBlobsGetPageRangesHeaders, PageList>> apply(Long segment) {
+                        BlobRange range = new BlobRange();
+                        range.offset = segment * segmentLength;
+                        range.count = Math.min(segmentLength, blobLength - range.offset);
+                        return pageBlobURL.getPageRangesAsync(range, blobAccessConditions, null).toFlowable();
+                    }
+                })
+                .collect(new Callable<Builder>() {
+                    @Override
+                    public Builder call() {
+                        return new Builder();
+                    }
+                }, new BiConsumer<Builder, RestResponse<PageBlobsGetPageRangesHeaders, PageList>>() {
+                    @Override
+                    public void accept(Builder builder, RestResponse<PageBlobsGetPageRangesHeaders, PageList> response) {
+                        if (response.body() != null) {
+                            builder.addPageRanges(response.body().pageRange());
+                        }
+                    }
+                })
+                .map(new Function<Builder, PageRangeIndex>() {
+                    @Override
+                    public PageRangeIndex apply(Builder builder) {
+                        return builder.build();
+                    }
+                });
+    }
+
+    /**
+     * @return
+     *      The number of disjoint ranges in the index.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param i
+     *      The index of the range.
+     * @return
+     *      The inclusive start offset of the i-th range.
+     */
+    public long start(int i) {
+        checkIndex(i);
+        return this.starts[i];
+    }
+
+    /**
+     * @param i
+     *      The index of the range.
+     * @return
+     *      The exclusive end offset of the i-th range.
+     */
+    public long end(int i) {
+        checkIndex(i);
+        return this.ends[i];
+    }
+
+    /**
+     * @return
+     *      The total number of bytes covered by the index.
+     */
+    public long populatedBytes() {
+        long total = 0;
+        for (int i = 0; i < this.size; i++) {
+            total += this.ends[i] - this.starts[i];
+        }
+
+        return total;
+    }
+
+    /**
+     * Determines whether the byte at the given offset lies in a valid page. Runs in O(log n).
+     * @param offset
+     *      The byte offset in the blob.
+     * @return
+     *      {@code true} if the offset is covered by a range in this index.
+     */
+    public boolean isPopulated(long offset) {
+        int i = floorIndex(offset);
+        return i >= 0 && offset < this.ends[i];
+    }
+
+    /**
+     * Determines whether any byte of {@code [start, end)} lies in a valid page. Runs in O(log n).
+     * @param start
+     *      The inclusive start offset.
+     * @param end
+     *      The exclusive end offset.
+     * @return
+     *      {@code true} if the range overlaps any range in this index.
+     */
+    public boolean overlaps(long start, long end) {
+        if (start >= end) {
+            return false;
+        }
+
+        int i = floorIndex(start);
+        if (i >= 0 && start < this.ends[i]) {
+            return true;
+        }
+
+        return i + 1 < this.size && this.starts[i + 1] < end;
+    }
+
+    /**
+     * @param other
+     *      The {@link PageRangeIndex} to merge with.
+     * @return
+     *      A {@link PageRangeIndex} covering every byte covered by either index.
+     */
+    public PageRangeIndex merge(PageRangeIndex other) {
+        Builder builder = new Builder(this.size + other.size);
+        int i = 0;
+        int j = 0;
+        while (i < this.size || j < other.size) {
+            if (j >= other.size || (i < this.size && this.starts[i] <= other.starts[j])) {
+                builder.add(this.starts[i], this.ends[i]);
+                i++;
+            }
+            else {
+                builder.add(other.starts[j], other.ends[j]);
+                j++;
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param other
+     *      The {@link PageRangeIndex} to intersect with.
+     * @return
+     *      A {@link PageRangeIndex} covering the bytes covered by both indexes.
+     */
+    public PageRangeIndex intersect(PageRangeIndex other) {
+        Builder builder = new Builder(Math.max(this.size, other.size));
+        int i = 0;
+        int j = 0;
+        while (i < this.size && j < other.size) {
+            long start = Math.max(this.starts[i], other.starts[j]);
+            long end = Math.min(this.ends[i], other.ends[j]);
+            if (start < end) {
+                builder.add(start, end);
+            }
+
+            if (this.ends[i] < other.ends[j]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param other
+     *      The {@link PageRangeIndex} to remove.
+     * @return
+     *      A {@link PageRangeIndex} covering the bytes covered by this index but not by {@code other}.
+     */
+    public PageRangeIndex subtract(PageRangeIndex other) {
+        Builder builder = new Builder(this.size + other.size);
+        int j = 0;
+        for (int i = 0; i < this.size; i++) {
+            long start = this.starts[i];
+            long end = this.ends[i];
+
+            // Skip the ranges of other that end before this range begins.
+            while (j < other.size && other.ends[j] <= start) {
+                j++;
+            }
+
+            int k = j;
+            while (k < other.size && other.starts[k] < end) {
+                if (other.starts[k] > start) {
+                    builder.add(start, other.starts[k]);
+                }
+
+                start = Math.max(start, other.ends[k]);
+                k++;
+            }
+
+            if (start < end) {
+                builder.add(start, end);
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Returns the index of the last range whose start is less than or equal to the offset, or -1.
+     */
+    private int floorIndex(long offset) {
+        int i = Arrays.binarySearch(this.starts, 0, this.size, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= this.size) {
+            throw new IndexOutOfBoundsException(String.format(Utility.LOCALE_US,
+                    SR.ARGUMENT_OUT_OF_RANGE_ERROR, "i", i));
+        }
+    }
+
+    /**
+     * Accumulates ranges into a {@link PageRangeIndex}. Ranges arriving in ascending order, as the service returns
+     * them, are coalesced in place; out-of-order input is sorted and coalesced once by {@link #build()}.
+     * A builder is not thread-safe.
+     */
+    public static final class Builder {
+
+        private long[] starts;
+
+        private long[] ends;
+
+        private int size;
+
+        private boolean sorted = true;
+
+        /**
+         * Creates a new {@link Builder}.
+         */
+        public Builder() {
+            this(16);
+        }
+
+        Builder(int initialCapacity) {
+            this.starts = new long[Math.max(initialCapacity, 1)];
+            this.ends = new long[Math.max(initialCapacity, 1)];
+        }
+
+        /**
+         * Adds a half-open range.
+         * @param start
+         *      The inclusive start offset.
+         * @param end
+         *      The exclusive end offset.
+         * @return
+         *      This {@link Builder}.
+         */
+        public Builder add(long start, long end) {
+            if (start >= end) {
+                return this;
+            }
+
+            if (this.size > 0 && this.sorted) {
+                int last = this.size - 1;
+                if (start < this.starts[last]) {
+                    this.sorted = false;
+                }
+                else if (start <= this.ends[last]) {
+                    this.ends[last] = Math.max(this.ends[last], end);
+                    return this;
+                }
+            }
+
+            if (this.size == this.starts.length) {
+                int capacity = this.size + (this.size >> 1) + 1;
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.ends = Arrays.copyOf(this.ends, capacity);
+            }
+
+            this.starts[this.size] = start;
+            this.ends[this.size] = end;
+            this.size++;
+            return this;
+        }
+
+        /**
+         * Adds the page ranges reported by the service, whose end offsets are inclusive.
+         * @param pageRanges
+         *      A list of {@link PageRange} objects or {@code null}.
+         * @return
+         *      This {@link Builder}.
+         */
+        public Builder addPageRanges(List<PageRange> pageRanges) {
+            if (pageRanges != null) {
+                for (PageRange range : pageRanges) {
+                    add(range.start(), (long) range.end() + 1);
+                }
+            }
+
+            return this;
+        }
+
+        /**
+         * Adds the cleared ranges reported by a differential GetPageRanges, whose end offsets are inclusive.
+         * @param clearRanges
+         *      A list of {@link ClearRange} objects or {@code null}.
+         * @return
+         *      This {@link Builder}.
+         */
+        public Builder addClearRanges(List<ClearRange> clearRanges) {
+            if (clearRanges != null) {
+                for (ClearRange range : clearRanges) {
+                    add(range.start(), (long) range.end() + 1);
+                }
+            }
+
+            return this;
+        }
+
+        /**
+         * @return
+         *      A {@link PageRangeIndex} of the ranges added so far. The builder may continue to be used.
+         */
+        public PageRangeIndex build() {
+            if (this.size == 0) {
+                return EMPTY;
+            }
+
+            if (!this.sorted) {
+                sort(this.starts, this.ends, 0, this.size - 1);
+                int last = 0;
+                for (int i = 1; i < this.size; i++) {
+                    if (this.starts[i] <= this.ends[last]) {
+                        this.ends[last] = Math.max(this.ends[last], this.ends[i]);
+                    }
+                    else {
+                        last++;
+                        this.starts[last] = this.starts[i];
+                        this.ends[last] = this.ends[i];
+                    }
+                }
+
+                this.size = last + 1;
+                this.sorted = true;
+            }
+
+            return new PageRangeIndex(Arrays.copyOf(this.starts, this.size), Arrays.copyOf(this.ends, this.size),
+                    this.size);
+        }
+
+        /**
+         * Sorts the parallel arrays by start offset.
+         */
+        private static void sort(long[] starts, long[] ends, int low, int high) {
+            while (low < high) {
+                long pivot = starts[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (starts[i] < pivot) {
+                        i++;
+                    }
+                    while (starts[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        long t = starts[i];
+                        starts[i] = starts[j];
+                        starts[j] = t;
+                        t = ends[i];
+                        ends[i] = ends[j];
+                        ends[j] = t;
+                        i++;
+                        j--;
+                    }
+                }
+
+                // Recurse into the smaller half to bound the stack depth.
+                if (j - low < high - i) {
+                    sort(starts, ends, low, j);
+                    low = i;
+                }
+                else {
+                    sort(starts, ends, i, high);
+                    high = j;
+                }
+            }
+        }
+    }
+}
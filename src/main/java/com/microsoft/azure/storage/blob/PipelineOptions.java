@@ -14,9 +14,39 @@ public final class PipelineOptions {
     // Retry configures the built-in retry policy behavior.
     public RequestRetryOptions requestRetryOptions;
 
+    // caps retries across requests; RetryBudget.processWide() is used when this is not set.
+    public RetryBudget retryBudget;
+
     // configures the built-in request logging policy.
     public LoggingOptions loggingOptions;
 
     // Telemetry configures the built-in telemetry policy behavior.
     public TelemetryOptions telemetryOptions;
+
+    // records per-operation request metrics when set; read them with RequestMetricsFactory.snapshot().
+    public RequestMetricsFactory requestMetrics;
+
+    // breaks each request's latency down by pipeline stage when set; read it with RequestTimingFactory.snapshot().
+    public RequestTimingFactory requestTiming;
+
+    // emits a JFR event for every request try when set, on runtimes which support JFR; see FlightRecorderFactory.
+    public FlightRecorderFactory flightRecorder;
+
+    // traces each operation and try through the given tracer, and sends the trace ID as the client request ID, when set.
+    public RequestTracer requestTracer;
+
+    // caps the requests in flight to each account host with an adaptive limit when set.
+    public ConcurrencyLimitFactory concurrencyLimit;
+
+    // keeps the request rate, ingress and egress to each account host under the given limits when set.
+    public RateLimitFactory rateLimit;
+
+    // fails fast, or sends reads to a secondary host, while a host keeps failing, when set.
+    public CircuitBreakerOptions circuitBreakerOptions;
+
+    // invalidates the given cache's entries for the URLs written through the pipeline, when set.
+    public PropertiesCache propertiesCache;
+
+    // adds the blobs created through the pipeline to the given filter's containers, when set.
+    public ExistenceFilter existenceFilter;
 }
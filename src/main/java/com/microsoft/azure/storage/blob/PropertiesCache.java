@@ -0,0 +1,406 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetPropertiesHeaders;
+import com.microsoft.azure.storage.models.ContainerGetPropertiesHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches the properties and metadata of blobs and containers. An entry is served for {@code timeToLiveInMs} after it
+ * is fetched; after that the next caller revalidates it. A blob is revalidated with {@code If-None-Match}, so that if
+ * it is unchanged the service answers 304 Not Modified and the cached properties are served for another period. The
+ * service does not support conditional requests for container properties, so those are fetched again. An entry read
+ * repeatedly within {@code refreshAheadInMs} of expiring is revalidated in the background while it is still served,
+ * so hot entries do not expire under load. The least recently used entries are dropped beyond {@code maxEntries}.
+ *
+ * Only calls without access conditions are cached; others are passed straight through. Set
+ * {@link PipelineOptions#propertiesCache} so that writes sent through the pipeline invalidate the entries for their
+ * URL; changes made by other clients are seen once the entry expires. Entries are keyed by URL, so share a cache only
+ * among pipelines with the same access to the account.
+ */
+public final class PropertiesCache implements RequestPolicyFactory {
+
+    /**
+     * The default maximum number of cached entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The default time an entry is served before it is revalidated.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE_IN_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The default time before expiry within which hot entries are revalidated in the background.
+     */
+    public static final long DEFAULT_REFRESH_AHEAD_IN_MS = TimeUnit.SECONDS.toMillis(5);
+
+    // The number of reads since an entry was last fetched which make it hot.
+    private static final int HOT_HITS = 2;
+
+    private static final int STRIPES = 64;
+
+    private final long timeToLiveNanos;
+
+    private final long refreshAheadNanos;
+
+    // Guarded by its own monitor.
+    private final LinkedHashMap<String, Entry> entries;
+
+    // Counts the invalidations of the keys in each stripe, so that a fetch which overlapped a write is not stored.
+    private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong notModified = new AtomicLong();
+
+    /**
+     * Creates a {@link PropertiesCache} with the default size, time to live and refresh-ahead time.
+     */
+    public PropertiesCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE_IN_MS, DEFAULT_REFRESH_AHEAD_IN_MS);
+    }
+
+    /**
+     * Creates a {@link PropertiesCache}.
+     * @param maxEntries
+     *      The maximum number of cached entries.
+     * @param timeToLiveInMs
+     *      How long an entry is served before it is revalidated.
+     * @param refreshAheadInMs
+     *      The time before expiry within which hot entries are revalidated in the background, or 0 to only revalidate
+     *      on expiry. Must be less than {@code timeToLiveInMs}.
+     */
+    public PropertiesCache(final int maxEntries, long timeToLiveInMs, long refreshAheadInMs) {
+        Utility.assertInBounds("maxEntries", maxEntries, 1, Integer.MAX_VALUE);
+        Utility.assertInBounds("timeToLiveInMs", timeToLiveInMs, 1, TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE));
+        Utility.assertInBounds("refreshAheadInMs", refreshAheadInMs, 0, timeToLiveInMs - 1);
+
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveInMs);
+        this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadInMs);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the blob's properties and metadata from the cache, fetching or revalidating them if needed.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete. Calls with conditions other than the default are not cached.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value, if a request is sent.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetPropertiesHeaders}.
+     */
+    public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> getPropertiesAndMetadataAsync(
+            final BlobURL blobURL, BlobAccessConditions blobAccessConditions, final Integer timeout) {
+        if (blobAccessConditions != null && blobAccessConditions != BlobAccessConditions.getDefault()) {
+            return blobURL.getPropertiesAndMetadataAsync(blobAccessConditions, timeout);
+        }
+
+        return this.get(Utility.getURLResourceKey(blobURL.toString()), new Function<RestResponse<?, Void>,
+                Single<RestResponse<BlobsGetPropertiesHeaders, Void>>>() {
+            @Override
+            public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> apply(RestResponse<?, Void> cached) {
+                BlobAccessConditions conditions = null;
+                if (cached != null) {
+                    String eTag = ((BlobsGetPropertiesHeaders) cached.headers()).eTag();
+                    conditions = new BlobAccessConditions(
+                            new HttpAccessConditions(null, null, ETag.getDefault(), new ETag(eTag)),
+                            LeaseAccessConditions.getDefault(), null, null);
+                }
+                return blobURL.getPropertiesAndMetadataAsync(conditions, timeout);
+            }
+        });
+    }
+
+    /**
+     * Gets the container's properties and metadata from the cache, fetching them if needed.
+     * @param containerURL
+     *      The {@link ContainerURL} of the container.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value, if a request is sent.
+     * @param leaseAccessConditions
+     *      A {@link LeaseAccessConditions} object. Calls with a lease ID are not cached.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the
+     *      {@link ContainerGetPropertiesHeaders}.
+     */
+    public Single<RestResponse<ContainerGetPropertiesHeaders, Void>> getPropertiesAndMetadataAsync(
+            final ContainerURL containerURL, final Integer timeout, LeaseAccessConditions leaseAccessConditions) {
+        if (leaseAccessConditions != null && leaseAccessConditions != LeaseAccessConditions.getDefault()) {
+            return containerURL.getPropertiesAndMetadataAsync(timeout, leaseAccessConditions);
+        }
+
+        return this.get(Utility.getURLResourceKey(containerURL.toString()), new Function<RestResponse<?, Void>,
+                Single<RestResponse<ContainerGetPropertiesHeaders, Void>>>() {
+            @Override
+            public Single<RestResponse<ContainerGetPropertiesHeaders, Void>> apply(RestResponse<?, Void> cached) {
+                return containerURL.getPropertiesAndMetadataAsync(timeout, null);
+            }
+        });
+    }
+
+    /**
+     * Drops the cached entry for a URL.
+     * @param url
+     *      The URL of the blob or container.
+     */
+    public void invalidate(String url) {
+        this.invalidateKey(Utility.getURLResourceKey(url));
+    }
+
+    /**
+     * Drops every cached entry.
+     */
+    public void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.invalidations.incrementAndGet(i);
+        }
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * @return
+     *      The number of cached entries.
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return
+     *      The number of calls served from the cache without waiting for a request.
+     */
+    public long hits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return
+     *      The number of calls which had to wait for a request, because there was no entry or it had expired.
+     */
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return
+     *      The number of revalidations answered with 304 Not Modified.
+     */
+    public long notModified() {
+        return this.notModified.get();
+    }
+
+    private final class InvalidationPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        InvalidationPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Invalidates the cached entry for the URL of a write, both when it is sent and once it completes
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            if ("GET".equalsIgnoreCase(request.httpMethod()) || "HEAD".equalsIgnoreCase(request.httpMethod())) {
+                return this.requestPolicy.sendAsync(request);
+            }
+
+            // A read racing the write could otherwise store what it saw before the write applied.
+            final String key = Utility.getURLResourceKey(request.url());
+            invalidateKey(key);
+            return this.requestPolicy.sendAsync(request)
+                    .doOnEvent(new BiConsumer<HttpResponse, Throwable>() {
+                        @Override
+                        public void accept(HttpResponse response, Throwable throwable) {
+                            invalidateKey(key);
+                        }
+                    })
+                    .doOnDispose(new Action() {
+                        @Override
+                        public void run() {
+                            invalidateKey(key);
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new InvalidationPolicy(next);
+    }
+
+    /*
+     * Serves the entry for the key if it is fresh, starting a background revalidation if it is hot and about to
+     * expire; otherwise waits for a revalidation. The fetch function is given the cached response to revalidate, or
+     * null to fetch unconditionally.
+     */
+    private <T extends RestResponse<?, Void>> Single<T> get(
+            final String key, final Function<RestResponse<?, Void>, Single<T>> fetch) {
+        return Single.defer(new Callable<SingleSource<T>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public SingleSource<T> call() throws Exception {
+                long now = System.nanoTime();
+                Entry entry;
+                boolean refresh = false;
+                synchronized (entries) {
+                    entry = entries.get(key);
+                    if (entry != null && now < entry.expiresAtNanos) {
+                        entry.hits++;
+                        if (entry.hits >= HOT_HITS && !entry.refreshing
+                                && now >= entry.expiresAtNanos - refreshAheadNanos) {
+                            entry.refreshing = true;
+                            refresh = true;
+                        }
+                    }
+                }
+
+                if (entry != null && now < entry.expiresAtNanos) {
+                    hits.incrementAndGet();
+                    if (refresh) {
+                        // Failures are ignored; the entry then expires and the next caller revalidates it.
+                        revalidate(key, entry, fetch).subscribe(new Consumer<T>() {
+                            @Override
+                            public void accept(T response) {
+                            }
+                        }, new Consumer<Throwable>() {
+                            @Override
+                            public void accept(Throwable throwable) {
+                            }
+                        });
+                    }
+                    return Single.just((T) entry.response);
+                }
+
+                misses.incrementAndGet();
+                return revalidate(key, entry, fetch);
+            }
+        });
+    }
+
+    private <T extends RestResponse<?, Void>> Single<T> revalidate(
+            final String key, final Entry cached, Function<RestResponse<?, Void>, Single<T>> fetch) throws Exception {
+        final long generation = this.invalidations.get(stripe(key));
+        return fetch.apply(cached == null ? null : cached.response)
+                .doOnSuccess(new Consumer<T>() {
+                    @Override
+                    public void accept(T response) {
+                        store(key, generation, response);
+                    }
+                })
+                .onErrorResumeNext(new Function<Throwable, SingleSource<T>>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public SingleSource<T> apply(Throwable throwable) {
+                        HttpResponse response = throwable instanceof RestException
+                                ? ((RestException) throwable).response() : null;
+                        int statusCode = response == null ? 0 : response.statusCode();
+                        if (cached != null && statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            notModified.incrementAndGet();
+                            store(key, generation, cached.response);
+                            return Single.just((T) cached.response);
+                        }
+
+                        if (statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                            invalidateKey(key);
+                        }
+                        else if (cached != null) {
+                            synchronized (entries) {
+                                cached.refreshing = false;
+                            }
+                        }
+                        return Single.error(throwable);
+                    }
+                });
+    }
+
+    private void store(String key, long generation, RestResponse<?, Void> response) {
+        Entry entry = new Entry(response, System.nanoTime() + this.timeToLiveNanos);
+        synchronized (this.entries) {
+            // Checked under the lock, so that an invalidation either precedes this check or removes the entry.
+            if (this.invalidations.get(stripe(key)) == generation) {
+                this.entries.put(key, entry);
+            }
+        }
+    }
+
+    private void invalidateKey(String key) {
+        this.invalidations.incrementAndGet(stripe(key));
+        synchronized (this.entries) {
+            this.entries.remove(key);
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    private static final class Entry {
+        final RestResponse<?, Void> response;
+
+        final long expiresAtNanos;
+
+        // The number of times the entry has been served. Guarded by the entries' monitor, as is refreshing.
+        int hits;
+
+        boolean refreshing;
+
+        Entry(RestResponse<?, Void> response, long expiresAtNanos) {
+            this.response = response;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Factory for keeping the traffic to each storage account host under its scalability targets with three token
+ * buckets: one for requests, one for ingress bytes (request bodies) and one for egress bytes (response bodies). Each
+ * bucket refills at its rate and holds up to one second's worth of tokens, so short bursts are let through.
+ *
+ * A try reserves a request token and its request body's bytes when it is subscribed to, and waits, without holding a
+ * thread, until the reservation is covered. The size of a response body is only known once it arrives, so it is
+ * charged afterwards; later tries wait until the egress bucket is out of debt. Tries are therefore admitted in the
+ * order they reserved, and a single large transfer is spread over the time it is entitled to. A try cancelled while it
+ * waits, e.g. because its caller gave up, gives its reservation back. The retry policy's try timeout is applied after
+ * this policy, so the time a try waits here does not count against it.
+ *
+ * Every {@link StorageURL} built on a pipeline shares its limits, and a factory may be shared between pipelines to
+ * share them more widely. {@link StorageURL#CreatePipeline} adds the policy after the credentials policy when
+ * {@link PipelineOptions#rateLimit} is set.
+ */
+public final class RateLimitFactory implements RequestPolicyFactory {
+
+    private final double requestsPerSecond;
+
+    private final double ingressBytesPerSecond;
+
+    private final double egressBytesPerSecond;
+
+    private final ConcurrentHashMap<String, AccountBuckets> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link RateLimitFactory}. Each limit applies separately to every account host, and a limit of 0
+     * means unlimited.
+     * @param requestsPerSecond
+     *      The most requests per second, e.g. 20000 for a standard storage account.
+     * @param ingressBytesPerSecond
+     *      The most request body bytes per second.
+     * @param egressBytesPerSecond
+     *      The most response body bytes per second.
+     */
+    public RateLimitFactory(long requestsPerSecond, long ingressBytesPerSecond, long egressBytesPerSecond) {
+        Utility.assertInBounds("requestsPerSecond", requestsPerSecond, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("ingressBytesPerSecond", ingressBytesPerSecond, 0, Long.MAX_VALUE);
+        Utility.assertInBounds("egressBytesPerSecond", egressBytesPerSecond, 0, Long.MAX_VALUE);
+
+        this.requestsPerSecond = requestsPerSecond;
+        this.ingressBytesPerSecond = ingressBytesPerSecond;
+        this.egressBytesPerSecond = egressBytesPerSecond;
+    }
+
+    private final class RateLimitPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        RateLimitPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Delays the try until the host's buckets can cover it
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final AccountBuckets buckets = bucketsFor(Utility.getURLHost(request.url()));
+            final long requestBytes = parseContentLength(
+                    request.headers().value(Constants.HeaderConstants.CONTENT_LENGTH));
+
+            // Assemble the inner policies now, on the caller's thread; only subscribing to them is delayed.
+            final Single<HttpResponse> response = this.requestPolicy.sendAsync(request)
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            buckets.egress.charge(parseContentLength(
+                                    response.headerValue(Constants.HeaderConstants.CONTENT_LENGTH)));
+                        }
+                    });
+
+            return Single.defer(new Callable<Single<HttpResponse>>() {
+                @Override
+                public Single<HttpResponse> call() {
+                    long waitNanos = Math.max(buckets.requests.reserve(1),
+                            Math.max(buckets.ingress.reserve(requestBytes), buckets.egress.reserve(0)));
+                    if (waitNanos == 0) {
+                        return response;
+                    }
+
+                    // Set once the try is either sent or cancelled, so that a sent try keeps its reservation.
+                    final AtomicBoolean settled = new AtomicBoolean();
+                    return response
+                            .doOnSubscribe(new Consumer<Disposable>() {
+                                @Override
+                                public void accept(Disposable disposable) {
+                                    settled.set(true);
+                                }
+                            })
+                            .delaySubscription(waitNanos, TimeUnit.NANOSECONDS)
+                            .doOnDispose(new Action() {
+                                @Override
+                                public void run() {
+                                    if (settled.compareAndSet(false, true)) {
+                                        buckets.requests.refund(1);
+                                        buckets.ingress.refund(requestBytes);
+                                    }
+                                }
+                            });
+                }
+            });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new RateLimitPolicy(next);
+    }
+
+    /**
+     * @return
+     *      The request tokens the host's bucket holds now, negative while tries wait on it.
+     */
+    double requestTokens(String host) {
+        return this.bucketsFor(host).requests.tokens();
+    }
+
+    private AccountBuckets bucketsFor(String host) {
+        AccountBuckets buckets = this.accounts.get(host);
+        if (buckets == null) {
+            AccountBuckets created = new AccountBuckets();
+            buckets = this.accounts.putIfAbsent(host, created);
+            if (buckets == null) {
+                buckets = created;
+            }
+        }
+        return buckets;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(Long.parseLong(value.trim()), 0);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private final class AccountBuckets {
+        final TokenBucket requests = new TokenBucket(requestsPerSecond);
+
+        final TokenBucket ingress = new TokenBucket(ingressBytesPerSecond);
+
+        final TokenBucket egress = new TokenBucket(egressBytesPerSecond);
+    }
+
+    /*
+     * A token bucket which may go into debt: a reservation always succeeds, and returns how long the caller must wait
+     * for the bucket to refill to cover it. Waiting callers are therefore served in the order they reserved.
+     */
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+
+        private final double capacity;
+
+        private double tokens;
+
+        private long lastRefillNanos = System.nanoTime();
+
+        TokenBucket(double tokensPerSecond) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = tokensPerSecond;
+            this.tokens = tokensPerSecond;
+        }
+
+        /*
+         * Takes tokens, returning the nanoseconds until the bucket is no longer in debt.
+         */
+        synchronized long reserve(double amount) {
+            if (this.tokensPerNano == 0) {
+                return 0;
+            }
+
+            this.refill();
+            this.tokens -= amount;
+            return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNano);
+        }
+
+        /*
+         * Gives back tokens reserved for work which will not happen.
+         */
+        synchronized void refund(double amount) {
+            if (this.tokensPerNano == 0) {
+                return;
+            }
+
+            this.refill();
+            this.tokens = Math.min(this.capacity, this.tokens + amount);
+        }
+
+        /*
+         * Takes tokens for work which has already happened.
+         */
+        synchronized void charge(double amount) {
+            if (this.tokensPerNano == 0) {
+                return;
+            }
+
+            this.refill();
+            this.tokens -= amount;
+        }
+
+        synchronized double tokens() {
+            this.refill();
+            return this.tokens;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefillNanos) * this.tokensPerNano);
+            this.lastRefillNanos = now;
+        }
+    }
+}
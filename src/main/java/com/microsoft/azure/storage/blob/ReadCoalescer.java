@@ -0,0 +1,243 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.azure.storage.models.BlobsGetPropertiesHeaders;
+import com.microsoft.rest.v2.RestResponse;
+import com.microsoft.rest.v2.http.HttpPipeline;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one request among concurrent callers reading the same thing. While a read is in flight, an identical read,
+ * i.e. one with the same method, URL, range and access conditions, sent through the same pipeline, waits for it and
+ * receives the same result instead of sending a request of its own. Once the read completes, the next caller sends a
+ * new request, so results are never served stale.
+ *
+ * Coalescing is opt-in: send the reads which are prone to bursts, such as many processes polling the same
+ * configuration blob, through a shared {@link ReadCoalescer} rather than the {@link BlobURL} directly. Only the first
+ * caller's timeout applies, and the shared request runs to completion even if every caller disposes its subscription.
+ */
+public final class ReadCoalescer {
+
+    /**
+     * The largest range read by {@link #getBlobAsync} which is coalesced by default.
+     */
+    public static final long DEFAULT_MAX_BLOB_BYTES = 4 * Constants.MB;
+
+    private final long maxBlobBytes;
+
+    private final ConcurrentHashMap<Key, Single<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestsSent = new AtomicLong();
+
+    private final AtomicLong requestsCoalesced = new AtomicLong();
+
+    /**
+     * Creates a {@link ReadCoalescer} which coalesces range reads of up to {@link #DEFAULT_MAX_BLOB_BYTES}.
+     */
+    public ReadCoalescer() {
+        this(DEFAULT_MAX_BLOB_BYTES);
+    }
+
+    /**
+     * Creates a {@link ReadCoalescer}.
+     * @param maxBlobBytes
+     *      The largest range read by {@link #getBlobAsync} which is coalesced. Its data is held in memory until every
+     *      caller has received it, so larger reads, and reads without a count, are passed straight through.
+     */
+    public ReadCoalescer(long maxBlobBytes) {
+        Utility.assertInBounds("maxBlobBytes", maxBlobBytes, 0, Integer.MAX_VALUE);
+        this.maxBlobBytes = maxBlobBytes;
+    }
+
+    /**
+     * Gets the blob's properties and metadata, sharing the request with identical calls already in flight.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value, if this call sends the request.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetPropertiesHeaders}.
+     */
+    public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> getPropertiesAndMetadataAsync(
+            final BlobURL blobURL, final BlobAccessConditions blobAccessConditions, final Integer timeout) {
+        Key key = new Key(blobURL, "HEAD", null, false, blobAccessConditions);
+        return this.coalesce(key, new Callable<Single<RestResponse<BlobsGetPropertiesHeaders, Void>>>() {
+            @Override
+            public Single<RestResponse<BlobsGetPropertiesHeaders, Void>> call() {
+                return blobURL.getPropertiesAndMetadataAsync(blobAccessConditions, timeout);
+            }
+        });
+    }
+
+    /**
+     * Reads a range of the blob, sharing the request with identical calls already in flight if the range is no
+     * larger than the configured maximum. Each caller receives its own stream over the shared data.
+     * @param blobURL
+     *      The {@link BlobURL} of the blob.
+     * @param range
+     *      A {@link BlobRange} object specifying the range to read.
+     * @param blobAccessConditions
+     *      A {@link BlobAccessConditions} object that specifies under which conditions the operation should
+     *      complete.
+     * @param rangeGetContentMD5
+     *      A {@code boolean} indicating whether the service should return the MD5 hash of the range.
+     * @param timeout
+     *      An {@code Integer} representing the timeout value, if this call sends the request.
+     * @return
+     *      The {@link Single} which emits a {@code RestResponse} containing the {@link BlobsGetHeaders} and the data.
+     */
+    public Single<RestResponse<BlobsGetHeaders, InputStream>> getBlobAsync(
+            final BlobURL blobURL, final BlobRange range, final BlobAccessConditions blobAccessConditions,
+            final boolean rangeGetContentMD5, final Integer timeout) {
+        if (range == null || range.count == null || range.count > this.maxBlobBytes) {
+            this.requestsSent.incrementAndGet();
+            return blobURL.getBlobAsync(null, range, blobAccessConditions, rangeGetContentMD5, timeout);
+        }
+
+        Key key = new Key(blobURL, "GET", range.toString(), rangeGetContentMD5, blobAccessConditions);
+        return this.coalesce(key, new Callable<Single<RestResponse<BlobsGetHeaders, byte[]>>>() {
+            @Override
+            public Single<RestResponse<BlobsGetHeaders, byte[]>> call() {
+                // The body is read in full for every waiting caller, off the thread which delivered the response.
+                return blobURL.getBlobAsync(null, range, blobAccessConditions, rangeGetContentMD5, timeout)
+                        .observeOn(Schedulers.io())
+                        .map(new Function<RestResponse<BlobsGetHeaders, InputStream>,
+                                RestResponse<BlobsGetHeaders, byte[]>>() {
+                            @Override
+                            public RestResponse<BlobsGetHeaders, byte[]> apply(
+                                    RestResponse<BlobsGetHeaders, InputStream> response) throws Exception {
+                                byte[] data = Utility.readFully(response.body(), range.count);
+                                return new RestResponse<>(response.statusCode(), response.headers(),
+                                        response.rawHeaders(), data);
+                            }
+                        });
+            }
+        }).map(new Function<RestResponse<BlobsGetHeaders, byte[]>, RestResponse<BlobsGetHeaders, InputStream>>() {
+            @Override
+            public RestResponse<BlobsGetHeaders, InputStream> apply(RestResponse<BlobsGetHeaders, byte[]> response) {
+                return new RestResponse<BlobsGetHeaders, InputStream>(response.statusCode(), response.headers(),
+                        response.rawHeaders(), new ByteArrayInputStream(response.body()));
+            }
+        });
+    }
+
+    /**
+     * @return
+     *      The number of requests sent on behalf of callers.
+     */
+    public long requestsSent() {
+        return this.requestsSent.get();
+    }
+
+    /**
+     * @return
+     *      The number of calls which joined a request already in flight instead of sending their own.
+     */
+    public long requestsCoalesced() {
+        return this.requestsCoalesced.get();
+    }
+
+    /*
+     * Joins the in-flight request for the key, or starts one. The flight is removed as soon as it completes, before
+     * its result is delivered, so a caller arriving afterwards always sends a fresh request.
+     */
+    private <T> Single<T> coalesce(final Key key, final Callable<Single<T>> source) {
+        return Single.defer(new Callable<SingleSource<T>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public SingleSource<T> call() throws Exception {
+                Single<T> existing = (Single<T>) inFlight.get(key);
+                if (existing != null) {
+                    requestsCoalesced.incrementAndGet();
+                    return existing;
+                }
+
+                final Single<?>[] self = new Single<?>[1];
+                Single<T> flight = source.call()
+                        .doOnEvent(new BiConsumer<T, Throwable>() {
+                            @Override
+                            public void accept(T value, Throwable throwable) {
+                                inFlight.remove(key, self[0]);
+                            }
+                        })
+                        .cache();
+                self[0] = flight;
+
+                existing = (Single<T>) inFlight.putIfAbsent(key, flight);
+                if (existing != null) {
+                    requestsCoalesced.incrementAndGet();
+                    return existing;
+                }
+                requestsSent.incrementAndGet();
+                return flight;
+            }
+        });
+    }
+
+    /*
+     * Identifies a read. Pipelines are compared by identity, so that reads sent with different credentials are
+     * never shared.
+     */
+    private static final class Key {
+        private final HttpPipeline pipeline;
+
+        private final String request;
+
+        Key(BlobURL blobURL, String method, String range, boolean rangeGetContentMD5,
+            BlobAccessConditions blobAccessConditions) {
+            if (blobAccessConditions == null) {
+                blobAccessConditions = BlobAccessConditions.getDefault();
+            }
+            HttpAccessConditions httpAccessConditions = blobAccessConditions.getHttpAccessConditions();
+
+            this.pipeline = blobURL.storageClient.httpPipeline();
+            this.request = method + '\n' + blobURL + '\n' + range + '\n' + rangeGetContentMD5 + '\n'
+                    + blobAccessConditions.getLeaseAccessConditions() + '\n'
+                    + httpAccessConditions.getIfModifiedSince() + '\n'
+                    + httpAccessConditions.getIfUnmodifiedSince() + '\n'
+                    + httpAccessConditions.getIfMatch() + '\n'
+                    + httpAccessConditions.getIfNoneMatch();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.pipeline == other.pipeline && this.request.equals(other.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.pipeline) + this.request.hashCode();
+        }
+    }
+}
@@ -24,7 +24,7 @@ import io.reactivex.Single;
 import java.util.UUID;
 
 /**
- * Factory to create a unique request ID and set the x-ms-client-request-id header.
+ * Factory to create a unique request ID and set the x-ms-client-request-id header, unless it is already set.
  */
 public final class RequestIDFactory implements RequestPolicyFactory {
 
@@ -46,7 +46,11 @@ public final class RequestIDFactory implements RequestPolicyFactory {
          *      A {@link Single} representing the HTTP response that will arrive asynchronously.
          */
         public Single<HttpResponse> sendAsync(HttpRequest request) {
-            request.headers().set(Constants.HeaderConstants.CLIENT_REQUEST_ID_HEADER, UUID.randomUUID().toString());
+            // An outer policy, e.g. tracing, may already have chosen the ID.
+            if (request.headers().value(Constants.HeaderConstants.CLIENT_REQUEST_ID_HEADER) == null) {
+                request.headers().set(Constants.HeaderConstants.CLIENT_REQUEST_ID_HEADER,
+                        UUID.randomUUID().toString());
+            }
             return requestPolicy.sendAsync(request);
         }
     }
@@ -0,0 +1,340 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Factory for recording per-operation request metrics: a latency histogram, bytes sent and received, counts by
+ * status code, failures without a response, timeouts, and retries. Operations are named by the
+ * {@code x-ms-logging-context} header which the generated service interfaces set, e.g.
+ * "com.microsoft.azure.storage.Blobs get".
+ *
+ * Each try is measured from when it is sent until its response headers arrive, it fails, or it is cancelled, so the
+ * policy belongs after any retry policy in the pipeline; {@link StorageURL#CreatePipeline} adds it when
+ * {@link PipelineOptions#requestMetrics} is set. Recording is lock-free, and the counters are cumulative; read them
+ * with {@link #snapshot()}.
+ */
+public final class RequestMetricsFactory implements RequestPolicyFactory {
+
+    /**
+     * The operation name used for requests without an {@code x-ms-logging-context} header.
+     */
+    public static final String UNKNOWN_OPERATION = "unknown";
+
+    private static final String LOGGING_CONTEXT_HEADER = "x-ms-logging-context";
+
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final ConcurrentHashMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+
+    private final class RequestMetricsPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        // Policies are created per operation, so tries after the first are retries.
+        private int tryCount;
+
+        RequestMetricsPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Records the latency and outcome of a try
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final OperationMetrics metrics = metricsFor(request.headers().value(LOGGING_CONTEXT_HEADER));
+            if (++this.tryCount > 1) {
+                metrics.retries.incrementAndGet();
+            }
+            metrics.bytesSent.addAndGet(parseContentLength(
+                    request.headers().value(Constants.HeaderConstants.CONTENT_LENGTH)));
+
+            final long startNanos = System.nanoTime();
+            // Set once the try's outcome is recorded, so that a disposal afterwards is not counted again.
+            final AtomicBoolean recorded = new AtomicBoolean();
+            return this.requestPolicy.sendAsync(request)
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            if (!recorded.compareAndSet(false, true)) {
+                                return;
+                            }
+
+                            metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                            int statusCode = response.statusCode();
+                            if (statusCode >= 0 && statusCode <= MAX_STATUS_CODE) {
+                                metrics.statusCounts.incrementAndGet(statusCode);
+                            }
+                            metrics.bytesReceived.addAndGet(parseContentLength(
+                                    response.headerValue(Constants.HeaderConstants.CONTENT_LENGTH)));
+                        }
+                    })
+                    .doOnError(new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) {
+                            if (recorded.compareAndSet(false, true)) {
+                                metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                                metrics.failures.incrementAndGet();
+                            }
+                        }
+                    })
+                    .doOnDispose(new Action() {
+                        @Override
+                        public void run() {
+                            // The retry policy cancels a try which exceeds its timeout.
+                            if (recorded.compareAndSet(false, true)) {
+                                metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                                metrics.failures.incrementAndGet();
+                                metrics.timeouts.incrementAndGet();
+                            }
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new RequestMetricsPolicy(next);
+    }
+
+    /**
+     * @return
+     *      A {@code Map} of operation names to a point-in-time copy of their metrics, sorted by name.
+     */
+    public Map<String, OperationSnapshot> snapshot() {
+        Map<String, OperationSnapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, OperationMetrics> entry : this.operations.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return snapshots;
+    }
+
+    private OperationMetrics metricsFor(String operation) {
+        if (operation == null) {
+            operation = UNKNOWN_OPERATION;
+        }
+
+        OperationMetrics metrics = this.operations.get(operation);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics();
+            metrics = this.operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(Long.parseLong(value.trim()), 0);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class OperationMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+        final AtomicLong failures = new AtomicLong();
+
+        final AtomicLong timeouts = new AtomicLong();
+
+        final AtomicLong retries = new AtomicLong();
+
+        final AtomicLong bytesSent = new AtomicLong();
+
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        OperationSnapshot snapshot(String operation) {
+            Map<Integer, Long> statusCounts = new HashMap<>();
+            for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+                long statusCount = this.statusCounts.get(i);
+                if (statusCount != 0) {
+                    statusCounts.put(i, statusCount);
+                }
+            }
+
+            return new OperationSnapshot(operation, this.latency.bucketCounts(), this.latency.count(),
+                    this.latency.sum(), this.latency.max(), Collections.unmodifiableMap(statusCounts),
+                    this.failures.get(), this.timeouts.get(), this.retries.get(), this.bytesSent.get(),
+                    this.bytesReceived.get());
+        }
+    }
+
+    /**
+     * A point-in-time copy of the metrics for one operation.
+     */
+    public static final class OperationSnapshot {
+        private final String operation;
+
+        private final long[] latencyBuckets;
+
+        private final long tryCount;
+
+        private final long latencySumInMicros;
+
+        private final long maxLatencyInMicros;
+
+        private final Map<Integer, Long> statusCounts;
+
+        private final long failureCount;
+
+        private final long timeoutCount;
+
+        private final long retryCount;
+
+        private final long bytesSent;
+
+        private final long bytesReceived;
+
+        OperationSnapshot(String operation, long[] latencyBuckets, long tryCount, long latencySumInMicros,
+                          long maxLatencyInMicros, Map<Integer, Long> statusCounts, long failureCount,
+                          long timeoutCount, long retryCount, long bytesSent, long bytesReceived) {
+            this.operation = operation;
+            this.latencyBuckets = latencyBuckets;
+            this.tryCount = tryCount;
+            this.latencySumInMicros = latencySumInMicros;
+            this.maxLatencyInMicros = maxLatencyInMicros;
+            this.statusCounts = statusCounts;
+            this.failureCount = failureCount;
+            this.timeoutCount = timeoutCount;
+            this.retryCount = retryCount;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        /**
+         * @return
+         *      The operation name.
+         */
+        public String operation() {
+            return this.operation;
+        }
+
+        /**
+         * @return
+         *      The number of tries, including retries.
+         */
+        public long tryCount() {
+            return this.tryCount;
+        }
+
+        /**
+         * @return
+         *      The number of tries after the first try of an operation.
+         */
+        public long retryCount() {
+            return this.retryCount;
+        }
+
+        /**
+         * @return
+         *      The number of tries which failed without a response, e.g. because of a connection error or a timeout.
+         */
+        public long failureCount() {
+            return this.failureCount;
+        }
+
+        /**
+         * @return
+         *      The number of tries cancelled before their response arrived, e.g. by the retry policy's try timeout.
+         *      These are also counted as failures.
+         */
+        public long timeoutCount() {
+            return this.timeoutCount;
+        }
+
+        /**
+         * @return
+         *      The number of responses by HTTP status code.
+         */
+        public Map<Integer, Long> statusCounts() {
+            return this.statusCounts;
+        }
+
+        /**
+         * @return
+         *      The request body bytes sent, according to the Content-Length request headers.
+         */
+        public long bytesSent() {
+            return this.bytesSent;
+        }
+
+        /**
+         * @return
+         *      The response body bytes received, according to the Content-Length response headers.
+         */
+        public long bytesReceived() {
+            return this.bytesReceived;
+        }
+
+        /**
+         * @return
+         *      The mean try latency in microseconds, or 0 if there were no tries.
+         */
+        public long meanLatencyInMicros() {
+            return this.tryCount == 0 ? 0 : this.latencySumInMicros / this.tryCount;
+        }
+
+        /**
+         * @return
+         *      The highest try latency in microseconds.
+         */
+        public long maxLatencyInMicros() {
+            return this.maxLatencyInMicros;
+        }
+
+        /**
+         * @param percentile
+         *      The percentile, between 0 and 100.
+         * @return
+         *      The try latency in microseconds at the given percentile, accurate to within 12.5%.
+         */
+        public long latencyPercentileInMicros(double percentile) {
+            return Math.min(LatencyHistogram.percentile(this.latencyBuckets, percentile), this.maxLatencyInMicros);
+        }
+    }
+}
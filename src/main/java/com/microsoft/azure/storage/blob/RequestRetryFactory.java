@@ -14,76 +14,214 @@
  */
 package com.microsoft.azure.storage.blob;
 
-import com.microsoft.rest.v2.http.*;
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
 import com.microsoft.rest.v2.policy.RequestPolicy;
 import com.microsoft.rest.v2.policy.RequestPolicyFactory;
 import com.microsoft.rest.v2.policy.RequestPolicyOptions;
 import io.reactivex.Single;
-import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Factory for retrying requests
+ * Factory for retrying requests. A try is retried if it times out, fails with an I/O error, or gets a 500 or 503
+ * response, up to {@link RequestRetryOptions#maxTries()} tries, after a jittered delay computed by
+ * {@link RequestRetryOptions#calculatedDelayInMs(int)}. Reads are alternated with the secondary host, if one is set,
+ * until it reports that the resource does not exist there yet.
+ *
+ * Every retry is also withdrawn from a {@link RetryBudget}; when the budget is exhausted, the try's response or error
+ * is returned instead of retrying, so that retries cannot multiply the load on a service which is already failing.
+ *
+ * The try timeout is applied by the paired {@link #tryTimeoutFactory()}, which {@link StorageURL#CreatePipeline} places
+ * after the rate and concurrency limits and the logging policy. A try's time queued for those limits therefore does
+ * not count against its timeout, and the circuit breaker, limits and logging policy see a try which timed out fail
+ * with a {@link TimeoutException}, rather than only being cancelled.
  */
 public final class RequestRetryFactory implements RequestPolicyFactory {
 
     private final RequestRetryOptions requestRetryOptions;
 
+    private final RetryBudget retryBudget;
+
+    private final RequestPolicyFactory tryTimeoutFactory = new RequestPolicyFactory() {
+        @Override
+        public RequestPolicy create(final RequestPolicy next, RequestPolicyOptions options) {
+            return new RequestPolicy() {
+                @Override
+                public Single<HttpResponse> sendAsync(HttpRequest request) {
+                    return next.sendAsync(request)
+                            .timeout(requestRetryOptions.tryTimeoutInMs(), TimeUnit.MILLISECONDS);
+                }
+            };
+        }
+    };
+
     public RequestRetryFactory(RequestRetryOptions requestRetryOptions) {
-        this.requestRetryOptions = requestRetryOptions;
+        this(requestRetryOptions, RetryBudget.processWide());
+    }
+
+    /**
+     * Creates a {@link RequestRetryFactory}.
+     * @param requestRetryOptions
+     *      The {@link RequestRetryOptions} configuring the tries.
+     * @param retryBudget
+     *      The {@link RetryBudget} every retry is withdrawn from.
+     */
+    public RequestRetryFactory(RequestRetryOptions requestRetryOptions, RetryBudget retryBudget) {
+        this.requestRetryOptions = requestRetryOptions == null ? new RequestRetryOptions() : requestRetryOptions;
+        this.retryBudget = retryBudget == null ? RetryBudget.processWide() : retryBudget;
     }
 
     private final class RequestRetryPolicy implements RequestPolicy {
 
         private final RequestPolicy requestPolicy;
 
-        final private RequestRetryOptions requestRetryOptions;
+        // The operation span of the first try, published again for tries assembled later on other threads.
+        private RequestTracer.Span operationSpan;
 
-        final private RequestPolicyOptions options;
+        // Cleared once the secondary reports that it does not have the resource, e.g. because replication lags.
+        private boolean considerSecondary;
 
-        private int tryCount;
-
-        private long operationStartTime;
-
-        private HttpRequest httpRequest;
-
-        RequestRetryPolicy(RequestPolicy requestPolicy, RequestPolicyOptions options, RequestRetryOptions requestRetryOptions) {
+        RequestRetryPolicy(RequestPolicy requestPolicy) {
             this.requestPolicy = requestPolicy;
-            this.options = options;
-            this.requestRetryOptions = requestRetryOptions;
         }
 
+        /**
+         * Sends the request, retrying it as the options and budget allow
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
         @Override
-        public Single<HttpResponse> sendAsync(HttpRequest httpRequest) {
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final HttpRequest bufferedRequest;
             try {
-                this.httpRequest = httpRequest.buffer();
-            } catch (IOException e) {
+                // Buffer the body so that it can be sent again.
+                bufferedRequest = request.buffer();
+            }
+            catch (IOException e) {
                 return Single.error(e);
             }
 
-            this.httpRequest = new HttpRequest(httpRequest.callerMethod(), httpRequest.httpMethod(), httpRequest.url(),
-                    httpRequest.headers(), httpRequest.body());
-            return this.requestPolicy.sendAsync(httpRequest)
-                .doOnError(new Consumer<Throwable>() {
-                    @Override
-                    public void accept(Throwable throwable) throws Exception {
-
-                    }
-                })
-                .doOnSuccess(new Consumer<HttpResponse>() {
-                    @Override
-                    public void accept(HttpResponse httpResponse) throws Exception {
-                        long requestEndTime = System.currentTimeMillis();
-                        //long requestCompletionTime = requestEndTime - requestStartTime;
-                        long operationDuration = requestEndTime - operationStartTime;
-                    }
-                });
+            this.operationSpan = TracingFactory.currentOperationSpan();
+            String method = bufferedRequest.httpMethod();
+            this.considerSecondary = requestRetryOptions.secondaryHost() != null
+                    && ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method));
+            return this.attempt(bufferedRequest, 1);
+        }
+
+        private Single<HttpResponse> attempt(final HttpRequest request, final int tryNumber) {
+            // Odd tries go to the primary, even ones to the secondary while it is being considered.
+            final boolean toSecondary = this.considerSecondary && tryNumber % 2 == 0;
+            HttpRequest tryRequest = new HttpRequest(request.callerMethod(), request.httpMethod(),
+                    toSecondary ? Utility.withURLHost(request.url(), requestRetryOptions.secondaryHost())
+                            : request.url(),
+                    request.headers(), request.body());
+
+            Single<HttpResponse> response = this.operationSpan == null
+                    ? this.requestPolicy.sendAsync(tryRequest)
+                    : TracingFactory.sendWithOperationSpan(this.operationSpan, this.requestPolicy, tryRequest);
+
+            return response
+                    .map(new Function<HttpResponse, TryResult>() {
+                        @Override
+                        public TryResult apply(HttpResponse response) {
+                            return new TryResult(response, null);
+                        }
+                    })
+                    .onErrorReturn(new Function<Throwable, TryResult>() {
+                        @Override
+                        public TryResult apply(Throwable throwable) {
+                            return new TryResult(null, throwable);
+                        }
+                    })
+                    .flatMap(new Function<TryResult, Single<HttpResponse>>() {
+                        @Override
+                        public Single<HttpResponse> apply(TryResult result) {
+                            if (toSecondary && result.response != null
+                                    && result.response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                                considerSecondary = false;
+                            }
+
+                            boolean retryable = result.error != null
+                                    ? isRetryable(result.error)
+                                    : isRetryable(result.response, toSecondary);
+                            if (!retryable) {
+                                if (result.response != null) {
+                                    retryBudget.recordSuccess();
+                                }
+                            }
+                            else if (tryNumber < requestRetryOptions.maxTries() && retryBudget.tryAcquireRetry()) {
+                                return retry(request, tryNumber + 1);
+                            }
+
+                            return result.error != null
+                                    ? Single.<HttpResponse>error(result.error) : Single.just(result.response);
+                        }
+                    });
+        }
+
+        private Single<HttpResponse> retry(final HttpRequest request, final int tryNumber) {
+            Single<HttpResponse> nextTry = Single.defer(new Callable<Single<HttpResponse>>() {
+                @Override
+                public Single<HttpResponse> call() {
+                    return attempt(request, tryNumber);
+                }
+            });
+
+            // Tries against the secondary follow immediately; it has not been failing.
+            if (this.considerSecondary && tryNumber % 2 == 0) {
+                return nextTry;
+            }
+
+            // Back off from the previous try against the primary, with jitter so that clients spread out.
+            long delayInMs = requestRetryOptions.calculatedDelayInMs(this.considerSecondary ? tryNumber / 2 + 1
+                    : tryNumber);
+            delayInMs = (long) (delayInMs * (0.8 + 0.4 * ThreadLocalRandom.current().nextDouble()));
+            return delayInMs <= 0 ? nextTry : nextTry.delaySubscription(delayInMs, TimeUnit.MILLISECONDS);
         }
     }
 
     @Override
     public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
-        return new RequestRetryPolicy(next, options, this.requestRetryOptions);
+        return new RequestRetryPolicy(next);
+    }
+
+    /**
+     * @return
+     *      The factory for the per-try policy which times out each try, paired with this one.
+     */
+    RequestPolicyFactory tryTimeoutFactory() {
+        return this.tryTimeoutFactory;
+    }
+
+    private static boolean isRetryable(Throwable throwable) {
+        return throwable instanceof IOException || throwable instanceof TimeoutException;
+    }
+
+    private static boolean isRetryable(HttpResponse response, boolean fromSecondary) {
+        int statusCode = response.statusCode();
+        return statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR
+                || statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+                // The primary may have the resource even though the secondary does not yet.
+                || (fromSecondary && statusCode == HttpURLConnection.HTTP_NOT_FOUND);
+    }
+
+    private static final class TryResult {
+        final HttpResponse response;
+
+        final Throwable error;
+
+        TryResult(HttpResponse response, Throwable error) {
+            this.response = response;
+            this.error = error;
+        }
     }
 }
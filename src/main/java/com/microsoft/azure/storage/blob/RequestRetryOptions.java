@@ -57,7 +57,10 @@ public final class RequestRetryOptions {
 
     public RequestRetryOptions(RetryPolicyType retryPolicyType, Integer maxRetries, Long tryTimeoutInMs,
                                Long retryDelayInMs, Long maxRetryDelayInMs, String secondaryHost) {
-        this.retryPolicyType = retryPolicyType;
+        if (retryPolicyType != null) {
+            this.retryPolicyType = retryPolicyType;
+        }
+
         if (maxRetries != null) {
             Utility.assertInBounds("maxRetries", maxRetries, 1, Integer.MAX_VALUE);
             this.maxRetries = maxRetries;
@@ -81,10 +84,25 @@ public final class RequestRetryOptions {
                 this.maxRetryDelayInMs = retryDelayInMs;
             }
         }
-        else {
+        else if (maxRetryDelayInMs != null) {
+            Utility.assertInBounds("maxRetryDelayInMs", maxRetryDelayInMs, 1, Long.MAX_VALUE);
             this.maxRetryDelayInMs = maxRetryDelayInMs;
             this.retryDelayInMs = Math.min(this.retryDelayInMs, this.maxRetryDelayInMs);
         }
+
+        this.secondaryHost = secondaryHost;
+    }
+
+    int maxTries() {
+        return this.maxRetries;
+    }
+
+    long tryTimeoutInMs() {
+        return this.tryTimeoutInMs;
+    }
+
+    String secondaryHost() {
+        return this.secondaryHost;
     }
 
     public long calculatedDelayInMs(int tryCount) {
@@ -99,12 +117,12 @@ public final class RequestRetryOptions {
                 break;
         }
 
-        return delay;
+        return Math.min(delay, this.maxRetryDelayInMs);
     }
 
     private long pow(long number, int exponent) {
         long result = 1;
-        for (int i = 0; i < exponent; i++) {
+        for (int i = 0; i < exponent && result <= Long.MAX_VALUE / number / this.retryDelayInMs; i++) {
             result *= number;
         }
 
@@ -0,0 +1,70 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+/**
+ * RESERVED FOR INTERNAL USE
+ * The timestamps of one request try, stamped by the policies it passes through. Policies assemble a try by calling
+ * each other's {@code sendAsync} synchronously on one thread, so the context opened by {@link RequestTimingFactory}
+ * is published in a thread-local for exactly that call; a policy which wants to stamp the try picks it up from
+ * {@link #current()} while it is being assembled and keeps the reference for its asynchronous callbacks.
+ */
+final class RequestTimingContext {
+
+    private static final ThreadLocal<RequestTimingContext> CURRENT = new ThreadLocal<>();
+
+    final long startNanos = System.nanoTime();
+
+    long signingNanos;
+
+    // When the try reached the innermost timing policy, i.e. was handed to the HTTP client.
+    long assembledNanos;
+
+    long subscribedNanos;
+
+    long headersNanos;
+
+    /**
+     * @return
+     *      The context of the try being assembled on the calling thread, or {@code null} if timing is not enabled.
+     */
+    static RequestTimingContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Publishes a context for the calling thread.
+     * @return
+     *      The previously published context, which must be restored with {@link #restore(RequestTimingContext)}.
+     */
+    static RequestTimingContext open(RequestTimingContext context) {
+        RequestTimingContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    static void restore(RequestTimingContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(previous);
+        }
+    }
+
+    void addSigningTime(long nanos) {
+        this.signingNanos += nanos;
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory for breaking the latency of each request try down into the {@link Stage}s spent in this process and on the
+ * wire, summarized per operation. Operations are named by the {@code x-ms-logging-context} header which the generated
+ * service interfaces set, e.g. "com.microsoft.azure.storage.Blobs get".
+ *
+ * Timing is opt-in: {@link StorageURL#CreatePipeline} adds the policy just inside the retry policy, and a second
+ * policy closest to the HTTP client, when {@link PipelineOptions#requestTiming} is set. The built-in policies between
+ * them stamp their own stages, such as signing. Read the summaries with {@link #snapshot()}.
+ */
+public final class RequestTimingFactory implements RequestPolicyFactory {
+
+    /**
+     * The stages of a request try.
+     */
+    public enum Stage {
+        /**
+         * Time spent in the request policies, e.g. adding headers and logging, excluding signing.
+         */
+        PREPARATION,
+
+        /**
+         * Time spent building the string to sign and computing the shared key signature.
+         */
+        SIGNING,
+
+        /**
+         * Time between the try being assembled and being subscribed to, e.g. waiting behind a bounded
+         * {@code flatMap}, for a scheduler thread, or for the rate or concurrency limit.
+         */
+        QUEUEING,
+
+        /**
+         * Time from handing the try to the HTTP client until the response headers arrive. This includes waiting for
+         * a pooled connection, which the HTTP client does not report separately.
+         */
+        TIME_TO_FIRST_BYTE,
+
+        /**
+         * Time spent in the response policies, e.g. logging, before the response is passed on for deserialization.
+         */
+        RESPONSE_PROCESSING,
+
+        /**
+         * Time from the try entering the pipeline until its response leaves it.
+         */
+        TOTAL
+    }
+
+    /**
+     * The operation name used for requests without an {@code x-ms-logging-context} header.
+     */
+    public static final String UNKNOWN_OPERATION = "unknown";
+
+    private static final String LOGGING_CONTEXT_HEADER = "x-ms-logging-context";
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final ConcurrentHashMap<String, LatencyHistogram[]> operations = new ConcurrentHashMap<>();
+
+    private final RequestPolicyFactory wireFactory = new RequestPolicyFactory() {
+        @Override
+        public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+            return new WireTimingPolicy(next);
+        }
+    };
+
+    private final class RequestTimingPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        RequestTimingPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Opens a timing context for the try and records its stages once it completes
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final String operation = request.headers().value(LOGGING_CONTEXT_HEADER);
+            final RequestTimingContext context = new RequestTimingContext();
+            RequestTimingContext previous = RequestTimingContext.open(context);
+            Single<HttpResponse> response;
+            try {
+                response = this.requestPolicy.sendAsync(request);
+            }
+            finally {
+                RequestTimingContext.restore(previous);
+            }
+
+            return response
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            record(operation, context, System.nanoTime());
+                        }
+                    })
+                    .doOnError(new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) {
+                            record(operation, context, System.nanoTime());
+                        }
+                    });
+        }
+    }
+
+    private static final class WireTimingPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        WireTimingPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Stamps when the try is handed to the HTTP client, sent, and answered
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            final RequestTimingContext context = RequestTimingContext.current();
+            if (context == null) {
+                return this.requestPolicy.sendAsync(request);
+            }
+
+            context.assembledNanos = System.nanoTime();
+            return this.requestPolicy.sendAsync(request)
+                    .doOnSubscribe(new Consumer<Disposable>() {
+                        @Override
+                        public void accept(Disposable disposable) {
+                            context.subscribedNanos = System.nanoTime();
+                        }
+                    })
+                    .doOnSuccess(new Consumer<HttpResponse>() {
+                        @Override
+                        public void accept(HttpResponse response) {
+                            context.headersNanos = System.nanoTime();
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new RequestTimingPolicy(next);
+    }
+
+    /**
+     * @return
+     *      The factory for the policy which belongs closest to the HTTP client, paired with this one.
+     */
+    RequestPolicyFactory wireFactory() {
+        return this.wireFactory;
+    }
+
+    /**
+     * @return
+     *      A {@code Map} of operation names to a point-in-time copy of their stage timings, sorted by name.
+     */
+    public Map<String, OperationTimings> snapshot() {
+        Map<String, OperationTimings> snapshots = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram[]> entry : this.operations.entrySet()) {
+            Map<Stage, StageTimings> stages = new EnumMap<>(Stage.class);
+            for (Stage stage : STAGES) {
+                LatencyHistogram histogram = entry.getValue()[stage.ordinal()];
+                stages.put(stage, new StageTimings(histogram.bucketCounts(), histogram.count(), histogram.sum(),
+                        histogram.max()));
+            }
+            snapshots.put(entry.getKey(), new OperationTimings(entry.getKey(), stages));
+        }
+        return snapshots;
+    }
+
+    private void record(String operation, RequestTimingContext context, long endNanos) {
+        LatencyHistogram[] histograms = this.histogramsFor(operation);
+        histograms[Stage.SIGNING.ordinal()].record(toMicros(context.signingNanos));
+        histograms[Stage.TOTAL.ordinal()].record(toMicros(endNanos - context.startNanos));
+
+        // The remaining stages are only known if the try reached the HTTP client.
+        if (context.assembledNanos != 0) {
+            histograms[Stage.PREPARATION.ordinal()].record(
+                    toMicros(context.assembledNanos - context.startNanos - context.signingNanos));
+        }
+        if (context.subscribedNanos != 0) {
+            histograms[Stage.QUEUEING.ordinal()].record(toMicros(context.subscribedNanos - context.assembledNanos));
+        }
+        if (context.headersNanos != 0) {
+            histograms[Stage.TIME_TO_FIRST_BYTE.ordinal()].record(
+                    toMicros(context.headersNanos - context.subscribedNanos));
+            histograms[Stage.RESPONSE_PROCESSING.ordinal()].record(toMicros(endNanos - context.headersNanos));
+        }
+    }
+
+    private LatencyHistogram[] histogramsFor(String operation) {
+        if (operation == null) {
+            operation = UNKNOWN_OPERATION;
+        }
+
+        LatencyHistogram[] histograms = this.operations.get(operation);
+        if (histograms == null) {
+            LatencyHistogram[] created = new LatencyHistogram[STAGES.length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new LatencyHistogram();
+            }
+            histograms = this.operations.putIfAbsent(operation, created);
+            if (histograms == null) {
+                histograms = created;
+            }
+        }
+        return histograms;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * A point-in-time copy of the stage timings for one operation.
+     */
+    public static final class OperationTimings {
+        private final String operation;
+
+        private final Map<Stage, StageTimings> stages;
+
+        OperationTimings(String operation, Map<Stage, StageTimings> stages) {
+            this.operation = operation;
+            this.stages = stages;
+        }
+
+        /**
+         * @return
+         *      The operation name.
+         */
+        public String operation() {
+            return this.operation;
+        }
+
+        /**
+         * @param stage
+         *      The {@link Stage} to get.
+         * @return
+         *      The timings of the given stage.
+         */
+        public StageTimings stage(Stage stage) {
+            return this.stages.get(stage);
+        }
+
+        /**
+         * @return
+         *      The fraction, between 0 and 1, of the mean total try time which was spent in this process, i.e. in
+         *      preparation, signing, queueing and response processing, rather than waiting on the service.
+         */
+        public double clientFraction() {
+            long total = this.stages.get(Stage.TOTAL).meanInMicros();
+            if (total == 0) {
+                return 0;
+            }
+
+            long client = this.stages.get(Stage.PREPARATION).meanInMicros()
+                    + this.stages.get(Stage.SIGNING).meanInMicros()
+                    + this.stages.get(Stage.QUEUEING).meanInMicros()
+                    + this.stages.get(Stage.RESPONSE_PROCESSING).meanInMicros();
+            return Math.min(1.0, (double) client / total);
+        }
+    }
+
+    /**
+     * A point-in-time copy of the timings of one stage.
+     */
+    public static final class StageTimings {
+        private final long[] buckets;
+
+        private final long count;
+
+        private final long sumInMicros;
+
+        private final long maxInMicros;
+
+        StageTimings(long[] buckets, long count, long sumInMicros, long maxInMicros) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sumInMicros = sumInMicros;
+            this.maxInMicros = maxInMicros;
+        }
+
+        /**
+         * @return
+         *      The number of tries for which the stage was recorded.
+         */
+        public long count() {
+            return this.count;
+        }
+
+        /**
+         * @return
+         *      The mean time in the stage in microseconds, or 0 if it was never recorded.
+         */
+        public long meanInMicros() {
+            return this.count == 0 ? 0 : this.sumInMicros / this.count;
+        }
+
+        /**
+         * @return
+         *      The longest time in the stage in microseconds.
+         */
+        public long maxInMicros() {
+            return this.maxInMicros;
+        }
+
+        /**
+         * @param percentile
+         *      The percentile, between 0 and 100.
+         * @return
+         *      The time in the stage in microseconds at the given percentile, accurate to within 12.5%.
+         */
+        public long percentileInMicros(double percentile) {
+            return Math.min(LatencyHistogram.percentile(this.buckets, percentile), this.maxInMicros);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+/**
+ * A bridge to a distributed tracing library, used by {@link TracingFactory}. Contexts are opaque to this library:
+ * they are whatever the tracing library uses to represent the active span on a thread, and are only ever passed back
+ * to the tracer.
+ */
+public interface RequestTracer {
+
+    /**
+     * A {@link RequestTracer} which traces nothing.
+     */
+    RequestTracer NO_OP = new RequestTracer() {
+        @Override
+        public Object captureContext() {
+            return null;
+        }
+
+        @Override
+        public Object attachContext(Object context) {
+            return null;
+        }
+
+        @Override
+        public void detachContext(Object previous) {
+        }
+
+        @Override
+        public Span startSpan(String name, Object parentContext) {
+            return Span.NO_OP;
+        }
+    };
+
+    /**
+     * @return
+     *      The trace context active on the calling thread, or {@code null} if there is none.
+     */
+    Object captureContext();
+
+    /**
+     * Makes a previously captured context the active one on the calling thread.
+     * @param context
+     *      The context returned by {@link #captureContext()} or {@link Span#context()}.
+     * @return
+     *      The context which was active before, to be passed to {@link #detachContext(Object)}.
+     */
+    Object attachContext(Object context);
+
+    /**
+     * Restores the context which was active before the matching {@link #attachContext(Object)}.
+     * @param previous
+     *      The value returned by {@link #attachContext(Object)}.
+     */
+    void detachContext(Object previous);
+
+    /**
+     * Starts a span.
+     * @param name
+     *      A {@code String} naming the span.
+     * @param parentContext
+     *      The context of the parent span, or {@code null} to start a new trace.
+     * @return
+     *      The started {@link Span}.
+     */
+    Span startSpan(String name, Object parentContext);
+
+    /**
+     * A span started by a {@link RequestTracer}.
+     */
+    interface Span {
+
+        /**
+         * A {@link Span} which records nothing.
+         */
+        Span NO_OP = new Span() {
+            @Override
+            public Object context() {
+                return null;
+            }
+
+            @Override
+            public String traceId() {
+                return null;
+            }
+
+            @Override
+            public void setTag(String key, String value) {
+            }
+
+            @Override
+            public void end(Throwable error) {
+            }
+        };
+
+        /**
+         * @return
+         *      The context of this span, for starting child spans or making it active on a thread.
+         */
+        Object context();
+
+        /**
+         * @return
+         *      The ID of the trace this span belongs to, sent as the {@code x-ms-client-request-id} header so that
+         *      the request can be found in the service's logs; or {@code null} to send a random ID instead.
+         */
+        String traceId();
+
+        /**
+         * Annotates the span.
+         * @param key
+         *      A {@code String} naming the tag.
+         * @param value
+         *      A {@code String} holding the tag's value.
+         */
+        void setTag(String key, String value);
+
+        /**
+         * Ends the span.
+         * @param error
+         *      The {@code Throwable} which failed the traced work, or {@code null} if it succeeded.
+         */
+        void end(Throwable error);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A cap on retries shared by every request that uses it: within a sliding window, retries may not exceed a fixed
+ * allowance plus a fraction of the requests which succeeded. When the service is healthy almost nothing is retried and
+ * the budget is never reached; during a partial outage successes dry up, so retries stop multiplying the load, and
+ * requests fail with their last response or error instead.
+ *
+ * {@link #processWide()} is used by {@link StorageURL#CreatePipeline} unless {@link PipelineOptions#retryBudget} is
+ * set; give each account's pipeline its own instance to budget accounts separately.
+ */
+public final class RetryBudget {
+
+    private static final int SLOTS = 10;
+
+    private static final RetryBudget PROCESS_WIDE = new RetryBudget(0.1, 10, TimeUnit.SECONDS.toMillis(10));
+
+    private final double retryRatio;
+
+    private final long minRetries;
+
+    private final long slotNanos;
+
+    private final long originNanos = System.nanoTime();
+
+    /*
+     * The window's slots, indexed by their number modulo SLOTS. Every request of every pipeline sharing the budget
+     * records into the current slot, so the counts are atomic rather than guarded by a monitor; a slot is replaced,
+     * rather than cleared, once its number falls out of the window.
+     */
+    private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<>(SLOTS);
+
+    private final AtomicLong retriesAllowed = new AtomicLong();
+
+    private final AtomicLong retriesRejected = new AtomicLong();
+
+    /**
+     * @return
+     *      The budget shared by every pipeline in the process which is not given its own: retries may not exceed 10
+     *      per second plus 10% of successful requests, over a 10 second window.
+     */
+    public static RetryBudget processWide() {
+        return PROCESS_WIDE;
+    }
+
+    /**
+     * Creates a {@link RetryBudget}.
+     * @param retryRatio
+     *      The number of retries each successful request earns, e.g. 0.1 to allow one retry per ten successes.
+     * @param minRetriesPerSecond
+     *      The retries per second allowed regardless of successes, so that a quiet client can still retry.
+     * @param windowInMs
+     *      The length of the sliding window over which retries and successes are counted.
+     */
+    public RetryBudget(double retryRatio, int minRetriesPerSecond, long windowInMs) {
+        if (!(retryRatio >= 0)) {
+            throw new IllegalArgumentException(
+                    String.format(SR.PARAMETER_NOT_IN_RANGE, "retryRatio", 0, Double.MAX_VALUE));
+        }
+        Utility.assertInBounds("minRetriesPerSecond", minRetriesPerSecond, 0, Integer.MAX_VALUE);
+        Utility.assertInBounds("windowInMs", windowInMs, SLOTS, Long.MAX_VALUE / SLOTS);
+
+        this.retryRatio = retryRatio;
+        this.minRetries = minRetriesPerSecond * windowInMs / TimeUnit.SECONDS.toMillis(1);
+        this.slotNanos = TimeUnit.MILLISECONDS.toNanos(windowInMs) / SLOTS;
+    }
+
+    /**
+     * Records a request which completed without needing another try.
+     */
+    void recordSuccess() {
+        this.currentSlot(this.currentSlotNumber()).successes.incrementAndGet();
+    }
+
+    /**
+     * Withdraws a retry from the budget.
+     * @return
+     *      {@code true} if the retry may be sent; {@code false} if the budget is exhausted.
+     */
+    boolean tryAcquireRetry() {
+        long number = this.currentSlotNumber();
+        Slot current = this.currentSlot(number);
+        while (true) {
+            long retries = current.retries.get();
+            long earlierRetries = 0;
+            long successes = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                Slot slot = this.slots.get(i);
+                if (slot != null && slot != current && number - slot.number < SLOTS) {
+                    earlierRetries += slot.retries.get();
+                    successes += slot.successes.get();
+                }
+            }
+            successes += current.successes.get();
+
+            if (earlierRetries + retries >= this.minRetries + this.retryRatio * successes) {
+                this.retriesRejected.incrementAndGet();
+                return false;
+            }
+            // Only the current slot's retries can have changed meanwhile; recount if they did.
+            if (current.retries.compareAndSet(retries, retries + 1)) {
+                this.retriesAllowed.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      The number of retries the budget has allowed.
+     */
+    public long retriesAllowed() {
+        return this.retriesAllowed.get();
+    }
+
+    /**
+     * @return
+     *      The number of retries the budget has refused, failing their requests immediately.
+     */
+    public long retriesRejected() {
+        return this.retriesRejected.get();
+    }
+
+    /**
+     * @return
+     *      The number of retries which would currently be allowed.
+     */
+    public long available() {
+        long number = this.currentSlotNumber();
+        long retries = 0;
+        long successes = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            Slot slot = this.slots.get(i);
+            if (slot != null && number - slot.number < SLOTS) {
+                retries += slot.retries.get();
+                successes += slot.successes.get();
+            }
+        }
+        return Math.max(0, (long) (this.minRetries + this.retryRatio * successes) - retries);
+    }
+
+    private long currentSlotNumber() {
+        return (System.nanoTime() - this.originNanos) / this.slotNanos;
+    }
+
+    /*
+     * Returns the slot with the given number, replacing the one it reuses if that has fallen out of the window.
+     */
+    private Slot currentSlot(long number) {
+        int index = (int) (number % SLOTS);
+        while (true) {
+            Slot slot = this.slots.get(index);
+            if (slot != null && slot.number >= number) {
+                return slot;
+            }
+            Slot replacement = new Slot(number);
+            if (this.slots.compareAndSet(index, slot, replacement)) {
+                return replacement;
+            }
+        }
+    }
+
+    private static final class Slot {
+        final long number;
+
+        final AtomicLong successes = new AtomicLong();
+
+        final AtomicLong retries = new AtomicLong();
+
+        Slot(long number) {
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.security.InvalidKeyException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reuses shared access signatures instead of signing a new one for every request. Tokens are cached by resource,
+ * permissions and policy, and each one is handed out until less than {@code refreshAheadInMs} of its validity
+ * remains; after that the next request signs a replacement. Every token returned is therefore valid for at least
+ * {@code refreshAheadInMs}. The encoded query string is computed once per token.
+ *
+ * Tokens are issued without a start time, so they are usable immediately regardless of clock skew, and expire
+ * {@code validityInMs} after they are signed.
+ */
+public final class SASCache {
+
+    /**
+     * The default maximum number of cached tokens.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final SharedKeyCredentials credentials;
+
+    private final long validityInMs;
+
+    private final long refreshAheadInMs;
+
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a {@link SASCache} holding up to {@link #DEFAULT_MAX_ENTRIES} tokens.
+     * @param credentials
+     *      The {@link SharedKeyCredentials} used to sign tokens.
+     * @param validityInMs
+     *      How long each token is valid.
+     * @param refreshAheadInMs
+     *      The remaining validity below which a token is replaced. Must be less than {@code validityInMs}.
+     */
+    public SASCache(SharedKeyCredentials credentials, long validityInMs, long refreshAheadInMs) {
+        this(credentials, validityInMs, refreshAheadInMs, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a {@link SASCache}.
+     * @param credentials
+     *      The {@link SharedKeyCredentials} used to sign tokens.
+     * @param validityInMs
+     *      How long each token is valid.
+     * @param refreshAheadInMs
+     *      The remaining validity below which a token is replaced. Must be less than {@code validityInMs}.
+     * @param maxEntries
+     *      The maximum number of cached tokens.
+     */
+    public SASCache(SharedKeyCredentials credentials, long validityInMs, long refreshAheadInMs, int maxEntries) {
+        if (credentials == null) {
+            throw new IllegalArgumentException("SharedKeyCredentials cannot be null.");
+        }
+        Utility.assertInBounds("validityInMs", validityInMs, 1, Long.MAX_VALUE);
+        Utility.assertInBounds("refreshAheadInMs", refreshAheadInMs, 0, validityInMs - 1);
+        Utility.assertInBounds("maxEntries", maxEntries, 1, Integer.MAX_VALUE);
+
+        this.credentials = credentials;
+        this.validityInMs = validityInMs;
+        this.refreshAheadInMs = refreshAheadInMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns an encoded service SAS for a container or blob.
+     * @param containerName
+     *      A {@code String} naming the container.
+     * @param blobName
+     *      A {@code String} naming the blob, or {@code null} for a container SAS.
+     * @param permissions
+     *      The permissions granted by the token.
+     * @param protocol
+     *      A {@link SASProtocol} restricting the token, or {@code null}.
+     * @param ipRange
+     *      An {@link IPRange} restricting the token, or {@code null}.
+     * @param identifier
+     *      A {@code String} naming a stored access policy, or {@code null}.
+     * @return
+     *      The token's query string, without a leading '?'.
+     * @throws InvalidKeyException
+     *      If the account key is invalid.
+     */
+    public String getServiceSAS(String containerName, String blobName, EnumSet<ContainerSASPermission> permissions,
+                                SASProtocol protocol, IPRange ipRange, String identifier)
+            throws InvalidKeyException {
+        return this.getServiceSAS(containerName, blobName, permissions, protocol, ipRange, identifier, null, null,
+                null, null, null);
+    }
+
+    /**
+     * Returns an encoded service SAS for a container or blob which also overrides response headers.
+     * @param containerName
+     *      A {@code String} naming the container.
+     * @param blobName
+     *      A {@code String} naming the blob, or {@code null} for a container SAS.
+     * @param permissions
+     *      The permissions granted by the token.
+     * @param protocol
+     *      A {@link SASProtocol} restricting the token, or {@code null}.
+     * @param ipRange
+     *      An {@link IPRange} restricting the token, or {@code null}.
+     * @param identifier
+     *      A {@code String} naming a stored access policy, or {@code null}.
+     * @param cacheControl
+     *      The Cache-Control response header override, or {@code null}.
+     * @param contentDisposition
+     *      The Content-Disposition response header override, or {@code null}.
+     * @param contentEncoding
+     *      The Content-Encoding response header override, or {@code null}.
+     * @param contentLanguage
+     *      The Content-Language response header override, or {@code null}.
+     * @param contentType
+     *      The Content-Type response header override, or {@code null}.
+     * @return
+     *      The token's query string, without a leading '?'.
+     * @throws InvalidKeyException
+     *      If the account key is invalid.
+     */
+    public String getServiceSAS(String containerName, String blobName, EnumSet<ContainerSASPermission> permissions,
+                                SASProtocol protocol, IPRange ipRange, String identifier, String cacheControl,
+                                String contentDisposition, String contentEncoding, String contentLanguage,
+                                String contentType) throws InvalidKeyException {
+        String permissionsString = ContainerSASPermission.permissionsToString(permissions);
+        String key = StringUtils.join(new String[]{ "service", containerName, blobName, permissionsString,
+                protocol == null ? null : protocol.toString(), ipRange == null ? null : ipRange.toString(),
+                identifier, cacheControl, contentDisposition, contentEncoding, contentLanguage, contentType }, '\n');
+
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(key);
+        if (entry != null && now < entry.refreshAtMillis) {
+            return entry.encoded;
+        }
+
+        Date expiryTime = new Date(now + this.validityInMs);
+        ServiceSAS sas = new ServiceSAS(null, protocol, null, expiryTime, permissions, ipRange, containerName,
+                blobName, identifier, cacheControl, contentDisposition, contentEncoding, contentLanguage,
+                contentType);
+        return this.put(key, sas.GenerateSASQueryParameters(this.credentials), now);
+    }
+
+    /**
+     * Returns an encoded account SAS.
+     * @param services
+     *      The services the token grants access to.
+     * @param resourceTypes
+     *      The resource types the token grants access to.
+     * @param permissions
+     *      The permissions granted by the token.
+     * @param protocol
+     *      A {@link SASProtocol} restricting the token, or {@code null}.
+     * @param ipRange
+     *      An {@link IPRange} restricting the token, or {@code null}.
+     * @return
+     *      The token's query string, without a leading '?'.
+     * @throws InvalidKeyException
+     *      If the account key is invalid.
+     */
+    public String getAccountSAS(EnumSet<AccountSASService> services, EnumSet<AccountSASResourceType> resourceTypes,
+                                EnumSet<AccountSASPermission> permissions, SASProtocol protocol, IPRange ipRange)
+            throws InvalidKeyException {
+        String key = StringUtils.join(new String[]{ "account", AccountSASService.servicesToString(services),
+                AccountSASResourceType.resourceTypesToString(resourceTypes),
+                AccountSASPermission.permissionsToString(permissions), protocol == null ? null : protocol.toString(),
+                ipRange == null ? null : ipRange.toString() }, '\n');
+
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(key);
+        if (entry != null && now < entry.refreshAtMillis) {
+            return entry.encoded;
+        }
+
+        Date expiryTime = new Date(now + this.validityInMs);
+        AccountSAS sas = new AccountSAS(null, protocol, null, expiryTime, permissions, ipRange, services,
+                resourceTypes);
+        return this.put(key, sas.GenerateSASQueryParameters(this.credentials), now);
+    }
+
+    /**
+     * @return
+     *      The number of cached tokens.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Discards every cached token, e.g. after the account key has been rotated.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /*
+     * Concurrent callers may both sign a replacement; either token is valid, and the last one stored wins.
+     */
+    private String put(String key, SASQueryParameters parameters, long now) {
+        Entry entry = new Entry(parameters.encode(), now + this.validityInMs - this.refreshAheadInMs);
+        if (this.entries.size() >= this.maxEntries && !this.entries.containsKey(key)) {
+            this.evict(now);
+        }
+
+        this.entries.put(key, entry);
+        return entry.encoded;
+    }
+
+    // Drops stale tokens first; if every token is still fresh, drops an arbitrary half to make room.
+    private void evict(long now) {
+        for (Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator(); it.hasNext(); ) {
+            if (now >= it.next().getValue().refreshAtMillis) {
+                it.remove();
+            }
+        }
+
+        if (this.entries.size() >= this.maxEntries) {
+            int toRemove = this.entries.size() / 2;
+            for (Iterator<String> it = this.entries.keySet().iterator(); it.hasNext() && toRemove > 0; toRemove--) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String encoded;
+
+        final long refreshAtMillis;
+
+        Entry(String encoded, long refreshAtMillis) {
+            this.encoded = encoded;
+            this.refreshAtMillis = refreshAtMillis;
+        }
+    }
+}
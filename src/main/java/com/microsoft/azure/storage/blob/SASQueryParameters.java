@@ -14,8 +14,6 @@
  */
 package com.microsoft.azure.storage.blob;
 
-import org.apache.commons.lang3.StringUtils;
-
 import java.util.Date;
 import java.util.Map;
 
@@ -236,123 +234,52 @@ public final class SASQueryParameters {
      *  A {@code String} representing all SAS query parameters
      */
     public String encode() {
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        if (this.version != null) {
-            first = false;
-            sb.append("sv=" + this.version);
-        }
-
-        if (this.services != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("ss=" + this.services);
-        }
-
-        if (this.resourceTypes != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("srt=" + this.resourceTypes);
-        }
-
-        if (this.protocol != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("spr=" + this.protocol);
-        }
+        return this.encode(new StringBuilder()).toString();
+    }
 
+    /**
+     * Appends all SAS query parameters to a buffer, which may already hold the resource URL followed by '?'. Values
+     * are percent-encoded where needed; in particular, the signature's '+', '/' and '=' characters.
+     * @param destination
+     *  The {@code StringBuilder} to append to
+     * @return
+     *  The destination {@code StringBuilder}
+     */
+    public StringBuilder encode(StringBuilder destination) {
+        final int start = destination.length();
+        appendParameter(destination, start, "sv", this.version);
+        appendParameter(destination, start, "ss", this.services);
+        appendParameter(destination, start, "srt", this.resourceTypes);
+        appendParameter(destination, start, "spr", this.protocol);
         if (this.startTime != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("st=" + Utility.getUTCTimeOrEmpty(this.startTime));
+            appendParameter(destination, start, "st", Utility.getUTCTimeOrEmpty(this.startTime));
         }
 
         if (this.expiryTime != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("se=" + Utility.getUTCTimeOrEmpty(this.expiryTime));
+            appendParameter(destination, start, "se", Utility.getUTCTimeOrEmpty(this.expiryTime));
         }
 
         if (this.ipRange != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("sip=" + this.ipRange.toString());
-        }
-
-        if (this.identifier != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("si=" + this.identifier);
+            appendParameter(destination, start, "sip", this.ipRange.toString());
         }
 
-        if (this.resource != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("sr=" + this.resource);
-        }
-
-        if (this.permissions != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
+        appendParameter(destination, start, "si", this.identifier);
+        appendParameter(destination, start, "sr", this.resource);
+        appendParameter(destination, start, "sp", this.permissions);
+        appendParameter(destination, start, "sig", this.signature);
+        return destination;
+    }
 
-            sb.append("sp=" + this.permissions);
+    private static void appendParameter(StringBuilder sb, int start, String name, String value) {
+        if (value == null) {
+            return;
         }
 
-        if (this.signature != null) {
-            if (first) {
-                first = false;
-            }
-            else {
-                sb.append('&');
-            }
-
-            sb.append("sig=" + this.signature);
+        if (sb.length() > start) {
+            sb.append('&');
         }
 
-        return sb.toString();
+        sb.append(name).append('=');
+        Utility.appendURLEncoded(sb, value, Utility.URL_QUERY_VALUE_SAFE);
     }
 }
@@ -25,6 +25,7 @@ final class SR {
     public static final String ARGUMENT_OUT_OF_RANGE_ERROR = "The argument is out of range. Argument name: %s, Value passed: %s.";
     public static final String ATTEMPTED_TO_SERIALIZE_INACCESSIBLE_PROPERTY = "An attempt was made to access an inaccessible member of the entity during serialization.";
     public static final String BLOB = "blob";
+    public static final String BLOB_NOT_IN_LISTING = "The blob '%s' is not in the listing of its container; the request was not sent.";
     public static final String BLOB_OVER_MAX_BLOCK_LIMIT = "The total blocks for this upload exceeds the maximum allowable limit. Please increase the block size.";
     public static final String BLOB_DATA_CORRUPTED = "Blob data corrupted (integrity check failed), Expected value is %s, retrieved %s";
     public static final String BLOB_ENDPOINT_NOT_CONFIGURED = "No blob endpoint configured.";
@@ -35,6 +36,7 @@ final class SR {
     public static final String CANNOT_CREATE_SAS_FOR_SNAPSHOTS = "Cannot create Shared Access Signature via references to blob snapshots. Please perform the given operation on the root blob instead.";
     public static final String CANNOT_CREATE_SAS_WITHOUT_ACCOUNT_KEY = "Cannot create Shared Access Signature unless the Account Key credentials are used by the ServiceClient.";
     public static final String CANNOT_TRANSFORM_NON_HTTPS_URI_WITH_HTTPS_ONLY_CREDENTIALS = "Cannot use HTTP with credentials that only support HTTPS.";
+    public static final String CIRCUIT_BREAKER_OPEN = "The circuit breaker for host '%s' is open; the request was not sent.";
     public static final String CONTAINER = "container";
     public static final String CONTENT_LENGTH_MISMATCH = "An incorrect number of bytes was read from the connection. The connection may have been closed.";
     public static final String CREATING_NETWORK_STREAM = "Creating a NetworkInputStream and expecting to read %s bytes.";
@@ -44,6 +46,7 @@ final class SR {
     public static final String DEFAULT_SERVICE_VERSION_ONLY_SET_FOR_BLOB_SERVICE = "DefaultServiceVersion can only be set for the Blob service.";
     public static final String DELETE_SNAPSHOT_NOT_VALID_ERROR = "The option '%s' must be 'None' to delete a specific snapshot specified by '%s'.";
     public static final String DIRECTORY = "directory";
+    public static final String DIRECTORY_NOT_CREATED = "The directory '%s' could not be created.";
     public static final String EDMTYPE_WAS_NULL = "EdmType cannot be null.";
     public static final String ENUMERATION_ERROR = "An error occurred while enumerating the result, check the original exception for details.";
     public static final String EMPTY_BATCH_NOT_ALLOWED = "Cannot execute an empty batch operation.";
@@ -75,6 +78,7 @@ final class SR {
     public static final String FILE_ENDPOINT_NOT_CONFIGURED = "No file endpoint configured.";
     public static final String FILE_HASH_MISMATCH = "File hash mismatch (integrity check failed), Expected value is %s, retrieved %s.";
     public static final String FILE_MD5_NOT_POSSIBLE = "MD5 cannot be calculated for an existing file because it would require reading the existing data. Please disable StoreFileContentMD5.";
+    public static final String FILE_NOT_DELETED = "The file '%s' could not be deleted.";
     public static final String INCORRECT_STREAM_LENGTH = "An incorrect stream length was specified, resulting in an authentication failure. Please specify correct length, or -1.";
     public static final String INPUT_STREAM_SHOULD_BE_MARKABLE = "Input stream must be markable.";
     public static final String INVALID_ACCOUNT_NAME = "Invalid account name.";
@@ -96,6 +100,7 @@ final class SR {
     public static final String INVALID_IP_ADDRESS = "Error when parsing IPv4 address: IP address '%s' is invalid.";
     public static final String INVALID_KEY = "Storage Key is not a valid base64 encoded string.";
     public static final String INVALID_LISTING_DETAILS = "Invalid blob listing details specified.";
+    public static final String INVALID_LOG_FRAME = "The blob '%s' holds an invalid record frame at offset %d.";
     public static final String INVALID_LOGGING_LEVEL = "Invalid logging operations specified.";
     public static final String INVALID_MAX_WRITE_SIZE = "Max write size is 4MB. Please specify a smaller range.";
     public static final String INVALID_MESSAGE_LENGTH = "The message size cannot be larger than %s bytes.";
@@ -113,11 +118,13 @@ final class SR {
     public static final String INVALID_STORAGE_PROTOCOL_VERSION = "Storage protocol version prior to 2009-09-19 do not support shared key authentication.";
     public static final String INVALID_STORAGE_SERVICE = "Invalid storage service specified.";
     public static final String INVALID_STREAM_LENGTH = "Invalid stream length; stream must be between 0 and %s MB in length.";
+    public static final String INVALID_URL_ENCODING = "Invalid percent-encoding at index %d of a URL.";
     public static final String ITERATOR_EMPTY = "There are no more elements in this enumeration.";
     public static final String KEY_AND_RESOLVER_MISSING = "Key and Resolver are not initialized. Decryption requires either of them to be initialized.";
     public static final String KEY_MISMATCH = "Key mismatch. The key id stored on the service does not match the specified key.";
     public static final String KEY_MISSING = "Key is not initialized. Encryption requires it to be initialized.";
     public static final String LEASE_CONDITION_ON_SOURCE = "A lease condition cannot be specified on the source of a copy.";
+    public static final String LEASE_MANAGER_CLOSED = "The lease manager has been closed.";
     public static final String LOG_STREAM_END_ERROR = "Error parsing log record: unexpected end of stream.";
     public static final String LOG_STREAM_DELIMITER_ERROR = "Error parsing log record: unexpected delimiter encountered.";
     public static final String LOG_STREAM_QUOTE_ERROR = "Error parsing log record: unexpected quote character encountered.";
@@ -14,8 +14,6 @@
  */
 package com.microsoft.azure.storage.blob;
 
-import org.apache.commons.lang3.StringUtils;
-
 import java.security.InvalidKeyException;
 import java.util.Date;
 import java.util.EnumSet;
@@ -59,59 +57,69 @@ public final class ServiceSAS extends BaseSAS {
             throw new IllegalArgumentException("SharedKeyCredentials cannot be null.");
         }
 
-        String resource = "c";
+        String stringToSign = this.appendStringToSign(new StringBuilder(),
+                canonicalContainerName(sharedKeyCredentials.getAccountName(), this.containerName)).toString();
+        return this.toQueryParameters(sharedKeyCredentials.computeHmac256(stringToSign));
+    }
+
+    /**
+     * Appends the string to sign. The canonical container name is passed in so that batch signing can compute it once
+     * per container.
+     */
+    StringBuilder appendStringToSign(StringBuilder sb, String canonicalContainerName) {
+        appendLine(sb, super.permissions);
+        appendLine(sb, Utility.getUTCTimeOrEmpty(super.startTime));
+        appendLine(sb, Utility.getUTCTimeOrEmpty(super.expiryTime));
+
+        // Container: "/blob/account/containername"
+        // Blob:      "/blob/account/containername/blobname"
+        sb.append(canonicalContainerName);
         if (!Utility.isNullOrEmpty(this.blobName)) {
-            resource = "b";
+            sb.append('/').append(this.blobName.replace('\\', '/'));
+        }
+        sb.append('\n');
+
+        appendLine(sb, this.identifier);
+        appendLine(sb, super.getIPRangeAsString());
+        appendLine(sb, super.getProtocolAsString());
+        appendLine(sb, super.version);
+        appendLine(sb, this.cacheControl);
+        appendLine(sb, this.contentDisposition);
+        appendLine(sb, this.contentEncoding);
+        appendLine(sb, this.contentLanguage);
+        if (this.contentType != null) {
+            sb.append(this.contentType);
         }
 
-        String stringToSign = StringUtils.join(
-                new String[]{
-                        super.permissions,
-                        Utility.getUTCTimeOrEmpty(super.startTime),
-                        Utility.getUTCTimeOrEmpty(super.expiryTime),
-                        getCanonicalName(sharedKeyCredentials.getAccountName()),
-                        this.identifier,
-                        super.getIPRangeAsString(),
-                        super.protocol.toString(),
-                        super.version,
-                        this.cacheControl,
-                        this.contentDisposition,
-                        this.contentEncoding,
-                        this.contentLanguage,
-                        this.contentType
-                },
-                '\n'
-        );
-
-        String signature = sharedKeyCredentials.computeHmac256(stringToSign);
+        return sb;
+    }
 
+    SASQueryParameters toQueryParameters(String signature) {
         SASQueryParameters sasParams = new SASQueryParameters();
         sasParams.version = super.version;
-        sasParams.protocol = super.protocol.toString();
+        sasParams.protocol = super.protocol == null ? null : super.protocol.toString();
         sasParams.startTime = super.startTime;
         sasParams.expiryTime = super.expiryTime;
         sasParams.ipRange = super.ipRange;
         sasParams.identifier = this.identifier;
-        sasParams.resource = resource;
+        sasParams.resource = Utility.isNullOrEmpty(this.blobName) ? "c" : "b";
         sasParams.permissions = super.permissions;
         sasParams.signature = signature;
         return sasParams;
     }
 
-    private String getCanonicalName(String accountName) {
-        // Container: "/blob/account/containername"
-        // Blob:      "/blob/account/containername/blobname"
-        String canoncialName = StringUtils.join(
-                new String[]{
-                        "/blob",
-                        accountName,
-                        this.containerName
-                },
-                '/');
-        if (!Utility.isNullOrEmpty(this.blobName)) {
-            canoncialName += this.blobName.replace("\\", "/");
-        }
+    String containerName() {
+        return this.containerName;
+    }
+
+    static String canonicalContainerName(String accountName, String containerName) {
+        return "/blob/" + accountName + "/" + containerName;
+    }
 
-        return canoncialName;
+    private static void appendLine(StringBuilder sb, String value) {
+        if (value != null) {
+            sb.append(value);
+        }
+        sb.append('\n');
     }
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+import org.reactivestreams.Publisher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+/**
+ * Signs large numbers of {@link ServiceSAS} tokens, e.g. for a manifest covering millions of blobs. The specs are
+ * split into chunks which are signed in parallel on the computation scheduler, and each token is appended to a
+ * caller-provided {@code StringBuilder} instead of being returned as a new {@code String}. A destination which
+ * already holds the blob URL followed by '?' therefore ends up holding the complete SAS URL.
+ *
+ * Within a chunk the string to sign is built in a reused buffer, and the canonical container name is computed once per
+ * run of specs for the same container, so specs should be grouped by container where possible.
+ */
+public final class ServiceSASBatchSigner {
+
+    /**
+     * The most specs signed by one task.
+     */
+    public static final int MAX_CHUNK_SIZE = 512;
+
+    private final SharedKeyCredentials credentials;
+
+    private final int parallelism;
+
+    /**
+     * Creates a {@link ServiceSASBatchSigner} which signs on up to one thread per available processor.
+     * @param credentials
+     *      The {@link SharedKeyCredentials} used to sign tokens.
+     */
+    public ServiceSASBatchSigner(SharedKeyCredentials credentials) {
+        this(credentials, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a {@link ServiceSASBatchSigner}.
+     * @param credentials
+     *      The {@link SharedKeyCredentials} used to sign tokens.
+     * @param parallelism
+     *      The most chunks signed at once.
+     */
+    public ServiceSASBatchSigner(SharedKeyCredentials credentials, int parallelism) {
+        if (credentials == null) {
+            throw new IllegalArgumentException("SharedKeyCredentials cannot be null.");
+        }
+        Utility.assertInBounds("parallelism", parallelism, 1, Integer.MAX_VALUE);
+
+        this.credentials = credentials;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Signs a single token on the calling thread and appends its query string to a buffer.
+     * @param sas
+     *      The {@link ServiceSAS} to sign.
+     * @param destination
+     *      The {@code StringBuilder} to append to.
+     * @return
+     *      The destination {@code StringBuilder}.
+     */
+    public StringBuilder appendSAS(ServiceSAS sas, StringBuilder destination) {
+        return new ChunkSigner().append(sas, destination);
+    }
+
+    /**
+     * Signs every spec and appends each token's query string to the destination at the same index.
+     * @param specs
+     *      The {@link ServiceSAS} specs to sign. The list should support fast random access.
+     * @param destinations
+     *      One {@code StringBuilder} per spec. Each is only touched by one thread, and must not be read until the
+     *      returned {@link Completable} completes.
+     * @return
+     *      A {@link Completable} which completes once every token has been appended.
+     */
+    public Completable appendSASAsync(final List<ServiceSAS> specs, final List<StringBuilder> destinations) {
+        if (specs == null || destinations == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    specs == null ? "specs" : "destinations"));
+        }
+        if (specs.size() != destinations.size()) {
+            throw new IllegalArgumentException("There must be exactly one destination per spec.");
+        }
+
+        final int count = specs.size();
+        // Enough chunks to keep every thread busy, but no more than needed to amortize scheduling.
+        final int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, (count + this.parallelism - 1) / this.parallelism));
+        final int chunkCount = (count + chunkSize - 1) / chunkSize;
+
+        return Flowable.range(0, chunkCount)
+                .flatMap(new Function<Integer, Publisher<Integer>>() {
+                    @Override
+                    public Publisher<Integer> apply(final Integer chunk) {
+                        return Flowable.fromCallable(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                ChunkSigner signer = new ChunkSigner();
+                                int end = Math.min(count, (chunk + 1) * chunkSize);
+                                for (int i = chunk * chunkSize; i < end; i++) {
+                                    signer.append(specs.get(i), destinations.get(i));
+                                }
+                                return chunk;
+                            }
+                        }).subscribeOn(Schedulers.computation());
+                    }
+                }, this.parallelism)
+                .ignoreElements();
+    }
+
+    /**
+     * Signs every spec.
+     * @param specs
+     *      The {@link ServiceSAS} specs to sign. The list should support fast random access.
+     * @return
+     *      A {@link Single} which emits each token's query string, in the order of the specs.
+     */
+    public Single<List<String>> signAsync(List<ServiceSAS> specs) {
+        if (specs == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY, "specs"));
+        }
+
+        final List<StringBuilder> destinations = new ArrayList<>(specs.size());
+        for (int i = 0; i < specs.size(); i++) {
+            destinations.add(new StringBuilder(256));
+        }
+
+        return this.appendSASAsync(specs, destinations).toSingle(new Callable<List<String>>() {
+            @Override
+            public List<String> call() {
+                List<String> tokens = new ArrayList<>(destinations.size());
+                for (StringBuilder destination : destinations) {
+                    tokens.add(destination.toString());
+                }
+                return tokens;
+            }
+        });
+    }
+
+    /*
+     * Per-chunk state; never shared between threads.
+     */
+    private final class ChunkSigner {
+        private final StringBuilder stringToSign = new StringBuilder(256);
+
+        private String containerName;
+
+        private String canonicalContainerName;
+
+        StringBuilder append(ServiceSAS sas, StringBuilder destination) {
+            String containerName = sas.containerName();
+            if (this.canonicalContainerName == null || !Objects.equals(this.containerName, containerName)) {
+                this.containerName = containerName;
+                this.canonicalContainerName = ServiceSAS.canonicalContainerName(credentials.getAccountName(),
+                        containerName);
+            }
+
+            this.stringToSign.setLength(0);
+            sas.appendStringToSign(this.stringToSign, this.canonicalContainerName);
+            String signature = credentials.computeHmac256(
+                    this.stringToSign.toString().getBytes(StandardCharsets.UTF_8));
+            return sas.toQueryParameters(signature).encode(destination);
+        }
+    }
+}
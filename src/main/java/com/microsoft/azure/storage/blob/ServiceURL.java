@@ -29,7 +29,7 @@ public final class ServiceURL extends StorageURL {
     }
 
     public ContainerURL createContainerURL(String containerName) {
-        return new ContainerURL(super.url + "/" + containerName, this.storageClient.httpPipeline());
+        return new ContainerURL(super.structuredURL.withChild(containerName), this.storageClient);
     }
 
     /**
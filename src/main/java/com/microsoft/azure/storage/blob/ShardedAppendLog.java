@@ -0,0 +1,520 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.azure.storage.models.BlobsGetHeaders;
+import com.microsoft.rest.v2.RestException;
+import com.microsoft.rest.v2.RestResponse;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.BooleanSupplier;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
+import org.reactivestreams.Publisher;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A log spread over several shards, each of which is a sequence of append blobs written by an
+ * {@link AppendBlobWriter}. Spreading records over shards lets write throughput grow with the number of shards
+ * instead of being limited by the append rate of a single blob.
+ *
+ * Every record is framed with a hybrid logical clock stamp (milliseconds since the epoch in the upper 48 bits, a
+ * logical counter in the lower 16) followed by its length. Stamps increase strictly within a shard, so
+ * {@link #readAsync(ContainerURL, String, int)} can restore a global order with a k-way merge. Each shard must
+ * have exactly one writer: when several nodes write the same log, each one owns a disjoint range of shards.
+ */
+public final class ShardedAppendLog {
+
+    /**
+     * The number of bytes a record's frame adds to the record: an 8 byte stamp and a 4 byte length.
+     */
+    public static final int FRAME_HEADER_SIZE = 12;
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private final AppendBlobWriter[] writers;
+
+    private final int maxRecordSize;
+
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    private final AtomicLong lastStamp = new AtomicLong();
+
+    /**
+     * Creates a {@link ShardedAppendLog} which writes to the shards {@code firstShard} through
+     * {@code firstShard + shardCount - 1}.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the log.
+     * @param logName
+     *      A {@code String} name shared by every shard of the log.
+     * @param firstShard
+     *      The first shard owned by this writer.
+     * @param shardCount
+     *      The number of shards owned by this writer.
+     * @param maxBatchBytes
+     *      The maximum size of a single AppendBlock, at most {@link Constants#MAX_APPEND_BLOCK_SIZE}.
+     * @param maxLatencyInMs
+     *      The longest time a record waits before it is sent.
+     */
+    public ShardedAppendLog(ContainerURL containerURL, String logName, int firstShard, int shardCount,
+                            int maxBatchBytes, long maxLatencyInMs) {
+        if (containerURL == null || logName == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY,
+                    containerURL == null ? "containerURL" : "logName"));
+        }
+        Utility.assertInBounds("firstShard", firstShard, 0, Integer.MAX_VALUE);
+        Utility.assertInBounds("shardCount", shardCount, 1, Integer.MAX_VALUE - firstShard);
+        Utility.assertInBounds("maxBatchBytes", maxBatchBytes, FRAME_HEADER_SIZE + 1,
+                Constants.MAX_APPEND_BLOCK_SIZE);
+
+        this.writers = new AppendBlobWriter[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.writers[i] = new AppendBlobWriter(containerURL, shardName(logName, firstShard + i), maxBatchBytes,
+                    maxLatencyInMs);
+        }
+        this.maxRecordSize = maxBatchBytes - FRAME_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the blob name prefix used for a shard's segments.
+     * @param logName
+     *      A {@code String} name shared by every shard of the log.
+     * @param shard
+     *      The shard number.
+     * @return
+     *      The shard's blob name prefix.
+     */
+    public static String shardName(String logName, int shard) {
+        return String.format(Utility.LOCALE_US, "%s/shard-%05d", logName, shard);
+    }
+
+    /**
+     * Appends a record to the next shard in round-robin order.
+     * @param record
+     *      The record's bytes.
+     * @return
+     *      A {@link Completable} which completes once the record has been committed.
+     */
+    public Completable writeAsync(byte[] record) {
+        int shard = (this.nextShard.getAndIncrement() & Integer.MAX_VALUE) % this.writers.length;
+        return this.writeToShardAsync(shard, record);
+    }
+
+    /**
+     * Appends a record to the shard selected by hashing a key. Records with the same key always land in the same
+     * shard, so their relative order does not depend on clock stamps.
+     * @param key
+     *      A {@code String} which selects the shard.
+     * @param record
+     *      The record's bytes.
+     * @return
+     *      A {@link Completable} which completes once the record has been committed.
+     */
+    public Completable writeAsync(String key, byte[] record) {
+        if (key == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY, "key"));
+        }
+
+        return this.writeToShardAsync((key.hashCode() & Integer.MAX_VALUE) % this.writers.length, record);
+    }
+
+    /**
+     * Sends any pending records on every shard without waiting for the latency timer.
+     * @return
+     *      A {@link Completable} which completes once every record written before this call has settled.
+     */
+    public Completable flushAsync() {
+        Completable[] flushes = new Completable[this.writers.length];
+        for (int i = 0; i < this.writers.length; i++) {
+            flushes[i] = this.writers[i].flushAsync();
+        }
+
+        return Completable.merge(Arrays.asList(flushes));
+    }
+
+    /**
+     * Advances this writer's clock past a stamp seen elsewhere, e.g. on a record read from another node. Records
+     * written afterwards are then ordered after the observed one.
+     * @param stamp
+     *      A stamp taken from another {@link Record}.
+     */
+    public void observe(long stamp) {
+        long last;
+        do {
+            last = this.lastStamp.get();
+            if (stamp <= last) {
+                return;
+            }
+        } while (!this.lastStamp.compareAndSet(last, stamp));
+    }
+
+    private Completable writeToShardAsync(int shard, byte[] record) {
+        if (record == null) {
+            throw new IllegalArgumentException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY, "record"));
+        }
+        Utility.assertInBounds("record.length", record.length, 0, this.maxRecordSize);
+
+        AppendBlobWriter writer = this.writers[shard];
+        // Stamping and queueing happen together so that stamps increase along the shard.
+        synchronized (writer) {
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + record.length);
+            frame.putLong(this.nextStamp()).putInt(record.length).put(record);
+            return writer.writeAsync(frame.array());
+        }
+    }
+
+    private long nextStamp() {
+        long physical = System.currentTimeMillis() << 16;
+        long last;
+        long next;
+        do {
+            last = this.lastStamp.get();
+            next = Math.max(physical, last + 1);
+        } while (!this.lastStamp.compareAndSet(last, next));
+
+        return next;
+    }
+
+    /**
+     * Reads every record committed to a log, merging the shards into stamp order. Ties are broken by shard number.
+     * The first segment of every shard is requested at once, and each later segment once the one before it has been
+     * read, so memory use is bounded by one open download per shard.
+     * @param containerURL
+     *      A {@link ContainerURL} for the container that holds the log.
+     * @param logName
+     *      A {@code String} name shared by every shard of the log.
+     * @param shardCount
+     *      The total number of shards across all writers.
+     * @return
+     *      A {@link Flowable} which emits the log's records in order.
+     */
+    public static Flowable<Record> readAsync(final ContainerURL containerURL, final String logName,
+                                             final int shardCount) {
+        Utility.assertInBounds("shardCount", shardCount, 1, Integer.MAX_VALUE);
+
+        return Flowable.using(new Callable<MergeState>() {
+            @Override
+            public MergeState call() {
+                return new MergeState(containerURL, logName, shardCount);
+            }
+        }, new Function<MergeState, Publisher<Record>>() {
+            @Override
+            public Publisher<Record> apply(final MergeState state) {
+                // Each poll emits the next record, or completes empty once every shard has been read.
+                return state.pollAsync().repeatUntil(new BooleanSupplier() {
+                    @Override
+                    public boolean getAsBoolean() {
+                        return state.finished;
+                    }
+                });
+            }
+        }, new Consumer<MergeState>() {
+            @Override
+            public void accept(MergeState state) {
+                state.close();
+            }
+        });
+    }
+
+    /**
+     * A record read back from a {@link ShardedAppendLog}.
+     */
+    public static final class Record {
+        private final long stamp;
+
+        private final int shard;
+
+        private final byte[] data;
+
+        Record(long stamp, int shard, byte[] data) {
+            this.stamp = stamp;
+            this.shard = shard;
+            this.data = data;
+        }
+
+        /**
+         * @return
+         *      The record's clock stamp.
+         */
+        public long stamp() {
+            return this.stamp;
+        }
+
+        /**
+         * @return
+         *      The shard the record was read from.
+         */
+        public int shard() {
+            return this.shard;
+        }
+
+        /**
+         * @return
+         *      The record's bytes.
+         */
+        public byte[] data() {
+            return this.data;
+        }
+    }
+
+    private static final class MergeState {
+        private final PriorityQueue<ShardCursor> heap;
+
+        private final ShardCursor[] cursors;
+
+        private boolean started;
+
+        volatile boolean finished;
+
+        MergeState(ContainerURL containerURL, String logName, int shardCount) {
+            this.cursors = new ShardCursor[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                this.cursors[i] = new ShardCursor(containerURL, logName, i);
+            }
+            this.heap = new PriorityQueue<>(shardCount, new Comparator<ShardCursor>() {
+                @Override
+                public int compare(ShardCursor a, ShardCursor b) {
+                    int byStamp = Long.compare(a.head.stamp, b.head.stamp);
+                    return byStamp != 0 ? byStamp : Integer.compare(a.shard, b.shard);
+                }
+            });
+        }
+
+        Maybe<Record> pollAsync() {
+            return Maybe.defer(new Callable<MaybeSource<Record>>() {
+                @Override
+                public MaybeSource<Record> call() {
+                    if (!started) {
+                        started = true;
+                        return startAsync().andThen(pollAsync());
+                    }
+
+                    final ShardCursor cursor = heap.poll();
+                    if (cursor == null) {
+                        finished = true;
+                        return Maybe.empty();
+                    }
+
+                    final Record record = cursor.head;
+                    return cursor.advanceAsync()
+                            .map(new Function<Boolean, Record>() {
+                                @Override
+                                public Record apply(Boolean advanced) {
+                                    if (advanced) {
+                                        heap.add(cursor);
+                                    }
+                                    return record;
+                                }
+                            })
+                            .toMaybe();
+                }
+            });
+        }
+
+        // Reads the first record of every shard, in parallel.
+        private Completable startAsync() {
+            return Flowable.fromArray(this.cursors)
+                    .flatMap(new Function<ShardCursor, Publisher<ShardCursor>>() {
+                        @Override
+                        public Publisher<ShardCursor> apply(final ShardCursor cursor) {
+                            return cursor.advanceAsync()
+                                    .filter(new Predicate<Boolean>() {
+                                        @Override
+                                        public boolean test(Boolean advanced) {
+                                            return advanced;
+                                        }
+                                    })
+                                    .map(new Function<Boolean, ShardCursor>() {
+                                        @Override
+                                        public ShardCursor apply(Boolean advanced) {
+                                            return cursor;
+                                        }
+                                    })
+                                    .toFlowable();
+                        }
+                    })
+                    .toList()
+                    .doOnSuccess(new Consumer<List<ShardCursor>>() {
+                        @Override
+                        public void accept(List<ShardCursor> ready) {
+                            heap.addAll(ready);
+                        }
+                    })
+                    .toCompletable();
+        }
+
+        void close() {
+            for (ShardCursor cursor : this.cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /*
+     * Reads one shard's frames segment by segment. AppendBlobWriter never splits a record across blocks, so every
+     * committed segment ends on a frame boundary and no record is longer than an AppendBlock.
+     */
+    private static final class ShardCursor {
+        private static final int MAX_RECORD_SIZE = Constants.MAX_APPEND_BLOCK_SIZE - FRAME_HEADER_SIZE;
+
+        private final ContainerURL containerURL;
+
+        private final String shardName;
+
+        final int shard;
+
+        private int segment;
+
+        private DataInputStream stream;
+
+        // The unread length of the open segment, and the offset of its next frame.
+        private long remaining;
+
+        private long position;
+
+        Record head;
+
+        ShardCursor(ContainerURL containerURL, String logName, int shard) {
+            this.containerURL = containerURL;
+            this.shardName = shardName(logName, shard);
+            this.shard = shard;
+        }
+
+        /*
+         * Moves head to the shard's next record, opening the following segments as needed. Emits false once the
+         * shard has no more segments. Frames are read from the segment's response stream, which blocks, so they are
+         * read on the I/O scheduler rather than on the thread that delivered the response or requested the record.
+         */
+        Single<Boolean> advanceAsync() {
+            return Single.defer(new Callable<SingleSource<Boolean>>() {
+                @Override
+                public SingleSource<Boolean> call() throws IOException {
+                    if (stream != null && readFrame()) {
+                        return Single.just(true);
+                    }
+
+                    return openSegmentAsync().flatMap(new Function<Boolean, SingleSource<Boolean>>() {
+                        @Override
+                        public SingleSource<Boolean> apply(Boolean opened) {
+                            if (!opened) {
+                                head = null;
+                                return Single.just(false);
+                            }
+                            return advanceAsync();
+                        }
+                    });
+                }
+            }).subscribeOn(Schedulers.io());
+        }
+
+        // Reads the next frame of the open segment into head, or closes the segment at its end and returns false.
+        private boolean readFrame() throws IOException {
+            int first = this.remaining == 0 ? -1 : this.stream.read();
+            if (first == -1) {
+                this.close();
+                this.segment++;
+                return false;
+            }
+
+            if (this.remaining < FRAME_HEADER_SIZE) {
+                throw this.invalidFrame();
+            }
+
+            long stamp = ((long) first << 56) | this.readStampLowBytes();
+            int length = this.stream.readInt();
+            // A corrupt length must not be allocated: it is bounded by both the segment and the largest record.
+            if (length < 0 || length > Math.min(this.remaining - FRAME_HEADER_SIZE, MAX_RECORD_SIZE)) {
+                throw this.invalidFrame();
+            }
+
+            byte[] data = new byte[length];
+            this.stream.readFully(data);
+            this.remaining -= FRAME_HEADER_SIZE + length;
+            this.position += FRAME_HEADER_SIZE + length;
+            this.head = new Record(stamp, this.shard, data);
+            return true;
+        }
+
+        private IOException invalidFrame() {
+            return new IOException(String.format(Utility.LOCALE_US, SR.INVALID_LOG_FRAME,
+                    AppendBlobWriter.segmentName(this.shardName, this.segment), this.position));
+        }
+
+        // Reads the remaining 7 bytes of a stamp.
+        private long readStampLowBytes() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 7; i++) {
+                value = (value << 8) | this.stream.readUnsignedByte();
+            }
+            return value;
+        }
+
+        // Emits false if the segment does not exist, i.e. the shard has been read to its end.
+        private Single<Boolean> openSegmentAsync() {
+            AppendBlobURL blobURL = this.containerURL.createAppendBlobURL(
+                    AppendBlobWriter.segmentName(this.shardName, this.segment));
+            return blobURL.getBlobAsync(null, new BlobRange(), null, false, null)
+                    .map(new Function<RestResponse<BlobsGetHeaders, InputStream>, Boolean>() {
+                        @Override
+                        public Boolean apply(RestResponse<BlobsGetHeaders, InputStream> response) {
+                            Long length = response.headers().contentLength();
+                            stream = new DataInputStream(response.body());
+                            remaining = length == null ? Long.MAX_VALUE : length;
+                            position = 0;
+                            return true;
+                        }
+                    })
+                    .onErrorResumeNext(new Function<Throwable, SingleSource<Boolean>>() {
+                        @Override
+                        public SingleSource<Boolean> apply(Throwable throwable) {
+                            if (throwable instanceof RestException && ((RestException) throwable).response() != null
+                                    && ((RestException) throwable).response().statusCode() == HTTP_NOT_FOUND) {
+                                return Single.just(false);
+                            }
+                            return Single.error(throwable);
+                        }
+                    });
+        }
+
+        void close() {
+            if (this.stream != null) {
+                try {
+                    this.stream.close();
+                }
+                catch (IOException e) {
+                    // The segment has been fully read; a failure to release it does not affect the merge.
+                }
+                this.stream = null;
+            }
+        }
+    }
+}
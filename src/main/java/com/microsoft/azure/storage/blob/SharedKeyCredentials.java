@@ -41,7 +41,21 @@ public final class SharedKeyCredentials implements ICredentials {
 
     private final byte[] key;
 
-    private final Mac hmacSha256;
+    /**
+     * A {@link Mac} is not thread-safe, so each signing thread gets its own, keyed once.
+     */
+    private final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return createHmacSha256(key);
+            }
+            catch (final InvalidKeyException e) {
+                // The key was validated when the credentials were created.
+                throw new IllegalStateException(e);
+            }
+        }
+    };
 
     /**
      * Initialized a new instance of SharedKeyCredentials contains an account's name and its primary or secondary key.
@@ -53,15 +67,20 @@ public final class SharedKeyCredentials implements ICredentials {
     public SharedKeyCredentials(String accountName, String key) throws UnsupportedEncodingException, InvalidKeyException {
         this.accountName = accountName;
         this.key = Base64.decode(key);
+        this.hmacSha256.set(createHmacSha256(this.key));
+    }
 
+    private static Mac createHmacSha256(byte[] key) throws InvalidKeyException {
+        final Mac hmacSha256;
         try {
-            this.hmacSha256 = Mac.getInstance("HmacSHA256");
+            hmacSha256 = Mac.getInstance("HmacSHA256");
         }
         catch (final NoSuchAlgorithmException e) {
             throw new IllegalArgumentException();
         }
 
-        this.hmacSha256.init(new SecretKeySpec(this.key, "HmacSHA256"));
+        hmacSha256.init(new SecretKeySpec(key, "HmacSHA256"));
+        return hmacSha256;
     }
 
     /**
@@ -100,6 +119,8 @@ public final class SharedKeyCredentials implements ICredentials {
                 request.headers().set(Constants.HeaderConstants.DATE, getGMTTime(new Date()));
             }
 
+            final RequestTimingContext timing = RequestTimingContext.current();
+            final long signingStartNanos = timing == null ? 0 : System.nanoTime();
             final AtomicReference<String> stringToSign = new AtomicReference<>();
             try {
                 stringToSign.set(this.factory.buildStringToSign(request));
@@ -108,6 +129,9 @@ public final class SharedKeyCredentials implements ICredentials {
             } catch (Exception e) {
                 return Single.error(e);
             }
+            if (timing != null) {
+                timing.addSigningTime(System.nanoTime() - signingStartNanos);
+            }
 
             Single<HttpResponse> response = requestPolicy.sendAsync(request);
             return response.doOnSuccess(new Consumer<HttpResponse>() {
@@ -286,7 +310,21 @@ public final class SharedKeyCredentials implements ICredentials {
         catch (final UnsupportedEncodingException e) {
             throw new IllegalArgumentException(e);
         }
-        return Base64.encode(this.hmacSha256.doFinal(utf8Bytes));
+        return this.computeHmac256(utf8Bytes);
+    }
+
+    /**
+     * Computes a signature for the specified UTF-8 bytes using the HMAC-SHA256 algorithm. Safe to call from many
+     * threads at once.
+     *
+     * @param utf8Bytes
+     *      The UTF-8 bytes of the string to sign.
+     *
+     * @return
+     *      A {@code String} that contains the HMAC-SHA256-encoded signature.
+     */
+    String computeHmac256(final byte[] utf8Bytes) {
+        return Base64.encode(this.hmacSha256.get().doFinal(utf8Bytes));
     }
 }
 
@@ -25,7 +25,10 @@ import io.reactivex.Single;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static com.microsoft.azure.storage.blob.Utility.getGMTTime;
@@ -36,6 +39,11 @@ public abstract class StorageURL {
 
     protected final StorageClientImpl storageClient;
 
+    /**
+     * The pre-parsed form of {@link #url}, from which URLs for snapshots and child resources are derived.
+     */
+    final StructuredURL structuredURL;
+
     protected StorageURL(String url, HttpPipeline pipeline) {
         if (url == null) {
             throw new IllegalArgumentException("url cannot be null.");
@@ -44,19 +52,94 @@ public abstract class StorageURL {
             throw new IllegalArgumentException("pipeline cannot be null.");
         }
 
+        this.structuredURL = StructuredURL.parse(url);
         this.url = url;
         this.storageClient = new StorageClientImpl(pipeline).withVersion("2016-05-31");
     }
 
-    // TODO: ADD RETRY Factory
+    /**
+     * Creates a URL derived from another one. The client holds no per-URL state, so it is shared rather than
+     * rebuilt for the same pipeline.
+     */
+    StorageURL(StructuredURL url, StorageClientImpl storageClient) {
+        this.structuredURL = url;
+        this.url = url.toString();
+        this.storageClient = storageClient;
+    }
+
     public static HttpPipeline CreatePipeline(ICredentials credentials, PipelineOptions pipelineOptions) {
+        List<RequestPolicyFactory> factories = createFactories(credentials, pipelineOptions);
+        return HttpPipeline.build(
+                pipelineOptions.client, factories.toArray(new RequestPolicyFactory[factories.size()]));
+    }
+
+    /**
+     * Lists the policy factories of {@link #CreatePipeline}, outermost first.
+     */
+    static List<RequestPolicyFactory> createFactories(ICredentials credentials, PipelineOptions pipelineOptions) {
         LoggingFactory loggingFactory = new LoggingFactory(pipelineOptions.loggingOptions);
         RequestIDFactory requestIDFactory = new RequestIDFactory();
-        //RequestRetryFactory requestRetryFactory = new RequestRetryFactory();
+        RequestRetryFactory requestRetryFactory = new RequestRetryFactory(pipelineOptions.requestRetryOptions,
+                pipelineOptions.retryBudget);
         TelemetryFactory telemetryFactory = new TelemetryFactory(pipelineOptions.telemetryOptions);
         AddDatePolicy addDate = new AddDatePolicy();
-        return HttpPipeline.build(
-                pipelineOptions.client, requestIDFactory, telemetryFactory, addDate, credentials, loggingFactory);
+        List<RequestPolicyFactory> factories = new ArrayList<>();
+        TracingFactory tracingFactory = null;
+        if (pipelineOptions.requestTracer != null && pipelineOptions.requestTracer != RequestTracer.NO_OP) {
+            // Ahead of the request ID policy, which keeps the trace ID as the client request ID.
+            tracingFactory = new TracingFactory(pipelineOptions.requestTracer);
+            factories.add(tracingFactory);
+        }
+        // The client request ID and telemetry are set once per operation; everything after the retry policy runs
+        // once per try.
+        factories.addAll(Arrays.<RequestPolicyFactory>asList(requestIDFactory, telemetryFactory));
+        if (pipelineOptions.propertiesCache != null) {
+            // Outside the retry policy, so that a write is invalidated once before its first try and once after its
+            // last.
+            factories.add(pipelineOptions.propertiesCache);
+        }
+        if (pipelineOptions.existenceFilter != null) {
+            factories.add(pipelineOptions.existenceFilter);
+        }
+        factories.add(requestRetryFactory);
+        if (pipelineOptions.requestTiming != null) {
+            // Ahead of the other per-try policies, so that their work falls within the timed try.
+            factories.add(pipelineOptions.requestTiming);
+        }
+        factories.add(addDate);
+        if (pipelineOptions.flightRecorder != null) {
+            // Ahead of the credentials, so that signing is part of each try's measured preparation time.
+            factories.add(pipelineOptions.flightRecorder);
+        }
+        if (pipelineOptions.circuitBreakerOptions != null) {
+            factories.add(new CircuitBreakerFactory(pipelineOptions.circuitBreakerOptions));
+        }
+        factories.add(credentials);
+        if (pipelineOptions.rateLimit != null) {
+            // Ahead of the concurrency limit, so that a try waiting for tokens does not hold a slot.
+            factories.add(pipelineOptions.rateLimit);
+        }
+        if (pipelineOptions.concurrencyLimit != null) {
+            // After signing, so that queued tries are already signed and start as soon as the limit allows.
+            factories.add(pipelineOptions.concurrencyLimit);
+        }
+        // Outside the try timeout, so that a try which timed out is logged as failing with a TimeoutException.
+        factories.add(loggingFactory);
+        // After the limits, so that a try's time queued for them does not count against its timeout, and so that
+        // they, the circuit breaker and the logging policy see a try which timed out fail rather than only being
+        // cancelled.
+        factories.add(requestRetryFactory.tryTimeoutFactory());
+        if (pipelineOptions.requestMetrics != null) {
+            // Closest to the client, so that each try is measured on the wire and signing is excluded.
+            factories.add(pipelineOptions.requestMetrics);
+        }
+        if (tracingFactory != null) {
+            factories.add(tracingFactory.tryFactory());
+        }
+        if (pipelineOptions.requestTiming != null) {
+            factories.add(pipelineOptions.requestTiming.wireFactory());
+        }
+        return factories;
     }
 
     @Override
@@ -65,18 +148,31 @@ public abstract class StorageURL {
     }
 
     /**
-     * appends a string to the end of a URL's path (prefixing the string with a '/' if required)
+     * appends a string to the end of a URL's path (prefixing the string with a '/' if required). The string is
+     * percent-encoded, except for '/', and any query string on the URL is kept after the new path.
      * @param url
+     *      A {@code String} representing the URL to append to.
      * @param name
+     *      A {@code String} representing the unencoded path segment(s) to append.
      * @return
+     *      A {@code String} representing the new URL.
      */
     protected String appendToURLPath(String url, String name) {
-        if (url.length() == 0 || url.charAt(url.length() - 1) != '/') {
-            url += '/';
+        int pathEnd = url.indexOf('?');
+        if (pathEnd == -1) {
+            pathEnd = url.length();
         }
 
-        return url + name;
+        StringBuilder sb = new StringBuilder(url.length() + name.length() + 16);
+        sb.append(url, 0, pathEnd);
+        if (pathEnd == 0 || url.charAt(pathEnd - 1) != '/') {
+            sb.append('/');
+        }
+
+        Utility.appendURLEncoded(sb, name, Utility.URL_PATH_SAFE);
+        return sb.append(url, pathEnd, url.length()).toString();
     }
+
     static class AddDatePolicy implements RequestPolicyFactory {
 
         @Override
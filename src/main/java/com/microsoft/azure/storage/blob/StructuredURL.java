@@ -0,0 +1,285 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+/**
+ * RESERVED FOR INTERNAL USE
+ * An immutable, pre-parsed storage URL held by every {@link StorageURL}. Each part is kept exactly as it appears in
+ * the URL, still percent-encoded, so that deriving a URL for a snapshot or a child resource swaps one part and
+ * concatenates the rest without parsing, decoding or re-encoding anything.
+ */
+final class StructuredURL {
+
+    private static final String[] SAS_PARAMETERS = { "sv", "ss", "srt", "spr", "st", "se", "sip", "si", "sr", "sp",
+            "sig" };
+
+    // "scheme://host", plus "/account" for path-style (IP address or localhost) endpoints.
+    private final String accountURL;
+
+    private final String containerName;
+
+    private final String blobName;
+
+    private final String snapshot;
+
+    private final String sas;
+
+    private final String extras;
+
+    private final String url;
+
+    private StructuredURL(String accountURL, String containerName, String blobName, String snapshot, String sas,
+                          String extras, String url) {
+        this.accountURL = accountURL;
+        this.containerName = containerName;
+        this.blobName = blobName;
+        this.snapshot = snapshot;
+        this.sas = sas;
+        this.extras = extras;
+        this.url = url == null ? this.build() : url;
+    }
+
+    /**
+     * Splits a URL into its parts. Parsing is lenient: anything which is not recognized as a container, blob,
+     * snapshot or SAS part is kept as is, and {@link #toString()} returns the original string.
+     */
+    static StructuredURL parse(String url) {
+        int end = url.indexOf('#');
+        if (end == -1) {
+            end = url.length();
+        }
+
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1 || queryStart > end) {
+            queryStart = end;
+        }
+
+        int schemeEnd = url.indexOf("://");
+        int hostStart = schemeEnd == -1 || schemeEnd > queryStart ? 0 : schemeEnd + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        if (pathStart == -1 || pathStart > queryStart) {
+            pathStart = queryStart;
+        }
+
+        if (pathStart < queryStart && isPathStyleHost(url, hostStart, pathStart)) {
+            // The first path segment is the account name.
+            int accountEnd = url.indexOf('/', pathStart + 1);
+            pathStart = accountEnd == -1 || accountEnd > queryStart ? queryStart : accountEnd;
+        }
+
+        String containerName = null;
+        String blobName = null;
+        if (pathStart + 1 < queryStart) {
+            int containerEnd = url.indexOf('/', pathStart + 1);
+            if (containerEnd == -1 || containerEnd >= queryStart) {
+                containerName = url.substring(pathStart + 1, queryStart);
+            }
+            else {
+                containerName = url.substring(pathStart + 1, containerEnd);
+                blobName = containerEnd + 1 < queryStart ? url.substring(containerEnd + 1, queryStart) : null;
+            }
+        }
+
+        String snapshot = null;
+        StringBuilder sas = null;
+        StringBuilder extras = null;
+        int pairStart = queryStart + 1;
+        while (pairStart < end) {
+            int pairEnd = url.indexOf('&', pairStart);
+            if (pairEnd == -1 || pairEnd > end) {
+                pairEnd = end;
+            }
+
+            if (pairEnd > pairStart) {
+                int keyEnd = url.indexOf('=', pairStart);
+                if (keyEnd == -1 || keyEnd > pairEnd) {
+                    keyEnd = pairEnd;
+                }
+
+                if (url.regionMatches(true, pairStart, "snapshot", 0, keyEnd - pairStart)
+                        && keyEnd - pairStart == "snapshot".length()) {
+                    snapshot = keyEnd < pairEnd ? url.substring(keyEnd + 1, pairEnd) : Constants.EMPTY_STRING;
+                }
+                else if (isSASParameter(url, pairStart, keyEnd)) {
+                    sas = appendPair(sas, url, pairStart, pairEnd);
+                }
+                else {
+                    extras = appendPair(extras, url, pairStart, pairEnd);
+                }
+            }
+
+            pairStart = pairEnd + 1;
+        }
+
+        return new StructuredURL(url.substring(0, pathStart), containerName, blobName, snapshot,
+                sas == null ? null : sas.toString(), extras == null ? null : extras.toString(), url);
+    }
+
+    /**
+     * @return
+     *      A URL for the same resource at the given snapshot, or for the base resource if {@code snapshot} is
+     *      {@code null}. The snapshot is percent-encoded if needed.
+     */
+    StructuredURL withSnapshot(String snapshot) {
+        String encodedSnapshot = null;
+        if (snapshot != null) {
+            StringBuilder sb = new StringBuilder(snapshot.length());
+            Utility.appendURLEncoded(sb, snapshot, Utility.URL_QUERY_VALUE_SAFE);
+            encodedSnapshot = sb.toString();
+        }
+
+        return new StructuredURL(this.accountURL, this.containerName, this.blobName, encodedSnapshot, this.sas,
+                this.extras, null);
+    }
+
+    /**
+     * @return
+     *      A URL for the resource named {@code name} below this one, e.g. a container below an account or a blob
+     *      below a container. The name is percent-encoded, except for '/'. The SAS and other query parameters are
+     *      kept, and the snapshot is dropped.
+     */
+    StructuredURL withChild(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 16);
+        Utility.appendURLEncoded(sb, name, Utility.URL_PATH_SAFE);
+        String encodedName = sb.toString();
+
+        String containerName = this.containerName;
+        String blobName = this.blobName;
+        if (containerName == null) {
+            int slash = encodedName.indexOf('/');
+            containerName = slash == -1 ? encodedName : encodedName.substring(0, slash);
+            blobName = slash == -1 || slash + 1 == encodedName.length() ? null : encodedName.substring(slash + 1);
+        }
+        else if (blobName == null) {
+            blobName = encodedName;
+        }
+        else {
+            blobName = blobName.endsWith("/") ? blobName + encodedName : blobName + '/' + encodedName;
+        }
+
+        return new StructuredURL(this.accountURL, containerName, blobName, null, this.sas, this.extras, null);
+    }
+
+    /**
+     * @return
+     *      The scheme and host, plus the account name for path-style endpoints, e.g.
+     *      "https://myaccount.blob.core.windows.net".
+     */
+    String accountURL() {
+        return this.accountURL;
+    }
+
+    /**
+     * @return
+     *      The percent-encoded container name, or {@code null}.
+     */
+    String containerName() {
+        return this.containerName;
+    }
+
+    /**
+     * @return
+     *      The percent-encoded blob name, or {@code null}.
+     */
+    String blobName() {
+        return this.blobName;
+    }
+
+    /**
+     * @return
+     *      The percent-encoded snapshot, or {@code null}.
+     */
+    String snapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * @return
+     *      The percent-encoded SAS query parameters, without a leading '?', or {@code null}.
+     */
+    String sas() {
+        return this.sas;
+    }
+
+    @Override
+    public String toString() {
+        return this.url;
+    }
+
+    private String build() {
+        StringBuilder sb = new StringBuilder(this.accountURL.length() + 128);
+        sb.append(this.accountURL);
+        if (this.containerName != null) {
+            sb.append('/').append(this.containerName);
+            if (this.blobName != null) {
+                sb.append('/').append(this.blobName);
+            }
+        }
+
+        char separator = '?';
+        if (this.extras != null) {
+            sb.append(separator).append(this.extras);
+            separator = '&';
+        }
+        if (this.snapshot != null) {
+            sb.append(separator).append("snapshot=").append(this.snapshot);
+            separator = '&';
+        }
+        if (this.sas != null) {
+            sb.append(separator).append(this.sas);
+        }
+
+        return sb.toString();
+    }
+
+    private static StringBuilder appendPair(StringBuilder sb, String url, int start, int end) {
+        if (sb == null) {
+            return new StringBuilder(end - start + 64).append(url, start, end);
+        }
+        return sb.append('&').append(url, start, end);
+    }
+
+    private static boolean isSASParameter(String url, int start, int end) {
+        for (String parameter : SAS_PARAMETERS) {
+            if (parameter.length() == end - start && url.regionMatches(true, start, parameter, 0, end - start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Matches the storage emulator and other endpoints addressed by IPv4 address or localhost.
+    private static boolean isPathStyleHost(String url, int start, int end) {
+        int portStart = url.indexOf(':', start);
+        if (portStart != -1 && portStart < end) {
+            end = portStart;
+        }
+
+        if (url.regionMatches(true, start, "localhost", 0, end - start) && end - start == "localhost".length()) {
+            return true;
+        }
+
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleObserver;
+import io.reactivex.SingleOnSubscribe;
+import io.reactivex.SingleSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Cancellable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.plugins.RxJavaPlugins;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Factory for tracing requests through a {@link RequestTracer}. Each operation gets a span, named by the
+ * {@code x-ms-logging-context} header which the generated service interfaces set, and parented to the trace context
+ * active on the thread which started the operation. Each try gets a child span. The operation's trace ID is sent as
+ * the {@code x-ms-client-request-id} header, so that service-side logs can be joined with the trace.
+ *
+ * Spans start when the operation or try is subscribed to. A span whose work is disposed before it completes, e.g. a
+ * try cut off by the try timeout or an operation cancelled by its caller, ends with a {@link CancellationException}.
+ *
+ * The response is delivered downstream with the caller's context attached, even though it arrives on an I/O thread.
+ * Call {@link #propagateContextAcrossSchedulers(RequestTracer)} once to also carry the context across RxJava
+ * scheduler hops, such as {@code observeOn} and {@code subscribeOn}.
+ *
+ * {@link StorageURL#CreatePipeline} adds the operation policy outermost, and the try policy closest to the HTTP
+ * client, when {@link PipelineOptions#requestTracer} is set.
+ */
+public final class TracingFactory implements RequestPolicyFactory {
+
+    private static final String LOGGING_CONTEXT_HEADER = "x-ms-logging-context";
+
+    private static final String UNKNOWN_OPERATION = "unknown";
+
+    // The operation span of the try being assembled on this thread; policies assemble tries synchronously.
+    private static final ThreadLocal<RequestTracer.Span> CURRENT_OPERATION = new ThreadLocal<>();
+
+    private final RequestTracer tracer;
+
+    private final RequestPolicyFactory tryFactory = new RequestPolicyFactory() {
+        @Override
+        public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+            return new TryTracingPolicy(next);
+        }
+    };
+
+    /**
+     * Creates a {@link TracingFactory}.
+     * @param tracer
+     *      The {@link RequestTracer} which starts the spans.
+     */
+    public TracingFactory(RequestTracer tracer) {
+        if (tracer == null) {
+            throw new IllegalArgumentException("tracer cannot be null.");
+        }
+        this.tracer = tracer;
+    }
+
+    /**
+     * Installs an RxJava schedule handler which runs every scheduled task with the trace context that was active
+     * when it was scheduled. Any schedule handler which was already installed still runs.
+     * @param tracer
+     *      The {@link RequestTracer} which captures and attaches contexts.
+     */
+    public static void propagateContextAcrossSchedulers(final RequestTracer tracer) {
+        if (tracer == null) {
+            throw new IllegalArgumentException("tracer cannot be null.");
+        }
+
+        final Function<? super Runnable, ? extends Runnable> existing = RxJavaPlugins.getScheduleHandler();
+        RxJavaPlugins.setScheduleHandler(new Function<Runnable, Runnable>() {
+            @Override
+            public Runnable apply(Runnable runnable) throws Exception {
+                final Runnable task = existing == null ? runnable : existing.apply(runnable);
+                final Object context = tracer.captureContext();
+                if (context == null) {
+                    return task;
+                }
+
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        Object previous = tracer.attachContext(context);
+                        try {
+                            task.run();
+                        }
+                        finally {
+                            tracer.detachContext(previous);
+                        }
+                    }
+                };
+            }
+        });
+    }
+
+    private final class TracingPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        TracingPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Starts the operation span when subscribed to and sends its trace ID as the client request ID
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(final HttpRequest request) {
+            return Single.create(new SingleOnSubscribe<HttpResponse>() {
+                @Override
+                public void subscribe(final SingleEmitter<HttpResponse> emitter) {
+                    final Object callerContext = tracer.captureContext();
+                    String operation = request.headers().value(LOGGING_CONTEXT_HEADER);
+                    final RequestTracer.Span span = tracer.startSpan(
+                            operation == null ? UNKNOWN_OPERATION : operation, callerContext);
+                    span.setTag("http.method", request.httpMethod());
+                    span.setTag("http.path", Utility.getURLPath(request.url()));
+
+                    String traceId = span.traceId();
+                    if (traceId != null) {
+                        request.headers().set(Constants.HeaderConstants.CLIENT_REQUEST_ID_HEADER, traceId);
+                    }
+
+                    final Single<HttpResponse> response;
+                    try {
+                        response = sendWithOperationSpan(span, requestPolicy, request);
+                    }
+                    catch (RuntimeException e) {
+                        span.end(e);
+                        throw e;
+                    }
+
+                    // Ends the span exactly once: on the response, on the failure, or when it is disposed first.
+                    final AtomicBoolean ended = new AtomicBoolean();
+                    response.subscribe(new SingleObserver<HttpResponse>() {
+                        @Override
+                        public void onSubscribe(final Disposable disposable) {
+                            emitter.setCancellable(new Cancellable() {
+                                @Override
+                                public void cancel() {
+                                    disposable.dispose();
+                                    if (ended.compareAndSet(false, true)) {
+                                        span.end(new CancellationException());
+                                    }
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onSuccess(HttpResponse response) {
+                            if (ended.compareAndSet(false, true)) {
+                                span.setTag("http.status_code", Integer.toString(response.statusCode()));
+                                span.end(null);
+                            }
+                            Object previous = tracer.attachContext(callerContext);
+                            try {
+                                emitter.onSuccess(response);
+                            }
+                            finally {
+                                tracer.detachContext(previous);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            if (ended.compareAndSet(false, true)) {
+                                span.end(throwable);
+                            }
+                            Object previous = tracer.attachContext(callerContext);
+                            try {
+                                emitter.onError(throwable);
+                            }
+                            finally {
+                                tracer.detachContext(previous);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private final class TryTracingPolicy implements RequestPolicy {
+
+        private final RequestPolicy requestPolicy;
+
+        // Policies are created per operation, so this numbers the operation's tries.
+        private int tryCount;
+
+        TryTracingPolicy(RequestPolicy requestPolicy) {
+            this.requestPolicy = requestPolicy;
+        }
+
+        /**
+         * Starts a child span of the operation span when the try is subscribed to
+         * @param request
+         *      the request to send
+         * @return
+         *      A {@link Single} representing the HTTP response that will arrive asynchronously.
+         */
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            this.tryCount++;
+            final int tryNumber = this.tryCount;
+            final RequestTracer.Span operationSpan = CURRENT_OPERATION.get();
+            if (operationSpan == null) {
+                return this.requestPolicy.sendAsync(request);
+            }
+
+            final Single<HttpResponse> response = this.requestPolicy.sendAsync(request);
+            return Single.defer(new Callable<SingleSource<HttpResponse>>() {
+                @Override
+                public SingleSource<HttpResponse> call() {
+                    final RequestTracer.Span span = tracer.startSpan("try " + tryNumber, operationSpan.context());
+                    span.setTag("try", Integer.toString(tryNumber));
+                    final AtomicBoolean ended = new AtomicBoolean();
+                    return response
+                            .doOnSuccess(new Consumer<HttpResponse>() {
+                                @Override
+                                public void accept(HttpResponse response) {
+                                    if (!ended.compareAndSet(false, true)) {
+                                        return;
+                                    }
+                                    span.setTag("http.status_code", Integer.toString(response.statusCode()));
+                                    String requestId =
+                                            response.headerValue(Constants.HeaderConstants.REQUEST_ID_HEADER);
+                                    if (requestId != null) {
+                                        span.setTag(Constants.HeaderConstants.REQUEST_ID_HEADER, requestId);
+                                    }
+                                    span.end(null);
+                                }
+                            })
+                            .doOnError(new Consumer<Throwable>() {
+                                @Override
+                                public void accept(Throwable throwable) {
+                                    if (ended.compareAndSet(false, true)) {
+                                        span.end(throwable);
+                                    }
+                                }
+                            })
+                            .doOnDispose(new Action() {
+                                @Override
+                                public void run() {
+                                    // E.g. the try timeout gave up on this try.
+                                    if (ended.compareAndSet(false, true)) {
+                                        span.end(new CancellationException());
+                                    }
+                                }
+                            });
+                }
+            });
+        }
+    }
+
+    @Override
+    public RequestPolicy create(RequestPolicy next, RequestPolicyOptions options) {
+        return new TracingPolicy(next);
+    }
+
+    /**
+     * @return
+     *      The factory for the per-try policy which belongs closest to the HTTP client, paired with this one.
+     */
+    RequestPolicyFactory tryFactory() {
+        return this.tryFactory;
+    }
+
+    /**
+     * @return
+     *      The operation span of the try being assembled on the calling thread, or {@code null}.
+     */
+    static RequestTracer.Span currentOperationSpan() {
+        return CURRENT_OPERATION.get();
+    }
+
+    /**
+     * Assembles a try with an operation span published for the policies it reaches. A policy which sends tries
+     * later, on another thread, e.g. to retry, uses this so that the try spans keep their parent.
+     */
+    static Single<HttpResponse> sendWithOperationSpan(RequestTracer.Span span, RequestPolicy policy,
+                                                      HttpRequest request) {
+        RequestTracer.Span previous = CURRENT_OPERATION.get();
+        CURRENT_OPERATION.set(span);
+        try {
+            return policy.sendAsync(request);
+        }
+        finally {
+            if (previous == null) {
+                CURRENT_OPERATION.remove();
+            }
+            else {
+                CURRENT_OPERATION.set(previous);
+            }
+        }
+    }
+}
@@ -16,59 +16,123 @@ package com.microsoft.azure.storage.blob;
 
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.text.ParseException;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public final class URLParser {
 
     // URLParser parses a URL initializing BlobURLParts' fields including any SAS-related & snapshot query parameters. Any other
     // query parameters remain in the UnparsedParams field. This method overwrites all fields in the BlobURLParts object.
+    //
+    // The URL is scanned once by index; substrings are only decoded when they contain percent-encoding. The container
+    // and blob names are decoded, and the host keeps its port, if any, so that BlobURLParts.toURL reproduces the URL.
     public static BlobURLParts ParseURL(String urlString) throws MalformedURLException, UnsupportedEncodingException {
+        if (urlString == null) {
+            throw new MalformedURLException(String.format(Utility.LOCALE_US, SR.ARGUMENT_NULL_OR_EMPTY, "urlString"));
+        }
 
-        URL url = new URL(urlString);
-
-        String scheme = url.getProtocol();
-        String host = url.getHost();
+        int schemeEnd = urlString.indexOf("://");
+        if (schemeEnd <= 0) {
+            throw new MalformedURLException(urlString);
+        }
+        String scheme = urlString.substring(0, schemeEnd);
 
-        String containerName = null;
-        String blobName = null;
+        int end = urlString.indexOf('#');
+        if (end == -1) {
+            end = urlString.length();
+        }
 
-        // find the container & blob names (if any)
-        String path = url.getPath();
-        if (!Utility.isNullOrEmpty(path)) {
-            // if the path starts with a slash remove it
-            if (path.charAt(0) == '/') {
-                path = path.substring(1);
-            }
+        int queryStart = urlString.indexOf('?');
+        if (queryStart == -1 || queryStart > end) {
+            queryStart = end;
+        }
 
+        int hostStart = schemeEnd + 3;
+        int pathStart = urlString.indexOf('/', hostStart);
+        if (pathStart == -1 || pathStart > queryStart) {
+            pathStart = queryStart;
+        }
+        String host = urlString.substring(hostStart, pathStart);
 
-            int containerEndIndex = path.indexOf('/');
-            if (containerEndIndex == -1) {
-                // path contains only a container name and no blob name
-                containerName = path;
-            }
-            else
-            {
-                // path contains the container name up until the slash and blob name is everything after the slash
-                containerName = path.substring(0, containerEndIndex);
-                blobName = path.substring(containerEndIndex + 1);
+        // find the container & blob names (if any)
+        String containerName = null;
+        String blobName = null;
+        try {
+            int containerStart = pathStart < queryStart ? pathStart + 1 : pathStart;
+            if (containerStart < queryStart) {
+                int containerEnd = urlString.indexOf('/', containerStart);
+                if (containerEnd == -1 || containerEnd > queryStart) {
+                    // path contains only a container name and no blob name
+                    containerName = Utility.urlDecode(urlString, containerStart, queryStart);
+                }
+                else {
+                    // path contains the container name up until the slash and blob name is everything after the slash
+                    containerName = Utility.urlDecode(urlString, containerStart, containerEnd);
+                    blobName = Utility.urlDecode(urlString, containerEnd + 1, queryStart);
+                }
             }
         }
+        catch (IllegalArgumentException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
 
-        Map<String, String[]> queryParamsMap = Utility.parseQueryString(urlString, true);
+        Map<String, String[]> queryParamsMap = parseQuery(urlString, queryStart + 1, end);
 
         Date snapshot = null;
-        String[] snapshotArray = queryParamsMap.get("snapshot");
+        String[] snapshotArray = queryParamsMap.remove("snapshot");
         if (snapshotArray != null) {
             snapshot = Utility.parseDate(snapshotArray[0]);
-            queryParamsMap.remove("snapshot");
         }
 
         SASQueryParameters sasQueryParameters = new SASQueryParameters(queryParamsMap, true);
 
         return new BlobURLParts(scheme, host, containerName, blobName, snapshot, sasQueryParameters, queryParamsMap);
     }
+
+    /*
+     * Parses the query between start and end into a map of lower-cased keys to decoded values, keeping the order in
+     * which keys first appear. Repeated keys collect all of their values.
+     */
+    private static Map<String, String[]> parseQuery(String urlString, int start, int end)
+            throws MalformedURLException {
+        Map<String, String[]> queryParamsMap = new LinkedHashMap<String, String[]>();
+        try {
+            while (start < end) {
+                int pairEnd = urlString.indexOf('&', start);
+                if (pairEnd == -1 || pairEnd > end) {
+                    pairEnd = end;
+                }
+
+                if (pairEnd > start) {
+                    int equals = urlString.indexOf('=', start);
+                    if (equals == -1 || equals > pairEnd) {
+                        equals = pairEnd;
+                    }
+
+                    String key = Utility.urlDecode(urlString, start, equals).toLowerCase(Utility.LOCALE_US);
+                    String value = equals < pairEnd
+                            ? Utility.urlDecode(urlString, equals + 1, pairEnd) : Constants.EMPTY_STRING;
+
+                    String[] values = queryParamsMap.get(key);
+                    if (values == null) {
+                        queryParamsMap.put(key, new String[] { value });
+                    }
+                    else {
+                        String[] newValues = new String[values.length + 1];
+                        System.arraycopy(values, 0, newValues, 0, values.length);
+                        newValues[values.length] = value;
+                        queryParamsMap.put(key, newValues);
+                    }
+                }
+
+                start = pairEnd + 1;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+
+        return queryParamsMap;
+    }
 }
@@ -14,10 +14,13 @@
  */
 package com.microsoft.azure.storage.blob;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -225,77 +228,101 @@ public final class Utility {
      */
     public static final TimeZone UTC_ZONE = TimeZone.getTimeZone("UTC");
 
-    /**
-     * Stores a reference to the date/time pattern with the greatest precision Java.util.Date is capable of expressing.
-     */
-    private static final String MAX_PRECISION_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
-
     /**
      * Stores a reference to the ISO8601 date/time pattern.
      */
     private static final String ISO8601_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
-    /**
-     * Stores a reference to the ISO8601 date/time pattern.
-     */
-    private static final String ISO8601_PATTERN_NO_SECONDS = "yyyy-MM-dd'T'HH:mm'Z'";
-
     /**
      * Stores a reference to the Java version of ISO8601_LONG date/time pattern.  The full version cannot be used
      * because Java Dates have millisecond precision.
      */
     private static final String JAVA_ISO8601_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
 
-    /**
-     * The length of a datestring that matches the MAX_PRECISION_PATTERN.
-     */
-    private static final int MAX_PRECISION_DATESTRING_LENGTH = MAX_PRECISION_PATTERN.replaceAll("'", "").length();
-
     /**
      * Given a String representing a date in a form of the ISO8601 pattern, generates a Date representing it
      * with up to millisecond precision.
      *
+     * The accepted forms are "yyyy-MM-dd'T'HH:mm'Z'", "yyyy-MM-dd'T'HH:mm:ss'Z'" and "yyyy-MM-dd'T'HH:mm:ss.S'Z'"
+     * with one to seven fraction digits, of which digits beyond milliseconds are ignored. The fields are read by
+     * position rather than with a {@code DateFormat}, since SAS and snapshot times are parsed for every URL.
+     *
      * @param dateString
      *              the {@code String} to be interpreted as a <code>Date</code>
      *
      * @return the corresponding <code>Date</code> object
      */
     public static Date parseDate(String dateString) {
-        String pattern = MAX_PRECISION_PATTERN;
-        switch(dateString.length()) {
-            case 28: // "yyyy-MM-dd'T'HH:mm:ss.SSSSSSS'Z'"-> [2012-01-04T23:21:59.1234567Z] length = 28
-            case 27: // "yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'"-> [2012-01-04T23:21:59.123456Z] length = 27
-            case 26: // "yyyy-MM-dd'T'HH:mm:ss.SSSSS'Z'"-> [2012-01-04T23:21:59.12345Z] length = 26
-            case 25: // "yyyy-MM-dd'T'HH:mm:ss.SSSS'Z'"-> [2012-01-04T23:21:59.1234Z] length = 25
-            case 24: // "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"-> [2012-01-04T23:21:59.123Z] length = 24
-                dateString = dateString.substring(0, MAX_PRECISION_DATESTRING_LENGTH);
-                break;
-            case 23: // "yyyy-MM-dd'T'HH:mm:ss.SS'Z'"-> [2012-01-04T23:21:59.12Z] length = 23
-                // SS is assumed to be milliseconds, so a trailing 0 is necessary
-                dateString = dateString.replace("Z", "0");
-                break;
-            case 22: // "yyyy-MM-dd'T'HH:mm:ss.S'Z'"-> [2012-01-04T23:21:59.1Z] length = 22
-                // S is assumed to be milliseconds, so trailing 0's are necessary
-                dateString = dateString.replace("Z", "00");
-                break;
-            case 20: // "yyyy-MM-dd'T'HH:mm:ss'Z'"-> [2012-01-04T23:21:59Z] length = 20
-                pattern = Utility.ISO8601_PATTERN;
-                break;
-            case 17: // "yyyy-MM-dd'T'HH:mm'Z'"-> [2012-01-04T23:21Z] length = 17
-                pattern = Utility.ISO8601_PATTERN_NO_SECONDS;
-                break;
-            default:
+        final int length = dateString.length();
+        // [2012-01-04T23:21Z] length = 17, [2012-01-04T23:21:59Z] length = 20,
+        // [2012-01-04T23:21:59.1Z] length = 22 through [2012-01-04T23:21:59.1234567Z] length = 28
+        if ((length != 17 && length != 20 && (length < 22 || length > 28))
+                || dateString.charAt(4) != '-' || dateString.charAt(7) != '-' || dateString.charAt(10) != 'T'
+                || dateString.charAt(13) != ':' || dateString.charAt(length - 1) != 'Z') {
+            throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, dateString));
+        }
+
+        final int year = parseDigits(dateString, 0, 4);
+        final int month = parseDigits(dateString, 5, 7);
+        final int day = parseDigits(dateString, 8, 10);
+        final int hour = parseDigits(dateString, 11, 13);
+        final int minute = parseDigits(dateString, 14, 16);
+        int second = 0;
+        int millisecond = 0;
+        if (length > 17) {
+            if (dateString.charAt(16) != ':') {
                 throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, dateString));
+            }
+            second = parseDigits(dateString, 17, 19);
+
+            if (length > 20) {
+                if (dateString.charAt(19) != '.') {
+                    throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, dateString));
+                }
+
+                // Validate every fraction digit, but keep only milliseconds.
+                final int fractionEnd = length - 1;
+                parseDigits(dateString, 20, fractionEnd);
+                millisecond = parseDigits(dateString, 20, Math.min(fractionEnd, 23));
+                for (int i = fractionEnd; i < 23; i++) {
+                    millisecond *= 10;
+                }
+            }
         }
 
-        final DateFormat format = new SimpleDateFormat(pattern, Utility.LOCALE_US);
-        format.setTimeZone(UTC_ZONE);
-        try {
-            return format.parse(dateString);
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, dateString));
         }
-        catch (final ParseException e) {
-            throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, dateString), e);
+
+        final long days = daysFromCivil(year, month, day);
+        return new Date((((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millisecond);
+    }
+
+    /**
+     * Parses the decimal digits between start and end.
+     */
+    private static int parseDigits(final String value, final int start, final int end) {
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException(String.format(SR.INVALID_DATE_STRING, value));
+            }
+            result = result * 10 + (c - '0');
         }
+        return result;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, final int month, final int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
     }
 
     /**
@@ -313,10 +340,378 @@ public final class Utility {
             return Constants.EMPTY_STRING;
         }
 
-        final DateFormat iso8601Format = new SimpleDateFormat(ISO8601_PATTERN, LOCALE_US);
-        iso8601Format.setTimeZone(UTC_ZONE);
+        return ISO8601_FORMAT.get().format(value);
+    }
+
+    /**
+     * Formats dates with the ISO8601 pattern. {@code DateFormat} is not thread-safe, so each thread gets its own.
+     */
+    private static final ThreadLocal<Iso8601Format> ISO8601_FORMAT = new ThreadLocal<Iso8601Format>() {
+        @Override
+        protected Iso8601Format initialValue() {
+            return new Iso8601Format();
+        }
+    };
+
+    /**
+     * An ISO8601 formatter which remembers its last result. SAS tokens signed together usually share their start and
+     * expiry times, so most calls return the remembered string.
+     */
+    private static final class Iso8601Format {
+        private final DateFormat format;
+
+        private long lastTime = Long.MIN_VALUE;
+
+        private String lastFormatted;
+
+        Iso8601Format() {
+            this.format = new SimpleDateFormat(ISO8601_PATTERN, LOCALE_US);
+            this.format.setTimeZone(UTC_ZONE);
+        }
+
+        String format(Date value) {
+            long time = value.getTime();
+            if (time != this.lastTime || this.lastFormatted == null) {
+                this.lastFormatted = this.format.format(value);
+                this.lastTime = time;
+            }
+
+            return this.lastFormatted;
+        }
+    }
+
+    /**
+     * Returns the UTC date/time for the specified value using the ISO8601 pattern with milliseconds, as used for
+     * snapshot times.
+     *
+     * @param value
+     *            A <code>Date</code> object that represents the date to convert.
+     *
+     * @return A {@code String} that represents the UTC date/time with millisecond precision.
+     */
+    public static String getUTCTimeWithMillis(final Date value) {
+        final long time = value.getTime();
+        long days = time / 86400000L;
+        long millisOfDay = time % 86400000L;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += 86400000L;
+        }
+
+        // Inverse of daysFromCivil.
+        final long z = days + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        final int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return JAVA_ISO8601_FORMATTER.get().format(value);
+        }
+
+        // Formatted by hand since snapshot URLs are built at high rates.
+        final char[] chars = new char[24];
+        appendDigits(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        appendDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        appendDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        appendDigits(chars, 11, (int) (millisOfDay / 3600000L), 2);
+        chars[13] = ':';
+        appendDigits(chars, 14, (int) (millisOfDay / 60000L % 60), 2);
+        chars[16] = ':';
+        appendDigits(chars, 17, (int) (millisOfDay / 1000L % 60), 2);
+        chars[19] = '.';
+        appendDigits(chars, 20, (int) (millisOfDay % 1000L), 3);
+        chars[23] = 'Z';
+        return new String(chars);
+    }
+
+    private static void appendDigits(final char[] chars, final int start, int value, final int width) {
+        for (int i = start + width - 1; i >= start; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Thread local for storing the millisecond-precision ISO8601 date format.
+     */
+    private static final ThreadLocal<DateFormat> JAVA_ISO8601_FORMATTER = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            final DateFormat formatter = new SimpleDateFormat(JAVA_ISO8601_PATTERN, LOCALE_US);
+            formatter.setTimeZone(UTC_ZONE);
+            return formatter;
+        }
+    };
+
+    /**
+     * Characters which are left unencoded in a URL path: the unreserved characters and '/'.
+     */
+    static final boolean[] URL_PATH_SAFE = urlSafeCharacters("-._~/");
+
+    /**
+     * Characters which are left unencoded in a query parameter value: the unreserved characters, and the ':' and ','
+     * which times, IP ranges and protocol lists contain.
+     */
+    static final boolean[] URL_QUERY_VALUE_SAFE = urlSafeCharacters("-._~:,");
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static boolean[] urlSafeCharacters(String extra) {
+        final boolean[] safe = new boolean[128];
+        for (char c = '0'; c <= '9'; c++) {
+            safe[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            safe[c] = true;
+            safe[Character.toUpperCase(c)] = true;
+        }
+        for (int i = 0; i < extra.length(); i++) {
+            safe[extra.charAt(i)] = true;
+        }
+        return safe;
+    }
+
+    /**
+     * Appends a value to a URL, percent-encoding every character which is not marked safe as UTF-8.
+     *
+     * @param sb
+     *            The {@code StringBuilder} to append to.
+     * @param value
+     *            The {@code String} to encode.
+     * @param safe
+     *            One of {@link #URL_PATH_SAFE} or {@link #URL_QUERY_VALUE_SAFE}.
+     */
+    static void appendURLEncoded(final StringBuilder sb, final String value, final boolean[] safe) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80 && safe[c]) {
+                sb.append(c);
+            }
+            else if (c < 0x80) {
+                appendPercentEncoded(sb, c);
+            }
+            else {
+                final int end = i + Character.charCount(value.codePointAt(i));
+                for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    appendPercentEncoded(sb, b & 0xFF);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendPercentEncoded(final StringBuilder sb, final int b) {
+        sb.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    /**
+     * Decodes the percent-encoded UTF-8 in part of a URL. Unlike {@link URLDecoder}, '+' is left as is. Returns a
+     * substring without copying through a buffer when there is nothing to decode.
+     *
+     * @param value
+     *            The {@code String} holding the encoded part.
+     * @param start
+     *            The index of the first character to decode.
+     * @param end
+     *            The index after the last character to decode.
+     *
+     * @return The decoded {@code String}.
+     *
+     * @throws IllegalArgumentException
+     *            If a '%' is not followed by two hexadecimal digits.
+     */
+    static String urlDecode(final String value, final int start, final int end) {
+        final int firstEscape = value.indexOf('%', start);
+        if (firstEscape == -1 || firstEscape >= end) {
+            return value.substring(start, end);
+        }
+
+        final StringBuilder sb = new StringBuilder(end - start);
+        sb.append(value, start, firstEscape);
+        byte[] bytes = null;
+        int i = firstEscape;
+        while (i < end) {
+            if (value.charAt(i) != '%') {
+                sb.append(value.charAt(i++));
+                continue;
+            }
 
-        return iso8601Format.format(value);
+            // Gather a run of escapes, since a multi-byte character spans several of them.
+            if (bytes == null) {
+                bytes = new byte[(end - i) / 3];
+            }
+            int count = 0;
+            while (i < end && value.charAt(i) == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException(String.format(SR.INVALID_URL_ENCODING, i));
+                }
+                final int high = Character.digit(value.charAt(i + 1), 16);
+                final int low = Character.digit(value.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException(String.format(SR.INVALID_URL_ENCODING, i));
+                }
+                bytes[count++] = (byte) ((high << 4) | low);
+                i += 3;
+            }
+            sb.append(new String(bytes, 0, count, StandardCharsets.UTF_8));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets the host of a URL, including its port if it has one.
+     *
+     * @param url
+     *            A {@code String} holding the URL.
+     *
+     * @return The host, or an empty string if the URL has none; or {@code null} if {@code url} is {@code null}.
+     */
+    static String getURLHost(final String url) {
+        if (url == null) {
+            return null;
+        }
+
+        final int schemeEnd = url.indexOf("://");
+        final int hostStart = schemeEnd == -1 ? 0 : schemeEnd + 3;
+        int hostEnd = hostStart;
+        while (hostEnd < url.length() && "/?#".indexOf(url.charAt(hostEnd)) == -1) {
+            hostEnd++;
+        }
+        return url.substring(hostStart, hostEnd);
+    }
+
+    /**
+     * Replaces the host of a URL, e.g. to send a read to an account's secondary endpoint.
+     *
+     * @param url
+     *            A {@code String} holding the URL.
+     * @param host
+     *            A {@code String} holding the new host, including its port if it has one.
+     *
+     * @return The URL with the new host.
+     */
+    static String withURLHost(final String url, final String host) {
+        final String oldHost = getURLHost(url);
+        final int schemeEnd = url.indexOf("://");
+        final int hostStart = schemeEnd == -1 ? 0 : schemeEnd + 3;
+        return url.substring(0, hostStart) + host + url.substring(hostStart + oldHost.length());
+    }
+
+    /**
+     * Gets the path of a URL, without its query string, e.g. for logging a request without leaking its SAS.
+     *
+     * @param url
+     *            A {@code String} holding the URL.
+     *
+     * @return The path, or "/" if the URL has none; or {@code null} if {@code url} is {@code null}.
+     */
+    static String getURLPath(final String url) {
+        if (url == null) {
+            return null;
+        }
+
+        final int schemeEnd = url.indexOf("://");
+        final int pathStart = url.indexOf('/', schemeEnd == -1 ? 0 : schemeEnd + 3);
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1) {
+            queryStart = url.length();
+        }
+        return pathStart == -1 || pathStart > queryStart ? "/" : url.substring(pathStart, queryStart);
+    }
+
+    /**
+     * Gets a key identifying the resource a URL refers to, for caching: its host and path, plus its snapshot, which is
+     * a resource of its own. The rest of the query string, e.g. a SAS or the component of a write such as
+     * "comp=metadata", is ignored.
+     *
+     * @param url
+     *            A {@code String} holding the URL.
+     *
+     * @return The key.
+     */
+    static String getURLResourceKey(final String url) {
+        String key = getURLHost(url) + getURLPath(url);
+        final int queryStart = url.indexOf('?');
+        if (queryStart != -1) {
+            for (final String pair : url.substring(queryStart + 1).split("&")) {
+                if (pair.startsWith("snapshot=")) {
+                    key += '?' + pair;
+                    break;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Parses the extent of a response's data from its Content-Length and Content-Range headers.
+     *
+     * @param contentLength
+     *            The response's Content-Length, or {@code null}.
+     * @param contentRange
+     *            The response's Content-Range, e.g. "bytes 0-511/1024", or {@code null} if it holds the whole blob.
+     *
+     * @return The offset of the data, the offset after it, and the length of the blob; or {@code null} if they are
+     *         not known.
+     */
+    static long[] parseContentRange(final Long contentLength, final String contentRange) {
+        if (contentLength == null) {
+            return null;
+        }
+        if (contentRange == null) {
+            return new long[]{ 0, contentLength, contentLength };
+        }
+
+        final int dash = contentRange.indexOf('-');
+        final int slash = contentRange.indexOf('/');
+        if (!contentRange.startsWith("bytes ") || dash == -1 || slash < dash) {
+            return null;
+        }
+        try {
+            final long start = Long.parseLong(contentRange.substring("bytes ".length(), dash));
+            final long length = Long.parseLong(contentRange.substring(slash + 1));
+            return new long[]{ start, start + contentLength, length };
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a stream to its end and closes it, e.g. to buffer a small response body.
+     *
+     * @param stream
+     *            The <code>InputStream</code> to read.
+     * @param expectedLength
+     *            The expected number of bytes, used to size the buffer, or -1 if unknown.
+     *
+     * @return The bytes read.
+     *
+     * @throws IOException
+     *             If the stream cannot be read.
+     */
+    static byte[] readFully(final InputStream stream, final long expectedLength) throws IOException {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    expectedLength < 0 ? Constants.BUFFER_COPY_LENGTH : (int) Math.min(expectedLength, Constants.MB));
+            final byte[] buffer = new byte[Constants.BUFFER_COPY_LENGTH];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+        finally {
+            stream.close();
+        }
     }
 
     /**
@@ -0,0 +1,67 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import org.junit.Test;
+
+import java.util.concurrent.TimeoutException;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.HOST;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerFactoryTests {
+
+    @Test
+    public void testHangingTriesOpenTheCircuit() {
+        CircuitBreakerFactory factory = new CircuitBreakerFactory(
+                new CircuitBreakerOptions(1.0, 0.5, 3, 60000L, 60000L, 1, null));
+        RequestPolicy policy = factory.create(TestPolicies.withTryTimeout(HANGING, 50), null);
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(factory.isOpen(HOST));
+            try {
+                policy.sendAsync(request()).blockingGet();
+                fail();
+            }
+            catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+
+        assertTrue(factory.isOpen(HOST));
+        try {
+            policy.sendAsync(request()).blockingGet();
+            fail();
+        }
+        catch (CircuitBreakerOpenException e) {
+            assertTrue(e.host().equals(HOST));
+        }
+    }
+
+    @Test
+    public void testCancelledTriesAreNotCounted() {
+        CircuitBreakerFactory factory = new CircuitBreakerFactory(
+                new CircuitBreakerOptions(0.5, 0.5, 1, 60000L, 60000L, 1, null));
+        RequestPolicy policy = factory.create(HANGING, null);
+
+        policy.sendAsync(request()).subscribe().dispose();
+        assertFalse(factory.isOpen(HOST));
+    }
+}
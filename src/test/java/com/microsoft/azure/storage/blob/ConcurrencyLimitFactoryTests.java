@@ -0,0 +1,65 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.FAILING;
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.HOST;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimitFactoryTests {
+
+    private static RequestPolicy withTryTimeout(ConcurrencyLimitFactory factory, RequestPolicy policy) {
+        return factory.create(TestPolicies.withTryTimeout(policy, 100), null);
+    }
+
+    @Test
+    public void testTryTimeoutsShrinkTheLimit() {
+        ConcurrencyLimitFactory factory = new ConcurrencyLimitFactory(4, 1, 16);
+        try {
+            withTryTimeout(factory, HANGING).sendAsync(request()).blockingGet();
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        assertEquals(3, factory.limit(HOST));
+    }
+
+    @Test
+    public void testTimeQueuedDoesNotCountAgainstTheTryTimeout() {
+        ConcurrencyLimitFactory factory = new ConcurrencyLimitFactory(1, 1, 1);
+        withTryTimeout(factory, HANGING).sendAsync(request()).toCompletable().onErrorComplete().subscribe();
+        try {
+            // Queued behind the hanging try for its whole timeout, then granted a fresh one of its own.
+            withTryTimeout(factory, FAILING).sendAsync(request()).blockingGet();
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, factory.queued(HOST));
+    }
+}
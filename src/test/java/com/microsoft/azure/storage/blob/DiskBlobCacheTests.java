@@ -0,0 +1,81 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskBlobCacheTests {
+
+    @Test
+    public void testRangeSetAddDisjoint() {
+        DiskBlobCache.RangeSet ranges = new DiskBlobCache.RangeSet();
+        assertEquals(100, ranges.add(0, 100));
+        assertEquals(100, ranges.add(200, 300));
+        assertTrue(ranges.covers(0, 100));
+        assertTrue(ranges.covers(200, 300));
+        assertFalse(ranges.covers(50, 250));
+        assertFalse(ranges.covers(100, 200));
+    }
+
+    @Test
+    public void testRangeSetAddMergesOverlappingAndTouching() {
+        DiskBlobCache.RangeSet ranges = new DiskBlobCache.RangeSet();
+        ranges.add(0, 100);
+        ranges.add(200, 300);
+        ranges.add(400, 500);
+
+        // Touches the first range and overlaps the second; only the gap between them is new.
+        assertEquals(100, ranges.add(100, 250));
+        assertTrue(ranges.covers(0, 300));
+        assertFalse(ranges.covers(0, 301));
+
+        // Spans the remaining gap and the last range.
+        assertEquals(150, ranges.add(250, 550));
+        assertTrue(ranges.covers(0, 550));
+    }
+
+    @Test
+    public void testRangeSetAddCoveredRangeAddsNothing() {
+        DiskBlobCache.RangeSet ranges = new DiskBlobCache.RangeSet();
+        ranges.add(100, 400);
+        assertEquals(0, ranges.add(100, 400));
+        assertEquals(0, ranges.add(150, 250));
+        assertEquals(0, ranges.add(300, 300));
+        assertEquals(0, ranges.add(300, 200));
+        assertTrue(ranges.covers(100, 400));
+        assertFalse(ranges.covers(99, 400));
+    }
+
+    @Test
+    public void testRangeSetAddSpanningSeveralRanges() {
+        DiskBlobCache.RangeSet ranges = new DiskBlobCache.RangeSet();
+        ranges.add(10, 20);
+        ranges.add(30, 40);
+        ranges.add(50, 60);
+        assertEquals(70, ranges.add(0, 100));
+        assertTrue(ranges.covers(0, 100));
+    }
+
+    @Test
+    public void testRangeSetCoversEmptyRange() {
+        DiskBlobCache.RangeSet ranges = new DiskBlobCache.RangeSet();
+        assertTrue(ranges.covers(5, 5));
+        assertFalse(ranges.covers(0, 1));
+    }
+}
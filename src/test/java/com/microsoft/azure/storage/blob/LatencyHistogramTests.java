@@ -0,0 +1,75 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testSmallValuesHaveTheirOwnBuckets() {
+        for (int micros = 0; micros < 8; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketIndex(micros));
+            assertEquals(micros, LatencyHistogram.bucketUpperBound(micros));
+        }
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+            long upperBound = LatencyHistogram.bucketUpperBound(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(upperBound));
+            assertEquals(i + 1, LatencyHistogram.bucketIndex(upperBound + 1));
+        }
+    }
+
+    @Test
+    public void testUpperBoundIsWithinAnEighth() {
+        for (long micros = 1; micros < 1L << 41; micros = micros * 3 / 2 + 1) {
+            long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(micros));
+            assertTrue(upperBound >= micros);
+            assertTrue(upperBound - micros <= micros / 8);
+        }
+    }
+
+    @Test
+    public void testLargeValuesFallInTheLastBucket() {
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(1L << 41));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRecordAndPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, LatencyHistogram.percentile(histogram.bucketCounts(), 50));
+
+        for (long micros = 1; micros <= 100; micros++) {
+            histogram.record(micros * 1000);
+        }
+        histogram.record(-5);
+
+        assertEquals(101, histogram.count());
+        assertEquals(5050000, histogram.sum());
+        assertEquals(100000, histogram.max());
+        assertEquals(0, LatencyHistogram.percentile(histogram.bucketCounts(), 0));
+        long median = LatencyHistogram.percentile(histogram.bucketCounts(), 50);
+        assertTrue(median >= 50000 && median <= 50000 * 9 / 8);
+        long p99 = LatencyHistogram.percentile(histogram.bucketCounts(), 99);
+        assertTrue(p99 >= 99000 && p99 <= 99000 * 9 / 8);
+    }
+}
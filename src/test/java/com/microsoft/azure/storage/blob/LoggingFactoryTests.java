@@ -0,0 +1,59 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import org.junit.Test;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.FAILING;
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoggingFactoryTests {
+
+    @Test
+    public void testCancelledTryIsLoggedAsAFailure() {
+        TestPolicies.RecordingLogger logger = new TestPolicies.RecordingLogger();
+        RequestPolicy policy = new LoggingFactory(new LoggingOptions()).create(HANGING,
+                new RequestPolicyOptions(logger));
+
+        policy.sendAsync(request()).subscribe().dispose();
+
+        String failure = logger.lines.get(logger.lines.size() - 1);
+        assertTrue(failure.startsWith("ERROR event=failure operation=operation try=1 "));
+        assertTrue(failure.contains("error=cancelled"));
+    }
+
+    @Test
+    public void testFailedTryIsLoggedOnce() {
+        TestPolicies.RecordingLogger logger = new TestPolicies.RecordingLogger();
+        RequestPolicy policy = new LoggingFactory(new LoggingOptions()).create(FAILING,
+                new RequestPolicyOptions(logger));
+
+        policy.sendAsync(request()).toCompletable().onErrorComplete().blockingAwait();
+
+        int failures = 0;
+        for (String line : logger.lines) {
+            if (line.contains("event=failure")) {
+                failures++;
+                assertTrue(line.contains("error=java.io.IOException"));
+            }
+        }
+        assertEquals(1, failures);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PageRangeIndexTests {
+
+    private static PageRangeIndex index(long... bounds) {
+        PageRangeIndex.Builder builder = new PageRangeIndex.Builder();
+        for (int i = 0; i < bounds.length; i += 2) {
+            builder.add(bounds[i], bounds[i + 1]);
+        }
+
+        return builder.build();
+    }
+
+    private static void assertRanges(PageRangeIndex index, long... bounds) {
+        assertEquals(bounds.length / 2, index.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(bounds[2 * i], index.start(i));
+            assertEquals(bounds[2 * i + 1], index.end(i));
+        }
+    }
+
+    @Test
+    public void testBuilderCoalescesSortedInput() {
+        assertRanges(index(0, 512, 512, 1024, 1024, 1536, 2048, 2560), 0, 1536, 2048, 2560);
+    }
+
+    @Test
+    public void testBuilderSortsAndCoalescesUnsortedInput() {
+        assertRanges(index(4096, 4608, 0, 512, 256, 1024, 3072, 4096, 8192, 8704), 0, 1024, 3072, 4608, 8192, 8704);
+    }
+
+    @Test
+    public void testBuilderIgnoresEmptyRanges() {
+        assertSame(PageRangeIndex.empty(), index(512, 512, 1024, 0));
+    }
+
+    @Test
+    public void testIsPopulated() {
+        PageRangeIndex index = index(512, 1024, 2048, 4096);
+        assertFalse(index.isPopulated(0));
+        assertTrue(index.isPopulated(512));
+        assertTrue(index.isPopulated(1023));
+        assertFalse(index.isPopulated(1024));
+        assertTrue(index.isPopulated(4095));
+        assertFalse(index.isPopulated(4096));
+        assertEquals(2560, index.populatedBytes());
+    }
+
+    @Test
+    public void testOverlaps() {
+        PageRangeIndex index = index(512, 1024, 2048, 4096);
+        assertFalse(index.overlaps(0, 512));
+        assertTrue(index.overlaps(0, 513));
+        assertFalse(index.overlaps(1024, 2048));
+        assertTrue(index.overlaps(1024, 2049));
+        assertTrue(index.overlaps(3000, 3001));
+        assertFalse(index.overlaps(4096, 8192));
+        assertFalse(index.overlaps(600, 600));
+    }
+
+    @Test
+    public void testMerge() {
+        PageRangeIndex left = index(0, 512, 2048, 3072, 8192, 8704);
+        PageRangeIndex right = index(256, 1024, 3072, 4096, 6144, 6656);
+        assertRanges(left.merge(right), 0, 1024, 2048, 4096, 6144, 6656, 8192, 8704);
+        assertRanges(right.merge(left), 0, 1024, 2048, 4096, 6144, 6656, 8192, 8704);
+        assertRanges(left.merge(PageRangeIndex.empty()), 0, 512, 2048, 3072, 8192, 8704);
+    }
+
+    @Test
+    public void testIntersect() {
+        PageRangeIndex left = index(0, 1024, 2048, 4096, 8192, 8704);
+        PageRangeIndex right = index(512, 2560, 3072, 3584, 4096, 8192);
+        assertRanges(left.intersect(right), 512, 1024, 2048, 2560, 3072, 3584);
+        assertRanges(right.intersect(left), 512, 1024, 2048, 2560, 3072, 3584);
+        assertSame(PageRangeIndex.empty(), left.intersect(PageRangeIndex.empty()));
+    }
+
+    @Test
+    public void testSubtract() {
+        PageRangeIndex left = index(0, 4096, 8192, 8704);
+        PageRangeIndex right = index(512, 1024, 2048, 2560, 3584, 8448);
+        assertRanges(left.subtract(right), 0, 512, 1024, 2048, 2560, 3584, 8448, 8704);
+        assertRanges(right.subtract(left), 4096, 8192);
+        assertSame(PageRangeIndex.empty(), left.subtract(left));
+        assertRanges(left.subtract(PageRangeIndex.empty()), 0, 4096, 8192, 8704);
+    }
+}
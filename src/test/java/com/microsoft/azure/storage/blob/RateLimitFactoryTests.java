@@ -0,0 +1,42 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import io.reactivex.disposables.Disposable;
+import org.junit.Test;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.FAILING;
+import static com.microsoft.azure.storage.blob.TestPolicies.HOST;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitFactoryTests {
+
+    @Test
+    public void testCancelledWaitRefundsItsReservation() {
+        // One request per second: the first try uses the burst, and the next must wait for the bucket to refill.
+        RateLimitFactory factory = new RateLimitFactory(1, 0, 0);
+        RequestPolicy policy = factory.create(FAILING, null);
+        policy.sendAsync(request()).toCompletable().onErrorComplete().blockingAwait();
+
+        Disposable waiting = policy.sendAsync(request()).subscribe();
+        assertTrue(factory.requestTokens(HOST) < -0.5);
+
+        // Without the refund, the bucket would stay a whole request in debt and every later try would wait for it.
+        waiting.dispose();
+        assertTrue(factory.requestTokens(HOST) > -0.5);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.OPERATION;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestMetricsFactoryTests {
+
+    @Test
+    public void testCancelledTriesAreRecordedAsTimeouts() {
+        RequestMetricsFactory factory = new RequestMetricsFactory();
+        RequestPolicy policy = factory.create(HANGING, null);
+        try {
+            policy.sendAsync(request()).timeout(10, TimeUnit.MILLISECONDS).blockingGet();
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        RequestMetricsFactory.OperationSnapshot snapshot = factory.snapshot().get(OPERATION);
+        assertEquals(1, snapshot.tryCount());
+        assertEquals(1, snapshot.failureCount());
+        assertEquals(1, snapshot.timeoutCount());
+        assertTrue(snapshot.maxLatencyInMicros() >= 10000);
+    }
+}
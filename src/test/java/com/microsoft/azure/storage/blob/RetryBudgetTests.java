@@ -0,0 +1,94 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTests {
+
+    @Test
+    public void testMinRetriesAllowedWithoutSuccesses() {
+        RetryBudget budget = new RetryBudget(0.1, 5, 60000);
+        assertEquals(300, budget.available());
+        for (int i = 0; i < 300; i++) {
+            assertTrue(budget.tryAcquireRetry());
+        }
+        assertFalse(budget.tryAcquireRetry());
+        assertEquals(0, budget.available());
+        assertEquals(300, budget.retriesAllowed());
+        assertEquals(1, budget.retriesRejected());
+    }
+
+    @Test
+    public void testSuccessesEarnRetries() {
+        RetryBudget budget = new RetryBudget(0.5, 0, 60000);
+        assertFalse(budget.tryAcquireRetry());
+        for (int i = 0; i < 4; i++) {
+            budget.recordSuccess();
+        }
+        assertEquals(2, budget.available());
+        assertTrue(budget.tryAcquireRetry());
+        assertTrue(budget.tryAcquireRetry());
+        assertFalse(budget.tryAcquireRetry());
+        assertEquals(2, budget.retriesAllowed());
+        assertEquals(2, budget.retriesRejected());
+    }
+
+    @Test
+    public void testCountsExpireWithTheWindow() throws InterruptedException {
+        RetryBudget budget = new RetryBudget(1, 0, 200);
+        for (int i = 0; i < 3; i++) {
+            budget.recordSuccess();
+        }
+        assertTrue(budget.tryAcquireRetry());
+        assertEquals(2, budget.available());
+
+        // Both the successes and the retry fall out of the window, leaving nothing to spend.
+        Thread.sleep(300);
+        assertEquals(0, budget.available());
+        assertFalse(budget.tryAcquireRetry());
+
+        budget.recordSuccess();
+        assertEquals(1, budget.available());
+    }
+
+    @Test
+    public void testRetriesSpentInEarlierSlotsStillCount() throws InterruptedException {
+        RetryBudget budget = new RetryBudget(1, 0, 2000);
+        budget.recordSuccess();
+        budget.recordSuccess();
+        assertTrue(budget.tryAcquireRetry());
+
+        // A later slot of the same window sees the earlier success and retry.
+        Thread.sleep(500);
+        assertEquals(1, budget.available());
+        assertTrue(budget.tryAcquireRetry());
+        assertFalse(budget.tryAcquireRetry());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeRatio() {
+        new RetryBudget(-0.1, 0, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsWindowShorterThanItsSlots() {
+        new RetryBudget(0.1, 0, 5);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import com.microsoft.rest.v2.policy.RequestPolicyFactory;
+import com.microsoft.rest.v2.policy.RequestPolicyOptions;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StorageURLTests {
+
+    @Test
+    public void testHangingTryIsLoggedAsTimedOut() {
+        TestPolicies.RecordingLogger logger = new TestPolicies.RecordingLogger();
+        PipelineOptions pipelineOptions = new PipelineOptions();
+        pipelineOptions.logger = logger;
+        pipelineOptions.loggingOptions = new LoggingOptions();
+        pipelineOptions.telemetryOptions = new TelemetryOptions();
+        pipelineOptions.requestRetryOptions = new RequestRetryOptions(null, 1, 50L, null, null, null);
+
+        // Built over a leaf which never responds, the way HttpPipeline.build composes the factories.
+        List<RequestPolicyFactory> factories = StorageURL.createFactories(new AnonymousCredentials(), pipelineOptions);
+        RequestPolicyOptions options = new RequestPolicyOptions(logger);
+        RequestPolicy policy = HANGING;
+        for (int i = factories.size() - 1; i >= 0; i--) {
+            policy = factories.get(i).create(policy, options);
+        }
+
+        try {
+            policy.sendAsync(request()).blockingGet();
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        int failures = 0;
+        for (String line : logger.lines) {
+            if (line.contains("event=failure")) {
+                failures++;
+                assertTrue(line.contains("error=" + TimeoutException.class.getName()));
+            }
+        }
+        assertEquals(1, failures);
+    }
+}
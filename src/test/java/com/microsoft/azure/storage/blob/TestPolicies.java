@@ -0,0 +1,98 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpHeaders;
+import com.microsoft.rest.v2.http.HttpPipelineLogLevel;
+import com.microsoft.rest.v2.http.HttpPipelineLogger;
+import com.microsoft.rest.v2.http.HttpRequest;
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import io.reactivex.Single;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leaf policies and requests shared by the pipeline policy tests.
+ */
+final class TestPolicies {
+
+    static final String HOST = "account.blob.core.windows.net";
+
+    static final String OPERATION = "operation";
+
+    /**
+     * A leaf whose tries never complete, as when the service or the connection hangs.
+     */
+    static final RequestPolicy HANGING = new RequestPolicy() {
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            return Single.never();
+        }
+    };
+
+    /**
+     * A leaf whose tries fail at once with an {@link IOException}.
+     */
+    static final RequestPolicy FAILING = new RequestPolicy() {
+        @Override
+        public Single<HttpResponse> sendAsync(HttpRequest request) {
+            return Single.error(new IOException());
+        }
+    };
+
+    private TestPolicies() {
+    }
+
+    /**
+     * @return
+     *      A GET of a blob on {@link #HOST}, named {@link #OPERATION} the way the generated service interfaces name
+     *      their requests.
+     */
+    static HttpRequest request() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("x-ms-logging-context", OPERATION);
+        return new HttpRequest(OPERATION, "GET", "https://" + HOST + "/c/b", headers, null);
+    }
+
+    /**
+     * @return
+     *      The policy with each try bounded by the pipeline's try timeout.
+     */
+    static RequestPolicy withTryTimeout(RequestPolicy policy, long tryTimeoutInMs) {
+        RequestRetryFactory retryFactory = new RequestRetryFactory(
+                new RequestRetryOptions(null, null, tryTimeoutInMs, null, null, null));
+        return retryFactory.tryTimeoutFactory().create(policy, null);
+    }
+
+    /**
+     * A logger which keeps every line it is given, formatted, at every level.
+     */
+    static final class RecordingLogger implements HttpPipelineLogger {
+        final List<String> lines = new CopyOnWriteArrayList<>();
+
+        @Override
+        public HttpPipelineLogLevel minimumLogLevel() {
+            return HttpPipelineLogLevel.INFO;
+        }
+
+        @Override
+        public void log(HttpPipelineLogLevel logLevel, String message, Object... formattedArguments) {
+            this.lines.add(logLevel + " " + String.format(Utility.LOCALE_US, message, formattedArguments));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import com.microsoft.rest.v2.http.HttpResponse;
+import com.microsoft.rest.v2.policy.RequestPolicy;
+import io.reactivex.Single;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import static com.microsoft.azure.storage.blob.TestPolicies.HANGING;
+import static com.microsoft.azure.storage.blob.TestPolicies.OPERATION;
+import static com.microsoft.azure.storage.blob.TestPolicies.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TracingFactoryTests {
+
+    private static final class RecordingTracer implements RequestTracer {
+        final List<RecordedSpan> spans = new ArrayList<>();
+
+        @Override
+        public Object captureContext() {
+            return null;
+        }
+
+        @Override
+        public Object attachContext(Object context) {
+            return null;
+        }
+
+        @Override
+        public void detachContext(Object previous) {
+        }
+
+        @Override
+        public synchronized Span startSpan(String name, Object parentContext) {
+            RecordedSpan span = new RecordedSpan(name);
+            this.spans.add(span);
+            return span;
+        }
+    }
+
+    private static final class RecordedSpan implements RequestTracer.Span {
+        final String name;
+
+        volatile int endCount;
+
+        volatile Throwable error;
+
+        RecordedSpan(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object context() {
+            return this;
+        }
+
+        @Override
+        public String traceId() {
+            return null;
+        }
+
+        @Override
+        public void setTag(String key, String value) {
+        }
+
+        @Override
+        public void end(Throwable error) {
+            this.endCount++;
+            this.error = error;
+        }
+    }
+
+    @Test
+    public void testTryCutOffByTheTryTimeoutEndsItsSpan() {
+        RecordingTracer tracer = new RecordingTracer();
+        TracingFactory factory = new TracingFactory(tracer);
+        RequestPolicy policy = factory.create(
+                TestPolicies.withTryTimeout(factory.tryFactory().create(HANGING, null), 50), null);
+        try {
+            policy.sendAsync(request()).blockingGet();
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        assertEquals(2, tracer.spans.size());
+        RecordedSpan operation = tracer.spans.get(0);
+        assertEquals(OPERATION, operation.name);
+        assertEquals(1, operation.endCount);
+        assertTrue(operation.error instanceof TimeoutException);
+        RecordedSpan tryOne = tracer.spans.get(1);
+        assertEquals("try 1", tryOne.name);
+        assertEquals(1, tryOne.endCount);
+        assertTrue(tryOne.error instanceof CancellationException);
+    }
+
+    @Test
+    public void testOperationSpanStartsOnSubscribeAndEndsOnDispose() {
+        RecordingTracer tracer = new RecordingTracer();
+        TracingFactory factory = new TracingFactory(tracer);
+        RequestPolicy policy = factory.create(factory.tryFactory().create(HANGING, null), null);
+
+        Single<HttpResponse> response = policy.sendAsync(request());
+        assertEquals(0, tracer.spans.size());
+
+        response.subscribe().dispose();
+
+        assertEquals(2, tracer.spans.size());
+        for (RecordedSpan span : tracer.spans) {
+            assertEquals(1, span.endCount);
+            assertTrue(span.error instanceof CancellationException);
+        }
+    }
+}
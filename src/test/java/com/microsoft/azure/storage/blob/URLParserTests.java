@@ -0,0 +1,90 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class URLParserTests {
+
+    @Test
+    public void testParseBlobURL() throws Exception {
+        BlobURLParts parts = URLParser.ParseURL("https://account.blob.core.windows.net:8443/my%20container/dir/"
+                + "blob%C3%A9+x?comp=list&snapshot=2017-03-02T01:02:03.4560000Z&sv=2016-05-31&sig=ab%2Bc%3D"
+                + "&x=1&X=2#fragment");
+
+        assertEquals("https", parts.getScheme());
+        assertEquals("account.blob.core.windows.net:8443", parts.getHost());
+        assertEquals("my container", parts.getContainerName());
+        assertEquals("dir/blob\u00e9+x", parts.getBlobName());
+        assertEquals(Utility.parseDate("2017-03-02T01:02:03.456Z"), parts.getSnapshot());
+        assertEquals("2016-05-31", parts.getSasQueryParameters().version);
+        assertEquals("ab+c=", parts.getSasQueryParameters().signature);
+        assertEquals(Arrays.asList("comp", "x"), Arrays.asList(parts.getUnparsedParameters().keySet().toArray()));
+        assertArrayEquals(new String[] { "1", "2" }, parts.getUnparsedParameters().get("x"));
+    }
+
+    @Test
+    public void testParseURLWithoutQuery() throws Exception {
+        BlobURLParts parts = URLParser.ParseURL("http://127.0.0.1:10000/container");
+        assertEquals("127.0.0.1:10000", parts.getHost());
+        assertEquals("container", parts.getContainerName());
+        assertNull(parts.getBlobName());
+        assertNull(parts.getSnapshot());
+        assertTrue(parts.getUnparsedParameters().isEmpty());
+
+        parts = URLParser.ParseURL("https://account.blob.core.windows.net");
+        assertEquals("account.blob.core.windows.net", parts.getHost());
+        assertNull(parts.getContainerName());
+        assertNull(parts.getBlobName());
+    }
+
+    @Test
+    public void testQueryWithoutValue() throws Exception {
+        BlobURLParts parts = URLParser.ParseURL("https://account.blob.core.windows.net/container?restype&&a=");
+        assertArrayEquals(new String[] { "" }, parts.getUnparsedParameters().get("restype"));
+        assertArrayEquals(new String[] { "" }, parts.getUnparsedParameters().get("a"));
+        assertEquals(2, parts.getUnparsedParameters().size());
+    }
+
+    @Test
+    public void testToURLRoundTrip() throws Exception {
+        String url = "https://account.blob.core.windows.net:8443/my%20container/dir/blob%C3%A9%2Bx?comp=list"
+                + "&snapshot=2017-03-02T01:02:03.456Z&sv=2016-05-31&sig=ab%2Bc%3D";
+        assertEquals(url, URLParser.ParseURL(url).toURL());
+    }
+
+    @Test(expected = MalformedURLException.class)
+    public void testMissingScheme() throws Exception {
+        URLParser.ParseURL("account.blob.core.windows.net/container");
+    }
+
+    @Test(expected = MalformedURLException.class)
+    public void testInvalidEscapeInPath() throws Exception {
+        URLParser.ParseURL("https://account.blob.core.windows.net/container/blob%2");
+    }
+
+    @Test(expected = MalformedURLException.class)
+    public void testInvalidEscapeInQuery() throws Exception {
+        URLParser.ParseURL("https://account.blob.core.windows.net/container?a=%zz");
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright Microsoft Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoft.azure.storage.blob;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UtilityTests {
+
+    private static Date utc(int year, int month, int day, int hour, int minute, int second, int millisecond) {
+        GregorianCalendar calendar = new GregorianCalendar(Utility.UTC_ZONE);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millisecond);
+        return calendar.getTime();
+    }
+
+    private static void assertInvalidDate(String dateString) {
+        try {
+            Utility.parseDate(dateString);
+            fail(dateString);
+        }
+        catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testParseDate() {
+        assertEquals(utc(2012, 1, 4, 23, 21, 0, 0), Utility.parseDate("2012-01-04T23:21Z"));
+        assertEquals(utc(2012, 1, 4, 23, 21, 59, 0), Utility.parseDate("2012-01-04T23:21:59Z"));
+        assertEquals(utc(2012, 1, 4, 23, 21, 59, 100), Utility.parseDate("2012-01-04T23:21:59.1Z"));
+        assertEquals(utc(2012, 1, 4, 23, 21, 59, 120), Utility.parseDate("2012-01-04T23:21:59.12Z"));
+        assertEquals(utc(2012, 1, 4, 23, 21, 59, 123), Utility.parseDate("2012-01-04T23:21:59.1234567Z"));
+        assertEquals(utc(1969, 12, 31, 23, 59, 59, 999), Utility.parseDate("1969-12-31T23:59:59.999Z"));
+        assertEquals(utc(2016, 2, 29, 0, 0, 0, 0), Utility.parseDate("2016-02-29T00:00:00Z"));
+    }
+
+    @Test
+    public void testParseDateRejectsInvalidStrings() {
+        assertInvalidDate("2012-01-04");
+        assertInvalidDate("2012-01-04T23:21:59");
+        assertInvalidDate("2012-01-04 23:21:59Z");
+        assertInvalidDate("2012-13-04T23:21:59Z");
+        assertInvalidDate("2012-01-04T24:21:59Z");
+        assertInvalidDate("2012-01-04T23:21:5aZ");
+        assertInvalidDate("2012-01-04T23:21:59,1Z");
+        assertInvalidDate("2012-01-04T23:21:59.12345678Z");
+    }
+
+    @Test
+    public void testURLDecode() {
+        assertEquals("plain", Utility.urlDecode("plain", 0, 5));
+        assertEquals("a b+c", Utility.urlDecode("xa%20b+cx", 1, 8));
+        assertEquals("\u00e9\u20ac/", Utility.urlDecode("%C3%A9%E2%82%AC%2F", 0, 18));
+        assertEquals("\ud83d\ude00", Utility.urlDecode("%F0%9F%98%80", 0, 12));
+        assertEquals("ab", Utility.urlDecode("ab%zz", 0, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testURLDecodeRejectsTruncatedEscape() {
+        Utility.urlDecode("a%2", 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testURLDecodeRejectsNonHexEscape() {
+        Utility.urlDecode("a%g0", 0, 4);
+    }
+
+    @Test
+    public void testURLResourceKey() {
+        String blob = "https://account.blob.core.windows.net/container/blob";
+        assertEquals("account.blob.core.windows.net/container/blob", Utility.getURLResourceKey(blob));
+        assertEquals("account.blob.core.windows.net/container/blob",
+                Utility.getURLResourceKey(blob + "?comp=metadata&sig=abc"));
+        assertEquals("account.blob.core.windows.net/container/blob?snapshot=2017-03-02T01:02:03.4560000Z",
+                Utility.getURLResourceKey(blob + "?snapshot=2017-03-02T01:02:03.4560000Z&sig=abc"));
+        assertEquals("account.blob.core.windows.net/container/blob?snapshot=2017-03-02T01:02:03.4560000Z",
+                Utility.getURLResourceKey(blob + "?xsnapshot=1&snapshot=2017-03-02T01:02:03.4560000Z"));
+        assertEquals("account.blob.core.windows.net/container/blob",
+                Utility.getURLResourceKey(blob + "?xsnapshot=2017-03-02T01:02:03.4560000Z"));
+    }
+}